@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import hudson.maven.MavenModule;
+import hudson.maven.MavenModuleSet;
+import hudson.maven.ModuleName;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.shared.release.versions.DefaultVersionInfo;
+import org.apache.maven.shared.release.versions.VersionParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Versions asked to the {@link BranchAction} by a render of the branch form
+ * and its submission, against parsing the root module version on each call
+ * as the action did before {@link BranchVersions}.
+ *
+ * @author Iheb Khemissi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BranchActionBenchmark {
+
+	private MavenModule root;
+	private BranchAction action;
+
+	@Setup
+	public void setUp() {
+		root = mock(MavenModule.class);
+		ModuleName name = new ModuleName("org.example", "root");
+		when(root.getModuleName()).thenReturn(name);
+		when(root.getName()).thenReturn(name.toFileSystemName());
+		when(root.getVersion()).thenReturn("2.3.1-SNAPSHOT");
+		MavenModuleSet project = mock(MavenModuleSet.class);
+		when(project.getRootModule()).thenReturn(root);
+		action = new BranchAction(project, false, false, false);
+	}
+
+	@Benchmark
+	public void render(Blackhole blackhole) {
+		blackhole.consume(action.getCurrentVersion());
+		blackhole.consume(action.computeBranchVersion());
+		blackhole.consume(action.computeNextVersion());
+		blackhole.consume(action.computeRepoDescription());
+		blackhole.consume(action.computeScmTag());
+	}
+
+	@Benchmark
+	public void renderParsingEachTime(Blackhole blackhole) throws VersionParseException {
+		blackhole.consume(root.getVersion());
+		blackhole.consume(new DefaultVersionInfo(root.getVersion()).getReleaseVersionString());
+		blackhole.consume(new DefaultVersionInfo(root.getVersion()).getNextVersion().getSnapshotVersionString());
+		blackhole.consume(root.getName() + ':' + new DefaultVersionInfo(root.getVersion()).getReleaseVersionString());
+		blackhole.consume(root.getModuleName().artifactId + '-' + new DefaultVersionInfo(root.getVersion()).getReleaseVersionString());
+	}
+}
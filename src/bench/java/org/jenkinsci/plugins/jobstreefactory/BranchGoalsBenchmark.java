@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Assembly of the goals of a branch build by the build wrapper, and of the
+ * module versions it writes to <code>release.properties</code>.
+ *
+ * @author Iheb Khemissi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BranchGoalsBenchmark {
+
+	/** Number of modules with their own version. */
+	@Param({ "0", "10", "1000" })
+	public int modules;
+
+	private BranchArgumentsAction args;
+
+	@Setup
+	public void setUp() {
+		args = new BranchArgumentsAction();
+		args.setReleaseVersion("2.3.1");
+		args.setDevelopmentVersion("2.3.1-SNAPSHOT");
+		args.setBranchName("release-2.3");
+		args.setScmUsername("builder");
+		args.setScmPassword("secret");
+		args.setScmCommentPrefix("[branch]");
+		args.setAppendHusonUserName(true);
+		args.setHudsonUserName("admin");
+		Map<String, String> releaseVersions = new HashMap<String, String>();
+		Map<String, String> developmentVersions = new HashMap<String, String>();
+		for (int i = 0; i < modules; i++) {
+			releaseVersions.put("org.example:module-" + i, "1." + i + ".0");
+			developmentVersions.put("org.example:module-" + i, "1." + i + ".0-SNAPSHOT");
+		}
+		args.setModuleReleaseVersions(releaseVersions);
+		args.setModuledevelopmentVersions(developmentVersions);
+	}
+
+	@Benchmark
+	public String createGoals() {
+		return BranchBuildWrapper.createGoals(args, BranchBuildWrapper.DescriptorImpl.DEFAULT_RELEASE_BRANCH_GOALS);
+	}
+
+	/**
+	 * The goals assembly timed by the set up metric, as the build wrapper
+	 * does it.
+	 */
+	@Benchmark
+	public String createGoalsTimed() {
+		long start = BranchMetrics.SET_UP.start();
+		try {
+			return BranchBuildWrapper.createGoals(args, BranchBuildWrapper.DescriptorImpl.DEFAULT_RELEASE_BRANCH_GOALS);
+		} finally {
+			BranchMetrics.SET_UP.stop(start);
+		}
+	}
+
+	@Benchmark
+	public Properties getModuleVersionProperties() {
+		return BranchBuildWrapper.getModuleVersionProperties(args);
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import hudson.maven.MavenModule;
+import hudson.maven.ModuleName;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Version computations of the branch form and of reactors whose modules have
+ * their own versions.
+ *
+ * @author Iheb Khemissi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BranchVersionsBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	public int modules;
+
+	private MavenModule root;
+	private BranchVersions previous;
+	private List<MavenModule> reactor;
+
+	@Setup
+	public void setUp() {
+		root = module("root", "2.3.1-SNAPSHOT");
+		previous = BranchVersions.of(root, null);
+		reactor = new ArrayList<MavenModule>();
+		reactor.add(root);
+		for (int i = 0; i < modules; i++) {
+			// one out of two modules follows the root version
+			reactor.add(module("module-" + i, i % 2 == 0 ? "2.3.1-SNAPSHOT" : "1." + i + ".0-SNAPSHOT"));
+		}
+	}
+
+	@Benchmark
+	public BranchVersions compute() {
+		return BranchVersions.of(root, null);
+	}
+
+	@Benchmark
+	public BranchVersions reuse() {
+		return BranchVersions.of(root, previous);
+	}
+
+	@Benchmark
+	public Map<String, String> planModules() {
+		Map<String, String> releaseVersions = new HashMap<String, String>();
+		Map<String, String> developmentVersions = new HashMap<String, String>();
+		BranchVersions.planModules(reactor, root, releaseVersions, developmentVersions);
+		return releaseVersions;
+	}
+
+	private static MavenModule module(String artifactId, String version) {
+		MavenModule module = mock(MavenModule.class);
+		ModuleName name = new ModuleName("org.example", artifactId);
+		when(module.getModuleName()).thenReturn(name);
+		when(module.getName()).thenReturn(name.toFileSystemName());
+		when(module.getVersion()).thenReturn(version);
+		return module;
+	}
+}
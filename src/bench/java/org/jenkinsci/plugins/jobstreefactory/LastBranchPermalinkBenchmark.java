@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.model.Job;
+import hudson.model.Run;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Resolution of the last release permalink of a job.
+ *
+ * @author Iheb Khemissi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LastBranchPermalinkBenchmark {
+
+	@Param({ "10", "1000", "10000" })
+	public int builds;
+
+	private SyntheticJobs synthetic;
+	private Job<?, ?> job;
+	private Run<?, ?> oldest;
+
+	@Setup
+	public void setUp() throws IOException {
+		synthetic = new SyntheticJobs(1, builds);
+		job = synthetic.getJobs().get(0);
+		oldest = job.getBuildByNumber(1);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		synthetic.delete();
+	}
+
+	@Benchmark
+	public Run<?, ?> resolve() {
+		return LastBranchPermalink.INSTANCE.resolve(job);
+	}
+
+	@Benchmark
+	public boolean apply() {
+		return ((LastBranchPermalink) LastBranchPermalink.INSTANCE).apply(oldest);
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.model.Job;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Lookup of the recent branch builds, as done by the dashboard portlet on a
+ * cache miss and by the branch history API.
+ *
+ * @author Iheb Khemissi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RecentBranchBuildsBenchmark {
+
+	@Param({ "10", "100", "1000" })
+	public int jobs;
+
+	@Param({ "10", "100", "1000" })
+	public int builds;
+
+	private SyntheticJobs synthetic;
+
+	@Setup
+	public void setUp() throws IOException {
+		synthetic = new SyntheticJobs(jobs, builds);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		synthetic.delete();
+	}
+
+	@Benchmark
+	public List<RecentBranchBuilds.Entry> portletPage() {
+		return RecentBranchBuilds.newest(synthetic.getJobs(), 20);
+	}
+
+	@Benchmark
+	public void historyPage(Blackhole bh) {
+		List<Job<?, ?>> list = synthetic.getJobs();
+		Iterator<RecentBranchBuilds.Entry> it = RecentBranchBuilds.iterate(list, null);
+		for (int i = 0; i < 50 && it.hasNext(); i++) {
+			bh.consume(it.next());
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Synthetic jobs whose branch history lives in a temporary directory.
+ *
+ * <p>
+ * Each job gets a {@link BranchBuildIndex} file with the requested number of
+ * branch builds, one out of five failing, so that the benchmarks exercise the
+ * same code as a real Jenkins without loading one.
+ *
+ * @author Iheb Khemissi
+ */
+final class SyntheticJobs {
+
+	private final File root;
+	private final List<Job<?, ?>> jobs = new ArrayList<Job<?, ?>>();
+
+	SyntheticJobs(int jobCount, int buildsPerJob) throws IOException {
+		root = File.createTempFile("jobstreefactory-bench", "");
+		root.delete();
+		long now = System.currentTimeMillis();
+		for (int j = 0; j < jobCount; j++) {
+			jobs.add(createJob("job-" + j, buildsPerJob, now - j * 1000L));
+		}
+		// loads the indexes once, as they would be on a running Jenkins
+		for (Job<?, ?> job : jobs) {
+			BranchBuildIndex.of(job);
+		}
+	}
+
+	List<Job<?, ?>> getJobs() {
+		return jobs;
+	}
+
+	void delete() throws IOException {
+		FileUtils.deleteDirectory(root);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Job<?, ?> createJob(String name, int builds, long newest) throws IOException {
+		File dir = new File(root, name);
+		dir.mkdirs();
+		Writer writer = new OutputStreamWriter(new FileOutputStream(new File(dir, BranchBuildIndex.FILE_NAME)), "UTF-8");
+		try {
+			for (int number = 1; number <= builds; number++) {
+				Result result = number % 5 == 0 ? Result.FAILURE : Result.SUCCESS;
+				long timestamp = newest - (builds - number) * 3600000L;
+				writer.write("+\t" + number + '\t' + timestamp + '\t' + result + "\t1." + number + "\tbranch-" + number + "\tuser\n");
+			}
+		} finally {
+			IOUtils.closeQuietly(writer);
+		}
+
+		Job job = mock(Job.class);
+		when(job.getRootDir()).thenReturn(dir);
+		when(job.getFullName()).thenReturn(name);
+		when(job.getName()).thenReturn(name);
+		for (int number = 1; number <= builds; number++) {
+			Run run = mock(Run.class);
+			when(run.getNumber()).thenReturn(number);
+			when(run.getParent()).thenReturn(job);
+			when(run.isBuilding()).thenReturn(false);
+			when(job.getBuildByNumber(number)).thenReturn(run);
+		}
+		return job;
+	}
+}
@@ -23,26 +23,21 @@
  */
 package org.jenkinsci.plugins.jobstreefactory;
 
+import hudson.FilePath;
 import hudson.maven.MavenModule;
 import hudson.maven.MavenModuleSet;
-import hudson.model.ParameterValue;
-import hudson.model.Hudson;
+import hudson.maven.MavenModuleSetBuild;
 import hudson.model.ParameterDefinition;
-import hudson.model.ParametersAction;
 import hudson.model.ParametersDefinitionProperty;
-import hudson.model.PasswordParameterValue;
 import hudson.model.PermalinkProjectAction;
-import hudson.model.StringParameterValue;
+import hudson.model.queue.QueueTaskFuture;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.TreeMap;
 
 import javax.servlet.ServletException;
 
@@ -50,8 +45,6 @@ import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
 import org.apache.commons.lang.StringUtils;
-import org.apache.maven.shared.release.versions.DefaultVersionInfo;
-import org.apache.maven.shared.release.versions.VersionParseException;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
@@ -69,6 +62,7 @@ public class BranchAction implements PermalinkProjectAction {
 	private boolean selectCustomScmCommentPrefix;
 	private boolean selectAppendHudsonUsername;
 	private boolean selectScmCredentials;
+	private volatile BranchVersions versions;
 
 	public BranchAction(MavenModuleSet project, boolean selectCustomScmCommentPrefix, boolean selectAppendHudsonUsername, boolean selectScmCredentials) {
 		this.project = project;
@@ -134,62 +128,34 @@ public class BranchAction implements PermalinkProjectAction {
 		return project.getRootModule();
 	}
 
+	/**
+	 * Gets the versions derived from the root module, computed once per
+	 * version of the root module.
+	 */
+	public BranchVersions getVersions() {
+		BranchVersions v = BranchVersions.of(getRootModule(), versions);
+		versions = v;
+		return v;
+	}
+
 	public String computeBranchVersion() {
-		String version = "NaN";
-		final MavenModule rootModule = getRootModule();
-		if (rootModule != null && StringUtils.isNotBlank(rootModule.getVersion())) {
-			try {
-				DefaultVersionInfo dvi = new DefaultVersionInfo(rootModule.getVersion());
-				version = dvi.getReleaseVersionString();
-			} catch (VersionParseException vpEx) {
-				Logger logger = Logger.getLogger(this.getClass().getName());
-				logger.log(Level.WARNING, "Failed to compute next version.", vpEx);
-				version = rootModule.getVersion().replace("-SNAPSHOT", "");
-			}
-		}
-		return version;
+		return getVersions().getBranchVersion();
 	}
         
         public String getCurrentVersion() {
-                String version = "NaN-SNAPSHOT";
-                final MavenModule rootModule = getRootModule();
-                if (rootModule != null && StringUtils.isNotBlank(rootModule.getVersion())) {
-                        return rootModule.getVersion();
-                }
-                return version;
+                return getVersions().getCurrentVersion();
         }
         
         public String computeNextVersion() {
-                String version = "NaN-SNAPSHOT";
-                final MavenModule rootModule = getRootModule();
-                if (rootModule != null && StringUtils.isNotBlank(rootModule.getVersion())) {
-                        try {
-                                DefaultVersionInfo dvi = new DefaultVersionInfo(rootModule.getVersion());
-                                version = dvi.getNextVersion().getSnapshotVersionString();
-                        } catch (Exception vpEx) {
-                                Logger logger = Logger.getLogger(this.getClass().getName());
-                                logger.log(Level.WARNING, "Failed to compute next version.", vpEx);
-                        }
-                }
-                return version;
+                return getVersions().getNextVersion();
         }
 
 	public String computeRepoDescription() {
-		StringBuilder sb = new StringBuilder();
-		sb.append(project.getRootModule().getName());
-		sb.append(':');
-		sb.append(computeBranchVersion());
-		return sb.toString();
+		return getVersions().getRepoDescription();
 	}
 
 	public String computeScmTag() {
-		// maven default is artifact-version
-		String artifactId = getRootModule() == null ? "JOBSTREEFACTORY-TAG" : getRootModule().getModuleName().artifactId;
-		StringBuilder sb = new StringBuilder();
-		sb.append(artifactId);
-		sb.append('-');
-		sb.append(computeBranchVersion());
-		return sb.toString();
+		return getVersions().getScmTag();
 	}
         
         public String getDefaultSCMBranchBase() {
@@ -199,8 +165,116 @@ public class BranchAction implements PermalinkProjectAction {
 
 	public void doSubmit(StaplerRequest req, StaplerResponse resp) throws IOException, ServletException {
 		BranchBuildWrapper.checkBranchPermission(project);
-		BranchBuildWrapper m2Wrapper = project.getBuildWrappersList().get(BranchBuildWrapper.class);
 
+		long start = BranchMetrics.SUBMIT.start();
+		try {
+			BranchRequest request = parseRequest(req);
+			request.planModuleVersions();
+
+			// TODO make this nicer by showing a html error page.
+			// this will throw an exception so control will terminate if the dev
+			// version is not a "SNAPSHOT".
+			request.validate();
+
+			QueueTaskFuture<MavenModuleSetBuild> future;
+			try {
+				// identical requests pending for this job are merged into one build
+				future = request.schedule();
+			} catch (BranchRequestQueue.ConflictException e) {
+				req.setAttribute("conflict", e.getMessage()); //$NON-NLS-1$
+				req.getView(this, "conflict.jelly").forward(req, resp); //$NON-NLS-1$
+				return;
+			}
+
+			if (future != null) {
+				resp.sendRedirect(req.getContextPath() + '/' + project.getUrl());
+			} else {
+				BranchMetrics.SUBMIT_FAILURES.increment();
+				// redirect to error page.
+				// TODO try and get this to go back to the form page with an
+				// error at the top.
+				resp.sendRedirect(req.getContextPath() + '/' + project.getUrl() + '/' + getUrlName() + "/failed");
+			}
+		} finally {
+			BranchMetrics.SUBMIT.stop(start);
+		}
+	}
+
+	/**
+	 * Accepts the branch request submitted by the form without waiting for it
+	 * to be scheduled, answering <code>202 Accepted</code> with the URL where
+	 * its progress is reported.
+	 */
+	public void doSubmitAsync(StaplerRequest req, StaplerResponse resp) throws IOException, ServletException {
+		BranchBuildWrapper.checkBranchPermission(project);
+
+		// only the form is read here, the versions are planned and checked in the background
+		BranchSubmission submission = BranchSubmission.submit(parseRequest(req));
+
+		String url = req.getContextPath() + '/' + project.getUrl() + getUrlName() + "/submission/" + submission.getId() + '/'; //$NON-NLS-1$
+		JSONObject json = new JSONObject();
+		json.put("id", submission.getId()); //$NON-NLS-1$
+		json.put("status", url); //$NON-NLS-1$
+		resp.setStatus(StaplerResponse.SC_ACCEPTED);
+		resp.setHeader("Location", url); //$NON-NLS-1$
+		resp.setContentType("application/json;charset=UTF-8"); //$NON-NLS-1$
+		resp.getWriter().print(json.toString());
+	}
+
+	/**
+	 * Binds the asynchronous submissions of this job to
+	 * <code>submission/ID/</code>.
+	 */
+	public BranchSubmission getSubmission(String id) {
+		BranchSubmission submission = BranchSubmission.get(id);
+		if (submission == null || submission.getRequest().getProject() != project) {
+			return null;
+		}
+		return submission;
+	}
+
+	/**
+	 * Reports as JSON the POM changes a branch with the given release version
+	 * would make, reading the POMs of the last workspace of the job without
+	 * changing them.
+	 */
+	public void doPreview(StaplerRequest req, StaplerResponse resp) throws IOException, InterruptedException {
+		BranchBuildWrapper.checkBranchPermission(project);
+
+		JSONObject json = new JSONObject();
+		FilePath workspace = project.getSomeWorkspace();
+		if (workspace == null || !workspace.exists()) {
+			json.put("error", "The job has no workspace yet, build it once to preview the changes"); //$NON-NLS-1$
+		} else {
+			BranchArgumentsAction args = new BranchArgumentsAction();
+			args.setReleaseVersion(StringUtils.defaultString(StringUtils.trimToNull(req.getParameter("releaseVersion")), computeBranchVersion())); //$NON-NLS-1$
+			Map<String, String> moduleReleaseVersions = new TreeMap<String, String>();
+			BranchVersions.planModules(project.getModules(), project.getRootModule(), moduleReleaseVersions, new TreeMap<String, String>());
+			args.setModuleReleaseVersions(moduleReleaseVersions);
+
+			FilePath root = project.getScm().getModuleRoot(workspace, null);
+			List<PomVersionRewriter.Change> changes = root.act(new PomVersionRewriter(NativeBranchEngine.getBranchVersions(project, args),
+					NativeBranchEngine.getPoms(project), true));
+			JSONArray array = new JSONArray();
+			for (PomVersionRewriter.Change change : changes) {
+				JSONObject o = new JSONObject();
+				o.put("pom", change.getPom()); //$NON-NLS-1$
+				o.put("line", change.getLine()); //$NON-NLS-1$
+				o.put("element", change.getElement()); //$NON-NLS-1$
+				o.put("oldVersion", change.getOldVersion()); //$NON-NLS-1$
+				o.put("newVersion", change.getNewVersion()); //$NON-NLS-1$
+				array.add(o);
+			}
+			json.put("changes", array); //$NON-NLS-1$
+		}
+		resp.setContentType("application/json;charset=UTF-8"); //$NON-NLS-1$
+		resp.getWriter().print(json.toString());
+	}
+
+	/**
+	 * Creates the branch request submitted by the form.
+	 */
+	BranchRequest parseRequest(StaplerRequest req) throws IOException, ServletException {
 		// JSON collapses everything in the dynamic specifyVersions section so
 		// we need to fall back to
 		// good old http...
@@ -221,14 +295,18 @@ public class BranchAction implements PermalinkProjectAction {
 		final String developmentVersion = getString("developmentVersion", httpParams); //$NON-NLS-1$
                 final String branchName = getString("branchName", httpParams); //$NON-NLS-1$
 
-		// TODO make this nicer by showing a html error page.
-		// this will throw an exception so control will terminate if the dev
-		// version is not a "SNAPSHOT".
-		enforceDeveloperVersion(developmentVersion);
+		BranchRequest request = new BranchRequest(project);
+		request.setReleaseVersion(releaseVersion);
+		request.setDevelopmentVersion(developmentVersion);
+		request.setBranchName(branchName);
+		request.setBranchBase(branchBase);
+		request.setScmUsername(scmUsername);
+		request.setScmPassword(scmPassword);
+		request.setScmCommentPrefix(scmCommentPrefix);
+		request.setAppendHusonUserName(appendHusonUserName);
 
 		// get the normal job parameters (adapted from
 		// hudson.model.ParametersDefinitionProperty._doBuild(StaplerRequest, StaplerResponse))
-		List<ParameterValue> values = new ArrayList<ParameterValue>();
 		JSONObject formData = req.getSubmittedForm();
 		JSONArray a = JSONArray.fromObject(formData.get("parameter"));
 		for (Object o : a) {
@@ -241,52 +319,12 @@ public class BranchAction implements PermalinkProjectAction {
 						if (d == null) {
 							throw new IllegalArgumentException("No such parameter definition: " + name);
 						}
-						ParameterValue parameterValue = d.createValue(req, jo);
-						values.add(parameterValue);
+						request.addParameter(d.createValue(req, jo));
 					}
 				}
 			}
 		}
-
-		// if configured, expose the SCM credentails as additional parameters
-		if (StringUtils.isNotBlank(m2Wrapper.getScmPasswordEnvVar())) {
-			String scmPasswordVal = StringUtils.isEmpty(scmPassword) ? "" : scmPassword;
-			values.add(new PasswordParameterValue(m2Wrapper.getScmPasswordEnvVar(), scmPasswordVal));
-		}
-		if (StringUtils.isNotBlank(m2Wrapper.getScmUserEnvVar())) {
-			String scmUsernameVal = StringUtils.isEmpty(scmUsername) ? "" : scmUsername;
-			values.add(new StringParameterValue(m2Wrapper.getScmUserEnvVar(), scmUsernameVal));
-		}
-		values.add(new StringParameterValue(BranchBuildWrapper.DescriptorImpl.DEFAULT_RELEASE_VERSION_ENVVAR, releaseVersion));
-		values.add(new StringParameterValue(BranchBuildWrapper.DescriptorImpl.DEFAULT_DEV_VERSION_ENVVAR, developmentVersion));
-
-		// schedule release build
-		ParametersAction parameters = new ParametersAction(values);
-
-		BranchArgumentsAction arguments = new BranchArgumentsAction();
-
-		arguments.setReleaseVersion(releaseVersion);
-		arguments.setDevelopmentVersion(developmentVersion);
-                arguments.setBranchName(branchName);
-                arguments.setBranchBase(branchBase);
-		// TODO - re-implement versions on specific modules.
-
-		arguments.setRepoDescription("");
-		arguments.setScmUsername(scmUsername);
-		arguments.setScmPassword(scmPassword);
-		arguments.setScmCommentPrefix(scmCommentPrefix);
-		arguments.setAppendHusonUserName(appendHusonUserName);
-		arguments.setHudsonUserName(Hudson.getAuthentication().getName());
-
-		
-		if (project.scheduleBuild(0, new BranchReason(), parameters, arguments)) {
-			resp.sendRedirect(req.getContextPath() + '/' + project.getUrl());
-		} else {
-			// redirect to error page.
-			// TODO try and get this to go back to the form page with an
-			// error at the top.
-			resp.sendRedirect(req.getContextPath() + '/' + project.getUrl() + '/' + getUrlName() + "/failed");
-		}
+		return request;
 	}
 
 	/**
@@ -313,19 +351,5 @@ public class BranchAction implements PermalinkProjectAction {
 		return (String) (((Object[]) httpParams.get(key))[0]);
 	}
 
-	/**
-	 * Enforces that the developer version is actually a developer version and
-	 * ends with "-SNAPSHOT".
-	 * 
-	 * @throws IllegalArgumentException
-	 *             if the version does not end with "-SNAPSHOT"
-	 */
-	private void enforceDeveloperVersion(String version) throws IllegalArgumentException {
-		if (!version.endsWith("-SNAPSHOT")) {
-			throw new IllegalArgumentException(String.format(Locale.ENGLISH, "Developer Version (%s) is not a valid version (it must end with \"-SNAPSHOT\")",
-					version));
-		}
-	}
-
 	private static final List<Permalink> PERMALINKS = Collections.singletonList(LastBranchPermalink.INSTANCE);
 }
@@ -25,7 +25,9 @@ package org.jenkinsci.plugins.jobstreefactory;
 
 import hudson.model.Action;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -54,6 +56,15 @@ public class BranchArgumentsAction implements Action {
 	 */
 	private Map<String, String> moduledevelopmentVersions = null;
 
+	/**
+	 * branch steps completed so far, including the ones of the build this one
+	 * resumes, in the order they completed
+	 */
+	private List<String> completedSteps = null;
+
+	/** number of the failed build this one resumes, 0 if it starts afresh */
+	private int resumedBuild = 0;
+
 	private transient String repoDescription;
 
 	private transient String scmUsername;
@@ -116,6 +127,9 @@ public class BranchArgumentsAction implements Action {
 	}
 
 	public Map<String, String> getModuleReleaseVersions() {
+		if (moduleReleaseVersions == null) {
+			return Collections.emptyMap();
+		}
 		return Collections.unmodifiableMap(moduleReleaseVersions);
 	}
 
@@ -124,6 +138,9 @@ public class BranchArgumentsAction implements Action {
 	}
 
 	public Map<String, String> getModuledevelopmentVersions() {
+		if (moduledevelopmentVersions == null) {
+			return Collections.emptyMap();
+		}
 		return Collections.unmodifiableMap(moduledevelopmentVersions);
 	}
 
@@ -171,6 +188,52 @@ public class BranchArgumentsAction implements Action {
 		this.appendHusonUserName = appendHusonUserName;
 	}
 
+	/**
+	 * Gets the branch steps completed so far, oldest first.
+	 */
+	public synchronized List<String> getCompletedSteps() {
+		if (completedSteps == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(new ArrayList<String>(completedSteps));
+	}
+
+	public synchronized void setCompletedSteps(List<String> completedSteps) {
+		this.completedSteps = completedSteps.isEmpty() ? null : new ArrayList<String>(completedSteps);
+	}
+
+	/**
+	 * Records that a branch step completed, once.
+	 */
+	public synchronized void addCompletedStep(String step) {
+		if (completedSteps == null) {
+			completedSteps = new ArrayList<String>();
+		}
+		if (!completedSteps.contains(step)) {
+			completedSteps.add(step);
+		}
+	}
+
+	public synchronized boolean isStepCompleted(String step) {
+		return completedSteps != null && completedSteps.contains(step);
+	}
+
+	/**
+	 * Whether this build continues a failed branch build instead of starting
+	 * afresh.
+	 */
+	public boolean isResume() {
+		return resumedBuild > 0;
+	}
+
+	public int getResumedBuild() {
+		return resumedBuild;
+	}
+
+	public void setResumedBuild(int resumedBuild) {
+		this.resumedBuild = resumedBuild;
+	}
+
 	public String getHudsonUserName() {
 		return hudsonUserName;
 	}
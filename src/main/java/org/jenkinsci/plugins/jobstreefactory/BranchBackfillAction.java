@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+
+import java.io.IOException;
+
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Starts, cancels and reports the {@link BranchIndexBackfill} at
+ * <code>jobstreefactory-backfill/</code>: <code>start</code> resumes the last
+ * backfill, or starts over with <code>restart=true</code>, and the index
+ * reports the progress as JSON.
+ *
+ * @author Iheb Khemissi
+ */
+@Extension
+public class BranchBackfillAction implements RootAction {
+
+	public String getIconFileName() {
+		// API only
+		return null;
+	}
+
+	public String getDisplayName() {
+		return "Jobs Tree Factory branch index backfill";
+	}
+
+	public String getUrlName() {
+		return "jobstreefactory-backfill"; //$NON-NLS-1$
+	}
+
+	public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		writeProgress(BranchIndexBackfill.getCurrent(), rsp);
+	}
+
+	public void doStart(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		if (!"POST".equals(req.getMethod())) { //$NON-NLS-1$
+			rsp.sendError(StaplerResponse.SC_METHOD_NOT_ALLOWED);
+			return;
+		}
+		BranchIndexBackfill backfill = BranchIndexBackfill.start(Boolean.parseBoolean(req.getParameter("restart"))); //$NON-NLS-1$
+		rsp.setStatus(StaplerResponse.SC_ACCEPTED);
+		writeProgress(backfill, rsp);
+	}
+
+	public void doCancel(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		if (!"POST".equals(req.getMethod())) { //$NON-NLS-1$
+			rsp.sendError(StaplerResponse.SC_METHOD_NOT_ALLOWED);
+			return;
+		}
+		BranchIndexBackfill backfill = BranchIndexBackfill.getCurrent();
+		if (backfill != null) {
+			backfill.cancel();
+		}
+		writeProgress(backfill, rsp);
+	}
+
+	static JSONObject toJson(BranchIndexBackfill backfill) {
+		JSONObject json = new JSONObject();
+		if (backfill == null) {
+			json.put("state", "none"); //$NON-NLS-1$ //$NON-NLS-2$
+			return json;
+		}
+		json.put("state", backfill.isFinished() ? (backfill.isCancelled() ? "cancelled" : "finished") : "running"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		json.put("jobsDone", backfill.getJobsDone()); //$NON-NLS-1$
+		json.put("jobsTotal", backfill.getJobsTotal()); //$NON-NLS-1$
+		json.put("buildsScanned", backfill.getBuildsScanned()); //$NON-NLS-1$
+		json.put("recordsAdded", backfill.getRecordsAdded()); //$NON-NLS-1$
+		json.put("maxBytesPerSecond", BranchIndexBackfill.MAX_BYTES_PER_SECOND); //$NON-NLS-1$
+		return json;
+	}
+
+	private static void writeProgress(BranchIndexBackfill backfill, StaplerResponse rsp) throws IOException {
+		rsp.setContentType("application/json;charset=UTF-8"); //$NON-NLS-1$
+		rsp.getWriter().print(toJson(backfill).toString());
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.args4j.Option;
+
+/**
+ * Starts the {@link BranchIndexBackfill} from the command line, e.g.
+ * <code>java -jar jenkins-cli.jar branch-backfill -wait</code>.
+ *
+ * @author Iheb Khemissi
+ */
+@Extension
+public class BranchBackfillCommand extends CLICommand {
+
+	@Option(name = "-restart", usage = "Start over instead of resuming the last backfill")
+	public boolean restart;
+
+	@Option(name = "-wait", usage = "Wait for the backfill to complete, printing its progress")
+	public boolean waitForCompletion;
+
+	@Option(name = "-cancel", usage = "Cancel the running backfill, keeping its progress")
+	public boolean cancel;
+
+	@Override
+	public String getShortDescription() {
+		return "Fills the branch index of the jobs from their build records";
+	}
+
+	@Override
+	protected int run() throws Exception {
+		Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+		if (cancel) {
+			BranchIndexBackfill backfill = BranchIndexBackfill.getCurrent();
+			if (backfill != null) {
+				backfill.cancel();
+			}
+			stdout.println(BranchBackfillAction.toJson(backfill));
+			return 0;
+		}
+		BranchIndexBackfill backfill = BranchIndexBackfill.start(restart);
+		while (waitForCompletion && !backfill.isFinished()) {
+			stdout.println(backfill.getProgress());
+			Thread.sleep(5000);
+		}
+		stdout.println(BranchBackfillAction.toJson(backfill));
+		return 0;
+	}
+}
@@ -0,0 +1,510 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.ExtensionPoint;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.util.AtomicFileWriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Append-only index of the branch builds of a single job.
+ *
+ * <p>
+ * The index lives next to the job configuration in {@value #FILE_NAME}, one
+ * line per event: <code>+</code> lines record a completed branch build and
+ * <code>-</code> lines record its deletion. It is kept up to date by
+ * {@link BranchBuildIndexListener} so that the portlet, the permalink and the
+ * list view column never need to walk the run history.
+ *
+ * <p>
+ * A job without an index gets it filled from its build records, without
+ * holding the index meanwhile: until then it only lists the builds found so
+ * far. A <code>*</code> line marks an index that is still being filled, so
+ * that an interrupted fill is taken over the next time the index is loaded.
+ *
+ * @author Iheb Khemissi
+ */
+public final class BranchBuildIndex {
+
+	private static final Logger LOGGER = Logger.getLogger(BranchBuildIndex.class.getName());
+
+	static final String FILE_NAME = "jobstreefactory-branches.log"; //$NON-NLS-1$
+
+	private static final char ADDED = '+';
+	private static final char DELETED = '-';
+	private static final char PARTIAL = '*';
+	private static final char SEPARATOR = '\t';
+
+	/**
+	 * Once the file holds that many lines more than live records it is
+	 * rewritten from the in-memory state.
+	 */
+	private static final int COMPACTION_THRESHOLD = 256;
+
+	/** Number of builds read between two saves of an index being filled. */
+	private static final int FILL_BATCH = 200;
+
+	private static final Map<Job<?, ?>, BranchBuildIndex> INDEXES = new WeakHashMap<Job<?, ?>, BranchBuildIndex>();
+
+	/** <code>null</code> for the empty index of a job that is not indexed. */
+	private final File file;
+
+	private final WeakReference<Job<?, ?>> job;
+
+	/** Live records by build number, guarded by <code>this</code>. */
+	private TreeMap<Integer, BranchBuildRecord> records;
+
+	/** Immutable snapshot of {@link #records}, newest first, guarded by <code>this</code>. */
+	private List<BranchBuildRecord> newestFirst;
+
+	/** Number of lines in {@link #file}, guarded by <code>this</code>. */
+	private int lines;
+
+	/** Whether the builds are not all indexed yet, guarded by <code>this</code>. */
+	private boolean partial;
+
+	/** Whether a thread is filling the index, guarded by <code>this</code>. */
+	private boolean filling;
+
+	/** Builds deleted while the index is filled, guarded by <code>this</code>. */
+	private final Set<Integer> deletedWhileFilling = new HashSet<Integer>();
+
+	private BranchBuildIndex(File file, Job<?, ?> job) {
+		this.file = file;
+		this.job = new WeakReference<Job<?, ?>>(job);
+	}
+
+	/**
+	 * Gets the index of the given job, loading it on first use. If the job has
+	 * no index yet, it is filled from the build records first.
+	 *
+	 * <p>
+	 * Only the jobs configured for branch builds are indexed: any other job
+	 * gets the index it was given while it was one, never filled, or an empty
+	 * index that is never saved.
+	 */
+	public static BranchBuildIndex of(Job<?, ?> job) {
+		if (!BranchBuildWrapper.isBranchJob(job)) {
+			if (!new File(job.getRootDir(), FILE_NAME).exists()) {
+				BranchBuildIndex empty = new BranchBuildIndex(null, job);
+				empty.records = new TreeMap<Integer, BranchBuildRecord>();
+				return empty;
+			}
+			return open(job);
+		}
+		BranchBuildIndex index = open(job);
+		if (index.startFilling()) {
+			boolean completed = false;
+			try {
+				// first use of the index for this job: scan the build records once, without loading the builds
+				List<BranchBuildRecord> batch = new ArrayList<BranchBuildRecord>();
+				for (File dir : BuildXmlScanner.listBuildDirs(job)) {
+					BranchBuildRecord record = BuildXmlScanner.read(dir, null);
+					if (record != null) {
+						batch.add(record);
+					}
+					if (batch.size() == FILL_BATCH) {
+						index.fill(batch);
+						batch.clear();
+					}
+				}
+				index.fill(batch);
+				completed = true;
+			} finally {
+				index.stopFilling(completed);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Gets the index of the given job, loading it from its file on first use,
+	 * but leaving it to the caller to fill it when {@link #startFilling()}
+	 * says so.
+	 */
+	static BranchBuildIndex open(Job<?, ?> job) {
+		File file = new File(job.getRootDir(), FILE_NAME);
+		BranchBuildIndex index;
+		synchronized (INDEXES) {
+			index = INDEXES.get(job);
+			// a renamed job moves its root directory along with the index
+			if (index == null || !index.file.equals(file)) {
+				index = new BranchBuildIndex(file, job);
+				INDEXES.put(job, index);
+			}
+		}
+		index.load();
+		return index;
+	}
+
+	/**
+	 * Gets all the branch builds of the job, the most recent first.
+	 *
+	 * @return an unmodifiable snapshot that is not affected by later updates.
+	 */
+	public synchronized List<BranchBuildRecord> getRecords() {
+		if (newestFirst == null) {
+			List<BranchBuildRecord> list = new ArrayList<BranchBuildRecord>(records.values());
+			Collections.sort(list, BranchBuildRecord.NEWEST_FIRST);
+			newestFirst = Collections.unmodifiableList(list);
+		}
+		return newestFirst;
+	}
+
+	/**
+	 * Gets the record of the given build.
+	 *
+	 * @return <code>null</code> if that build is not a known branch build.
+	 */
+	public synchronized BranchBuildRecord get(int number) {
+		return records.get(number);
+	}
+
+	/**
+	 * Gets the last successful branch build.
+	 *
+	 * @return <code>null</code> if there is none.
+	 */
+	public synchronized BranchBuildRecord getLastSuccessful() {
+		for (BranchBuildRecord record : records.descendingMap().values()) {
+			if (record.isSuccess()) {
+				return record;
+			}
+		}
+		return null;
+	}
+
+	public synchronized boolean isEmpty() {
+		return records.isEmpty();
+	}
+
+	/**
+	 * Records a completed branch build.
+	 */
+	public synchronized void add(BranchBuildRecord record) {
+		records.put(record.getNumber(), record);
+		newestFirst = null;
+		append(format(record));
+	}
+
+	/**
+	 * Tells if the builds of the job are not all indexed yet.
+	 */
+	public synchronized boolean isPartial() {
+		return partial;
+	}
+
+	/**
+	 * Claims the filling of a partial index for the caller, who must then
+	 * {@link #fill} it and call {@link #stopFilling(boolean)} in any case.
+	 *
+	 * @return <code>false</code> if the index is complete, or another thread
+	 *         is already filling it.
+	 */
+	synchronized boolean startFilling() {
+		if (!partial || filling) {
+			return false;
+		}
+		filling = true;
+		if (!file.exists()) {
+			// mark the index as partial on disk before anything gets appended
+			compact();
+		}
+		return true;
+	}
+
+	/**
+	 * Adds builds read from the build records while filling the index, unless
+	 * they were deleted meanwhile, and saves the index.
+	 *
+	 * @return the number of records added.
+	 */
+	int fill(Collection<BranchBuildRecord> scanned) {
+		int changed = 0;
+		synchronized (this) {
+			for (BranchBuildRecord record : scanned) {
+				// the listener knows better than the build records
+				if (!deletedWhileFilling.contains(record.getNumber()) && !records.containsKey(record.getNumber())) {
+					records.put(record.getNumber(), record);
+					changed++;
+				}
+			}
+			if (changed > 0) {
+				newestFirst = null;
+				compact();
+			}
+		}
+		if (changed > 0) {
+			fireChanged();
+		}
+		return changed;
+	}
+
+	/**
+	 * Ends the filling of the index.
+	 *
+	 * @param completed
+	 *            whether all the build records were read, otherwise the index
+	 *            stays partial for the next load to take over.
+	 */
+	synchronized void stopFilling(boolean completed) {
+		filling = false;
+		if (completed) {
+			partial = false;
+			deletedWhileFilling.clear();
+			compact();
+		}
+	}
+
+	/**
+	 * Adds the records read by a {@link BranchIndexBackfill}, and completes
+	 * the known records missing the branch name, the user or the duration.
+	 *
+	 * @return the number of records added or completed.
+	 */
+	public int merge(Collection<BranchBuildRecord> scanned) {
+		int changed = doMerge(scanned);
+		if (changed > 0) {
+			fireChanged();
+		}
+		return changed;
+	}
+
+	private synchronized int doMerge(Collection<BranchBuildRecord> scanned) {
+		int changed = 0;
+		for (BranchBuildRecord record : scanned) {
+			BranchBuildRecord known = records.get(record.getNumber());
+			if (known == null) {
+				records.put(record.getNumber(), record);
+				changed++;
+			} else if ((known.getBranchName() == null && record.getBranchName() != null)
+					|| (known.getUserName() == null && record.getUserName() != null)
+					|| (known.getDuration() == 0 && record.getDuration() != 0)) {
+				// the listener recorded the build, only fill in what it missed
+				records.put(known.getNumber(), new BranchBuildRecord(known.getNumber(), known.getTimestamp(),
+						known.getDuration() != 0 ? known.getDuration() : record.getDuration(), known.getResult(),
+						known.getVersionNumber() != null ? known.getVersionNumber() : record.getVersionNumber(),
+						known.getBranchName() != null ? known.getBranchName() : record.getBranchName(),
+						known.getUserName() != null ? known.getUserName() : record.getUserName()));
+				changed++;
+			}
+		}
+		if (changed > 0) {
+			newestFirst = null;
+			compact();
+		}
+		return changed;
+	}
+
+	/**
+	 * Forgets a deleted build.
+	 */
+	public synchronized void remove(int number) {
+		if (filling) {
+			// the build records may still be read after the build was deleted
+			deletedWhileFilling.add(number);
+		}
+		if (records.remove(number) != null) {
+			newestFirst = null;
+			append(String.valueOf(DELETED) + SEPARATOR + number);
+		}
+	}
+
+	private synchronized void load() {
+		if (records != null) {
+			return;
+		}
+		records = new TreeMap<Integer, BranchBuildRecord>();
+		if (file.exists()) {
+			try {
+				read();
+				return;
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Failed to read " + file + ", rebuilding it from the build history", e);
+				records.clear();
+				lines = 0;
+			}
+		}
+		partial = true;
+	}
+
+	/**
+	 * Tells the {@link Listener}s that records were added outside of the
+	 * build events, without holding the index.
+	 */
+	private void fireChanged() {
+		Job<?, ?> owner = job.get();
+		if (owner == null) {
+			return;
+		}
+		LastBranchCache.invalidate(owner);
+		BranchStatistics.invalidate(owner);
+		Jenkins jenkins = Jenkins.getInstance();
+		if (jenkins != null) {
+			for (Listener listener : jenkins.getExtensionList(Listener.class)) {
+				listener.onChanged(owner);
+			}
+		}
+	}
+
+	private void read() throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines++;
+				if (line.length() > 0 && line.charAt(0) == PARTIAL) {
+					partial = true;
+					continue;
+				}
+				if (line.length() < 2) {
+					continue;
+				}
+				String[] fields = line.substring(2).split(String.valueOf(SEPARATOR), -1);
+				try {
+					if (line.charAt(0) == ADDED && fields.length >= 5) {
+						// the user and the duration were not recorded by the first versions of the index
+						BranchBuildRecord record = new BranchBuildRecord(Integer.parseInt(fields[0]), Long.parseLong(fields[1]),
+								fields.length > 6 ? Long.parseLong(fields[6]) : 0, Result.fromString(fields[2]), unescape(fields[3]),
+								unescape(fields[4]), fields.length > 5 ? unescape(fields[5]) : null);
+						records.put(record.getNumber(), record);
+					} else if (line.charAt(0) == DELETED) {
+						records.remove(Integer.parseInt(fields[0]));
+					}
+				} catch (NumberFormatException e) {
+					LOGGER.log(Level.FINE, "Skipping corrupted line in " + file + ": " + line, e);
+				}
+			}
+		} finally {
+			IOUtils.closeQuietly(reader);
+		}
+	}
+
+	private void append(String line) {
+		if (file == null) {
+			// the empty index of a job that is not indexed
+			return;
+		}
+		if (lines - records.size() > COMPACTION_THRESHOLD) {
+			compact();
+			return;
+		}
+		Writer writer = null;
+		try {
+			writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+			writer.write(line);
+			writer.write('\n');
+			lines++;
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to update " + file, e);
+		} finally {
+			IOUtils.closeQuietly(writer);
+		}
+	}
+
+	/** Rewrites the file with only the live records. */
+	private void compact() {
+		if (file == null) {
+			return;
+		}
+		try {
+			AtomicFileWriter writer = new AtomicFileWriter(file, "UTF-8");
+			try {
+				if (partial) {
+					writer.write(PARTIAL);
+					writer.write('\n');
+				}
+				for (BranchBuildRecord record : records.values()) {
+					writer.write(format(record));
+					writer.write('\n');
+				}
+				writer.commit();
+			} finally {
+				// no-op once committed
+				writer.abort();
+			}
+			lines = records.size() + (partial ? 1 : 0);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to write " + file, e);
+		}
+	}
+
+	private static String format(BranchBuildRecord record) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(ADDED).append(SEPARATOR);
+		sb.append(record.getNumber()).append(SEPARATOR);
+		sb.append(record.getTimestamp()).append(SEPARATOR);
+		sb.append(record.getResult()).append(SEPARATOR);
+		sb.append(escape(record.getVersionNumber())).append(SEPARATOR);
+		sb.append(escape(record.getBranchName())).append(SEPARATOR);
+		sb.append(escape(record.getUserName())).append(SEPARATOR);
+		sb.append(record.getDuration());
+		return sb.toString();
+	}
+
+	/**
+	 * Gets told when records were added to the index of a job by reading its
+	 * build records, which no build event reports.
+	 */
+	public abstract static class Listener implements ExtensionPoint {
+		public abstract void onChanged(Job<?, ?> job);
+	}
+
+	private static String escape(String value) {
+		if (value == null) {
+			return "";
+		}
+		return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+
+	private static String unescape(String value) {
+		return value.length() == 0 ? null : value;
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+/**
+ * Keeps the {@link BranchBuildIndex} and the {@link BranchStatistics} of each
+ * job in sync with its builds.
+ *
+ * <p>
+ * It runs ahead of the other listeners so that they already see the index
+ * updated.
+ *
+ * @author Iheb Khemissi
+ */
+@Extension(ordinal = 100)
+@SuppressWarnings("rawtypes")
+public class BranchBuildIndexListener extends RunListener<Run> {
+
+	@Override
+	public void onCompleted(Run run, TaskListener listener) {
+		BranchBuildRecord record = BranchBuildRecord.of(run);
+		if (record != null) {
+			BranchBuildIndex index = BranchBuildIndex.of(run.getParent());
+			// the statistics are seeded from the index, both have to change at once
+			synchronized (index) {
+				index.add(record);
+				BranchStatistics.completed(run.getParent(), record);
+			}
+			LastBranchCache.invalidate(run.getParent());
+		}
+	}
+
+	@Override
+	public void onDeleted(Run run) {
+		if (run.getAction(BranchBadgeAction.class) != null) {
+			BranchBuildIndex.of(run.getParent()).remove(run.getNumber());
+			LastBranchCache.invalidate(run.getParent());
+		}
+	}
+}
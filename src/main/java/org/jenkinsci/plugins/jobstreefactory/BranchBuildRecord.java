@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.Util;
+import hudson.model.Result;
+import hudson.model.Run;
+
+import java.util.Comparator;
+import java.util.Date;
+
+/**
+ * Compact, immutable summary of a completed branch build.
+ *
+ * <p>
+ * Records are kept in the {@link BranchBuildIndex} of their job so that views
+ * can list branch builds without loading the build records from disk.
+ *
+ * @author Iheb Khemissi
+ */
+public final class BranchBuildRecord {
+
+	/** Orders records from the most recent to the oldest one. */
+	public static final Comparator<BranchBuildRecord> NEWEST_FIRST = new Comparator<BranchBuildRecord>() {
+		public int compare(BranchBuildRecord o1, BranchBuildRecord o2) {
+			if (o1.timestamp != o2.timestamp) {
+				return o1.timestamp > o2.timestamp ? -1 : 1;
+			}
+			return o2.number - o1.number;
+		}
+	};
+
+	private final int number;
+	private final long timestamp;
+	private final long duration;
+	private final Result result;
+	private final String versionNumber;
+	private final String branchName;
+	private final String userName;
+
+	public BranchBuildRecord(int number, long timestamp, long duration, Result result, String versionNumber, String branchName,
+			String userName) {
+		this.number = number;
+		this.timestamp = timestamp;
+		this.duration = duration;
+		this.result = result;
+		this.versionNumber = versionNumber;
+		this.branchName = branchName;
+		this.userName = userName;
+	}
+
+	/**
+	 * Creates the record of a completed branch build.
+	 *
+	 * @return <code>null</code> if the run is not a branch build.
+	 */
+	public static BranchBuildRecord of(Run<?, ?> run) {
+		BranchBadgeAction badge = run.getAction(BranchBadgeAction.class);
+		if (badge == null) {
+			return null;
+		}
+		BranchArgumentsAction args = run.getAction(BranchArgumentsAction.class);
+		String branchName = args == null ? null : args.getBranchName();
+		BranchReason reason = run.getCause(BranchReason.class);
+		String userName = reason == null ? null : reason.getUserName();
+		return new BranchBuildRecord(run.getNumber(), run.getTimeInMillis(), run.getDuration(), run.getResult(), badge.getVersionNumber(),
+				branchName, userName);
+	}
+
+	public int getNumber() {
+		return number;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Gets how long the build took, in milliseconds.
+	 *
+	 * @return <code>0</code> for builds indexed before it was recorded.
+	 */
+	public long getDuration() {
+		return duration;
+	}
+
+	public Result getResult() {
+		return result;
+	}
+
+	public boolean isSuccess() {
+		return result == Result.SUCCESS;
+	}
+
+	/**
+	 * Gets the version number that was branched.
+	 *
+	 * @return Can be <code>null</code> for very legacy builds.
+	 */
+	public String getVersionNumber() {
+		return versionNumber;
+	}
+
+	/**
+	 * Gets the name of the created branch.
+	 *
+	 * @return Can be <code>null</code> for builds that did not record it.
+	 */
+	public String getBranchName() {
+		return branchName;
+	}
+
+	/**
+	 * Gets the name of the user who requested the branch.
+	 *
+	 * @return Can be <code>null</code> for builds indexed before it was recorded.
+	 */
+	public String getUserName() {
+		return userName;
+	}
+
+	/**
+	 * Same as {@link Run#getTimestampString()}.
+	 */
+	public String getTimestampString() {
+		return Util.getPastTimeString(System.currentTimeMillis() - timestamp);
+	}
+
+	/**
+	 * Same as {@link Run#getTimestampString2()}.
+	 */
+	public String getTimestampString2() {
+		return Util.XS_DATETIME_FORMATTER.format(new Date(timestamp));
+	}
+
+	@Override
+	public String toString() {
+		return "#" + number + " " + versionNumber + " (" + result + ")";
+	}
+}
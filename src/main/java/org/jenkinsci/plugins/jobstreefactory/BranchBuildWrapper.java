@@ -24,6 +24,7 @@
 package org.jenkinsci.plugins.jobstreefactory;
 
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Util;
 import hudson.maven.AbstractMavenProject;
@@ -37,6 +38,7 @@ import hudson.model.Result;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Descriptor;
+import hudson.model.Job;
 import hudson.model.Run;
 import hudson.security.Permission;
 import hudson.security.PermissionScope;
@@ -45,12 +47,17 @@ import hudson.tasks.BuildWrapperDescriptor;
 import hudson.tasks.Builder;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
 import jenkins.model.Jenkins;
 
 
 import net.sf.json.JSONObject;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
@@ -69,6 +76,14 @@ import org.slf4j.LoggerFactory;
 public class BranchBuildWrapper extends BuildWrapper {
 	
 	
+	/** Prefix of the steps recorded for the phases of <code>release:branch</code>. */
+	static final String MAVEN_STEP_PREFIX = "maven:"; //$NON-NLS-1$
+
+	private static final String RELEASE_PROPERTIES = "release.properties"; //$NON-NLS-1$
+
+	/** A <code>resume</code> property set by the configured goals. */
+	private static final Pattern RESUME_PROPERTY = Pattern.compile("(^|\\s)-Dresume(=\\S*)?(?=\\s|$)"); //$NON-NLS-1$
+
 	private transient Logger log = LoggerFactory.getLogger(BranchBuildWrapper.class);
 	
 	private String                        scmUserEnvVar                = "";
@@ -79,9 +94,15 @@ public class BranchBuildWrapper extends BuildWrapper {
 	public boolean                        selectCustomScmCommentPrefix = DescriptorImpl.DEFAULT_SELECT_CUSTOM_SCM_COMMENT_PREFIX;
 	public boolean                        selectAppendHudsonUsername   = DescriptorImpl.DEFAULT_SELECT_APPEND_HUDSON_USERNAME;
 	public boolean                        selectScmCredentials         = DescriptorImpl.DEFAULT_SELECT_SCM_CREDENTIALS;
+	private JobTreeFactory                jobTree                      = null;
+	private boolean                       nativeBranch                 = false;
+	private boolean                       cachedLocalRepository        = false;
+	private int                           workspacePoolSize            = 0;
+	private int                           nodeAffinityWait             = 0;
+	private String                        repositoryKey                = "";
 	
 	@DataBoundConstructor
-	public BranchBuildWrapper(String releaseGoals, boolean selectCustomScmCommentPrefix, boolean selectAppendHudsonUsername, boolean selectScmCredentials, String releaseEnvVar, String scmUserEnvVar, String scmPasswordEnvVar, int numberOfBranchesToKeep) {
+	public BranchBuildWrapper(String releaseGoals, boolean selectCustomScmCommentPrefix, boolean selectAppendHudsonUsername, boolean selectScmCredentials, String releaseEnvVar, String scmUserEnvVar, String scmPasswordEnvVar, int numberOfBranchesToKeep, JobTreeFactory jobTree, boolean nativeBranch, boolean cachedLocalRepository, int workspacePoolSize, int nodeAffinityWait, String repositoryKey) {
 		super();
 		this.releaseGoals = releaseGoals;
 		this.selectCustomScmCommentPrefix = selectCustomScmCommentPrefix;
@@ -90,6 +111,25 @@ public class BranchBuildWrapper extends BuildWrapper {
 		this.releaseEnvVar = releaseEnvVar;
 		this.scmUserEnvVar = scmUserEnvVar;
 		this.scmPasswordEnvVar = scmPasswordEnvVar;
+		this.jobTree = jobTree;
+		this.nativeBranch = nativeBranch;
+		this.cachedLocalRepository = cachedLocalRepository;
+		this.workspacePoolSize = workspacePoolSize;
+		this.nodeAffinityWait = nodeAffinityWait;
+		this.repositoryKey = repositoryKey;
+	}
+
+	@Override
+	public void preCheckout(@SuppressWarnings("rawtypes") AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException,
+	                                                                                                               InterruptedException {
+		if (!isReleaseBuild(build)) {
+			return;
+		}
+		if (workspacePoolSize > 0) {
+			// spares the full clone when the build has no workspace on its node yet
+			WorkspacePool.lease(build, listener);
+		}
+		BranchGovernor.checkoutStarted(build);
 	}
 
 
@@ -113,35 +153,37 @@ public class BranchBuildWrapper extends BuildWrapper {
 		}
 		
 		// we are a release build
-		BranchArgumentsAction args = build.getAction(BranchArgumentsAction.class);
-		StringBuilder buildGoals = new StringBuilder();
-
-		buildGoals.append("-DdevelopmentVersion=").append(args.getDevelopmentVersion()).append(' '); // current maven version
-		buildGoals.append("-DreleaseVersion=").append(args.getReleaseVersion()).append(' '); // new branch maven version
-                buildGoals.append("-DbranchName=").append(args.getBranchName()).append(' '); // new branch name
-
-		if (args.getScmUsername() != null) {
-			buildGoals.append("-Dusername=").append(args.getScmUsername()).append(' ');
-		}
-
-		if (args.getScmPassword() != null) {
-			buildGoals.append("-Dpassword=").append(args.getScmPassword()).append(' ');
-		}
-
-		if (args.getScmCommentPrefix() != null) {
-			buildGoals.append("\"-DscmCommentPrefix=");
-			buildGoals.append(args.getScmCommentPrefix());
-			if (args.isAppendHusonUserName()) {
-				buildGoals.append(String.format("(%s)", args.getHudsonUserName()));
+		BranchGovernor.checkoutCompleted(build);
+		long start = BranchMetrics.SET_UP.start();
+		try {
+			BranchArgumentsAction args = build.getAction(BranchArgumentsAction.class);
+			if (nativeBranch) {
+				MavenModuleSet mms = getModuleSet(build);
+				if (mms == null || !new NativeBranchEngine(build, launcher, listener).branch(mms, args)) {
+					// fails the build
+					return null;
+				}
+				build.addAction(new BranchArgumentInterceptorAction(NativeBranchEngine.NO_OP_GOALS));
+			} else {
+				writeModuleVersions(build, args, listener);
+				String goals = createGoals(args, getReleaseGoals());
+				if (workspacePoolSize > 0) {
+					// the release checkout clones the workspace instead of the remote, unless the release goals say otherwise
+					goals = "-DlocalCheckout=true " + goals; //$NON-NLS-1$
+				}
+				if (cachedLocalRepository) {
+					FilePath repository = LocalRepositoryCache.prepare(build, listener);
+					if (repository != null) {
+						goals = "\"-Dmaven.repo.local=" + repository.getRemote() + "\" " + goals; //$NON-NLS-1$ //$NON-NLS-2$
+					}
+				}
+				build.addAction(new BranchArgumentInterceptorAction(goals));
 			}
-			buildGoals.append("\" ");
+			build.addAction(new BranchBadgeAction(args.getReleaseVersion()));
+		} finally {
+			BranchMetrics.SET_UP.stop(start);
 		}
 
-		buildGoals.append(getReleaseGoals());
-
-		build.addAction(new BranchArgumentInterceptorAction(buildGoals.toString()));
-		build.addAction(new BranchBadgeAction(args.getReleaseVersion()));
-
 		return new Environment() {
 
 			@Override
@@ -154,6 +196,9 @@ public class BranchBuildWrapper extends BuildWrapper {
 
 			@Override
 			public boolean tearDown(@SuppressWarnings("rawtypes") AbstractBuild bld, BuildListener lstnr) throws IOException, InterruptedException {
+				if (!nativeBranch) {
+					recordCompletedPhase(bld, lstnr);
+				}
 				return true;
 			}
 
@@ -179,7 +224,116 @@ public class BranchBuildWrapper extends BuildWrapper {
 		};
 	}
 
-	
+	/**
+	 * Records the last phase <code>release:branch</code> completed, as found in
+	 * the <code>release.properties</code> it leaves behind when it fails.
+	 */
+	private static void recordCompletedPhase(AbstractBuild<?, ?> build, BuildListener listener) throws IOException, InterruptedException {
+		BranchArgumentsAction args = build.getAction(BranchArgumentsAction.class);
+		FilePath root = build.getModuleRoot();
+		FilePath releaseProperties = root == null ? null : root.child(RELEASE_PROPERTIES);
+		if (args == null || releaseProperties == null || !releaseProperties.exists()) {
+			return;
+		}
+		Properties properties = new Properties();
+		InputStream in = releaseProperties.read();
+		try {
+			properties.load(in);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		String phase = properties.getProperty("completedPhase"); //$NON-NLS-1$
+		if (phase != null) {
+			args.addCompletedStep(MAVEN_STEP_PREFIX + phase);
+			listener.getLogger().println("release:branch stopped after " + phase);
+		}
+	}
+
+	/**
+	 * Writes the versions of the modules not following the root module to the
+	 * <code>release.properties</code> <code>release:branch</code> reads, as
+	 * passing them on the command line overflows its length limit for large
+	 * reactors. The properties left by a failed build are kept.
+	 */
+	private static void writeModuleVersions(AbstractBuild<?, ?> build, BranchArgumentsAction args, BuildListener listener)
+			throws IOException, InterruptedException {
+		FilePath root = build.getModuleRoot();
+		Properties versions = getModuleVersionProperties(args);
+		if (root == null || versions.isEmpty()) {
+			return;
+		}
+		FilePath releaseProperties = root.child(RELEASE_PROPERTIES);
+		Properties properties = new Properties();
+		if (releaseProperties.exists()) {
+			InputStream in = releaseProperties.read();
+			try {
+				properties.load(in);
+			} finally {
+				IOUtils.closeQuietly(in);
+			}
+		}
+		properties.putAll(versions);
+		OutputStream out = releaseProperties.write();
+		try {
+			properties.store(out, null);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+		listener.getLogger().println("Wrote the versions of " + args.getModuleReleaseVersions().size() + " modules to " + RELEASE_PROPERTIES);
+	}
+
+	/**
+	 * Gets the <code>project.rel.</code> and <code>project.dev.</code>
+	 * properties of the modules not following the root module.
+	 */
+	static Properties getModuleVersionProperties(BranchArgumentsAction args) {
+		Properties properties = new Properties();
+		for (Map.Entry<String, String> version : args.getModuleReleaseVersions().entrySet()) {
+			properties.setProperty("project.rel." + version.getKey(), version.getValue()); //$NON-NLS-1$
+		}
+		for (Map.Entry<String, String> version : args.getModuledevelopmentVersions().entrySet()) {
+			properties.setProperty("project.dev." + version.getKey(), version.getValue()); //$NON-NLS-1$
+		}
+		return properties;
+	}
+
+	/**
+	 * Assembles the goals and properties of a branch build.
+	 */
+	static String createGoals(BranchArgumentsAction args, String releaseGoals) {
+		StringBuilder buildGoals = new StringBuilder();
+
+		buildGoals.append("-DdevelopmentVersion=").append(args.getDevelopmentVersion()).append(' '); // current maven version
+		buildGoals.append("-DreleaseVersion=").append(args.getReleaseVersion()).append(' '); // new branch maven version
+                buildGoals.append("-DbranchName=").append(args.getBranchName()).append(' '); // new branch name
+
+		// the modules not following the root module get their versions from release.properties, see writeModuleVersions
+		if (args.getScmUsername() != null) {
+			buildGoals.append("-Dusername=").append(args.getScmUsername()).append(' ');
+		}
+
+		if (args.getScmPassword() != null) {
+			buildGoals.append("-Dpassword=").append(args.getScmPassword()).append(' ');
+		}
+
+		if (args.getScmCommentPrefix() != null) {
+			buildGoals.append("\"-DscmCommentPrefix=");
+			buildGoals.append(args.getScmCommentPrefix());
+			if (args.isAppendHusonUserName()) {
+				buildGoals.append(String.format("(%s)", args.getHudsonUserName()));
+			}
+			buildGoals.append("\" ");
+		}
+
+		if (args.isResume()) {
+			// continue from the release.properties left by the failed build, whatever the configured goals say
+			releaseGoals = RESUME_PROPERTY.matcher(releaseGoals).replaceAll("").trim(); //$NON-NLS-1$
+			buildGoals.append("-Dresume=true "); //$NON-NLS-1$
+		}
+		buildGoals.append(releaseGoals);
+		return buildGoals.toString();
+	}
+
 	public boolean isSelectCustomScmCommentPrefix() {
 		return selectCustomScmCommentPrefix;
 	}
@@ -214,6 +368,13 @@ public class BranchBuildWrapper extends BuildWrapper {
 	}
 
 
+	/**
+	 * Tells if the given job is configured for branch builds.
+	 */
+	public static boolean isBranchJob(@SuppressWarnings("rawtypes") Job job) {
+		return job instanceof MavenModuleSet && ((MavenModuleSet) job).getBuildWrappersList().get(BranchBuildWrapper.class) != null;
+	}
+
 	public static boolean hasBranchPermission(@SuppressWarnings("rawtypes") AbstractProject job) {
 		return job.hasPermission(DescriptorImpl.CREATE_BRANCH);
 	}
@@ -235,6 +396,63 @@ public class BranchBuildWrapper extends BuildWrapper {
 		return scmPasswordEnvVar;
 	}
 	
+	/**
+	 * Whether branches are created directly with the SCM rather than by
+	 * running <code>release:branch</code>.
+	 */
+	public boolean isNativeBranch() {
+		return nativeBranch;
+	}
+
+	/**
+	 * Whether branch builds use a local repository of their own, seeded from
+	 * the one of the last successful build of the job.
+	 */
+	public boolean isCachedLocalRepository() {
+		return cachedLocalRepository;
+	}
+
+	/**
+	 * Gets the number of pre-cloned workspaces kept for the branch builds on
+	 * each node.
+	 * 
+	 * @return <code>0</code> if there is no pool.
+	 */
+	public int getWorkspacePoolSize() {
+		return workspacePoolSize;
+	}
+
+	/**
+	 * Gets how long, in seconds, a branch build waits in the queue for the
+	 * warmest node of the job before going to any node.
+	 * 
+	 * @return <code>0</code> if branch builds go to any node.
+	 * @see NodeAffinity
+	 */
+	public int getNodeAffinityWait() {
+		return nodeAffinityWait;
+	}
+
+	/**
+	 * Gets the name of the repository the branch builds of this job are
+	 * limited by.
+	 * 
+	 * @return blank if it is derived from the SCM configuration.
+	 * @see BranchGovernor
+	 */
+	public String getRepositoryKey() {
+		return repositoryKey;
+	}
+
+	/**
+	 * Gets how the jobs of a new branch are created.
+	 * 
+	 * @return <code>null</code> if no jobs are created for new branches.
+	 */
+	public JobTreeFactory getJobTree() {
+		return jobTree;
+	}
+
 	public String getReleaseGoals() {
 		return StringUtils.isBlank(releaseGoals) ? DescriptorImpl.DEFAULT_RELEASE_BRANCH_GOALS : releaseGoals;
 	}
@@ -294,7 +512,25 @@ public class BranchBuildWrapper extends BuildWrapper {
 		public static final boolean    DEFAULT_SELECT_APPEND_HUDSON_USERNAME    = false;
 		public static final boolean    DEFAULT_SELECT_SCM_CREDENTIALS           = false;	
 
+		public static final int        DEFAULT_LOCAL_REPOSITORY_CACHE_MAX_SIZE = 4096;
+		public static final int        DEFAULT_LOCAL_REPOSITORY_CACHE_MAX_AGE  = 30;
+
+		public static final int        DEFAULT_BRANCH_BUILDS_PER_REPOSITORY    = 1;
+
+		public static final String     DEFAULT_JOB_NAME_PATTERN  = JobTreeFactory.DEFAULT_JOB_NAME_PATTERN;
+		public static final String     DEFAULT_TEMPLATE_SCM_PATH = JobTreeFactory.DEFAULT_TEMPLATE_SCM_PATH;
+		public static final String     DEFAULT_BRANCH_SCM_PATH   = JobTreeFactory.DEFAULT_BRANCH_SCM_PATH;
+
                 private String  scmBranchBaseDefault = "";
+                private boolean warmUpOnStartup      = false;
+                /** in megabytes, for all the jobs of a node */
+                private int     localRepositoryCacheMaxSize = DEFAULT_LOCAL_REPOSITORY_CACHE_MAX_SIZE;
+                /** in days */
+                private int     localRepositoryCacheMaxAge  = DEFAULT_LOCAL_REPOSITORY_CACHE_MAX_AGE;
+                /** 0 for no limit */
+                private int     maxConcurrentBranchBuilds   = 0;
+                /** 0 for no limit */
+                private int     branchBuildsPerRepository   = DEFAULT_BRANCH_BUILDS_PER_REPOSITORY;
 
 		public DescriptorImpl() {
 			super(BranchBuildWrapper.class);
@@ -311,6 +547,11 @@ public class BranchBuildWrapper extends BuildWrapper {
                 public boolean configure(StaplerRequest staplerRequest, JSONObject json) throws FormException {
                         JSONObject globalConfParams = json.getJSONObject("globaljobstreefactory"); //$NON-NLS-1$
                         scmBranchBaseDefault = Util.fixEmptyAndTrim(globalConfParams.getString("scmBranchBaseDefault")); //$NON-NLS-1$
+                        warmUpOnStartup = globalConfParams.optBoolean("warmUpOnStartup"); //$NON-NLS-1$
+                        localRepositoryCacheMaxSize = globalConfParams.optInt("localRepositoryCacheMaxSize", DEFAULT_LOCAL_REPOSITORY_CACHE_MAX_SIZE); //$NON-NLS-1$
+                        localRepositoryCacheMaxAge = globalConfParams.optInt("localRepositoryCacheMaxAge", DEFAULT_LOCAL_REPOSITORY_CACHE_MAX_AGE); //$NON-NLS-1$
+                        maxConcurrentBranchBuilds = globalConfParams.optInt("maxConcurrentBranchBuilds", 0); //$NON-NLS-1$
+                        branchBuildsPerRepository = globalConfParams.optInt("branchBuildsPerRepository", DEFAULT_BRANCH_BUILDS_PER_REPOSITORY); //$NON-NLS-1$
                         save();
                         return true; // indicate that everything is good so far
                 }
@@ -327,6 +568,66 @@ public class BranchBuildWrapper extends BuildWrapper {
                 public void setScmBranchBaseDefault(String scmBranchBaseDefault) {
                         this.scmBranchBaseDefault = scmBranchBaseDefault;
                 }
+
+                public boolean isWarmUpOnStartup() {
+                        return warmUpOnStartup;
+                }
+
+                public void setWarmUpOnStartup(boolean warmUpOnStartup) {
+                        this.warmUpOnStartup = warmUpOnStartup;
+                }
+
+                /**
+                 * Gets the size the local repository caches of the branch
+                 * builds may use on each node, in megabytes.
+                 */
+                public int getLocalRepositoryCacheMaxSize() {
+                        return localRepositoryCacheMaxSize > 0 ? localRepositoryCacheMaxSize : DEFAULT_LOCAL_REPOSITORY_CACHE_MAX_SIZE;
+                }
+
+                public void setLocalRepositoryCacheMaxSize(int localRepositoryCacheMaxSize) {
+                        this.localRepositoryCacheMaxSize = localRepositoryCacheMaxSize;
+                }
+
+                /**
+                 * Gets the number of days after which an unused local
+                 * repository cache is evicted.
+                 */
+                public int getLocalRepositoryCacheMaxAge() {
+                        return localRepositoryCacheMaxAge > 0 ? localRepositoryCacheMaxAge : DEFAULT_LOCAL_REPOSITORY_CACHE_MAX_AGE;
+                }
+
+                public void setLocalRepositoryCacheMaxAge(int localRepositoryCacheMaxAge) {
+                        this.localRepositoryCacheMaxAge = localRepositoryCacheMaxAge;
+                }
+
+                /**
+                 * Gets how many branch builds may run at once, before the
+                 * {@link BranchGovernor} lowers it.
+                 * 
+                 * @return <code>0</code> if there is no limit.
+                 */
+                public int getMaxConcurrentBranchBuilds() {
+                        return maxConcurrentBranchBuilds;
+                }
+
+                public void setMaxConcurrentBranchBuilds(int maxConcurrentBranchBuilds) {
+                        this.maxConcurrentBranchBuilds = maxConcurrentBranchBuilds;
+                }
+
+                /**
+                 * Gets how many branch builds of the same repository may run
+                 * at once.
+                 * 
+                 * @return <code>0</code> if there is no limit.
+                 */
+                public int getBranchBuildsPerRepository() {
+                        return branchBuildsPerRepository;
+                }
+
+                public void setBranchBuildsPerRepository(int branchBuildsPerRepository) {
+                        this.branchBuildsPerRepository = branchBuildsPerRepository;
+                }
                 
 	}
 }
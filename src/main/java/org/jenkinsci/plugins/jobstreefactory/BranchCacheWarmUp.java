@@ -0,0 +1,184 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.maven.MavenModuleSet;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Loads the branch data of every branchable job in the background once
+ * Jenkins has loaded its jobs, so that the first dashboard and list view
+ * renders after a restart do not pay for it.
+ *
+ * <p>
+ * The warm-up is enabled from the global configuration. It runs on a few low
+ * priority daemon threads and never delays the startup.
+ *
+ * @author Iheb Khemissi
+ */
+public final class BranchCacheWarmUp {
+
+	private static final Logger LOGGER = Logger.getLogger(BranchCacheWarmUp.class.getName());
+
+	/** Number of jobs warmed up concurrently. */
+	static final int PARALLELISM = Integer.getInteger(BranchCacheWarmUp.class.getName() + ".parallelism", 2);
+
+	private static volatile BranchCacheWarmUp current;
+
+	private final AtomicInteger done = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final int total;
+	private final long startTime = System.currentTimeMillis();
+	private volatile boolean finished;
+
+	private BranchCacheWarmUp(int total) {
+		this.total = total;
+	}
+
+	@Initializer(after = InitMilestone.JOB_LOADED)
+	public static void onJobsLoaded() {
+		BranchBuildWrapper.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(BranchBuildWrapper.DescriptorImpl.class);
+		if (descriptor != null && descriptor.isWarmUpOnStartup()) {
+			start();
+		}
+	}
+
+	/**
+	 * Starts warming up the branch data of all the jobs using the
+	 * {@link BranchBuildWrapper}.
+	 *
+	 * @return the warm-up in progress, which may have been started earlier.
+	 */
+	public static synchronized BranchCacheWarmUp start() {
+		if (current != null && !current.finished) {
+			return current;
+		}
+		final List<MavenModuleSet> jobs = Jenkins.getInstance().getAllItems(MavenModuleSet.class);
+		final BranchCacheWarmUp warmUp = new BranchCacheWarmUp(jobs.size());
+		current = warmUp;
+
+		Thread coordinator = new Thread("Jobs Tree Factory branch data warm-up") {
+			@Override
+			public void run() {
+				warmUp.run(jobs);
+			}
+		};
+		coordinator.setDaemon(true);
+		coordinator.setPriority(Thread.MIN_PRIORITY);
+		coordinator.start();
+		return warmUp;
+	}
+
+	/**
+	 * Gets the last started warm-up.
+	 *
+	 * @return <code>null</code> if none was started since Jenkins started.
+	 */
+	public static BranchCacheWarmUp getCurrent() {
+		return current;
+	}
+
+	private void run(List<MavenModuleSet> jobs) {
+		LOGGER.log(Level.INFO, "Warming up the branch data of {0} jobs", total);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, PARALLELISM), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Jobs Tree Factory branch data warm-up #" + count.incrementAndGet());
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+		try {
+			for (final MavenModuleSet job : jobs) {
+				pool.execute(new Runnable() {
+					public void run() {
+						warmUp(job);
+					}
+				});
+			}
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			LOGGER.log(Level.WARNING, "Branch data warm-up interrupted at " + getProgress(), e);
+		} finally {
+			finished = true;
+		}
+		LOGGER.log(Level.INFO, "Warmed up the branch data of {0} jobs in {1} ms, {2} failed",
+				new Object[] { done.get(), System.currentTimeMillis() - startTime, failed.get() });
+	}
+
+	private void warmUp(MavenModuleSet job) {
+		try {
+			if (job.getBuildWrappersList().get(BranchBuildWrapper.class) != null) {
+				LastBranchCache.get(job);
+			}
+		} catch (RuntimeException e) {
+			failed.incrementAndGet();
+			LOGGER.log(Level.WARNING, "Failed to warm up the branch data of " + job.getFullName(), e);
+		}
+		int count = done.incrementAndGet();
+		// report every tenth of the way
+		if (total >= 10 && count % (total / 10) == 0) {
+			LOGGER.log(Level.INFO, "Branch data warm-up: {0}", getProgress());
+		}
+	}
+
+	public int getTotal() {
+		return total;
+	}
+
+	public int getDone() {
+		return done.get();
+	}
+
+	public int getFailed() {
+		return failed.get();
+	}
+
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Gets a human readable progress, e.g. <code>120/400 jobs</code>.
+	 */
+	public String getProgress() {
+		return done.get() + "/" + total + " jobs";
+	}
+}
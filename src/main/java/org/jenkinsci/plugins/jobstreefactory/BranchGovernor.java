@@ -0,0 +1,313 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.maven.MavenModuleSet;
+import hudson.maven.MavenModuleSetBuild;
+import hudson.model.Items;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import hudson.scm.SCM;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Limits the branch builds running at once, per SCM repository and overall.
+ *
+ * <p>
+ * A branch build over the limits stays in the queue, blocked by the
+ * {@link Dispatcher}, so it does not hold an executor. Builds count against
+ * the limits from the time the queue hands them to an executor until they
+ * complete. The repository of a job is the repository key of its
+ * {@link BranchBuildWrapper}, or else its SCM configuration.
+ *
+ * <p>
+ * The overall limit is lowered by one whenever the recent SCM checkouts of
+ * the branch builds get much slower than usual, and raised back by one as
+ * they recover, up to the configured limit.
+ *
+ * @author Iheb Khemissi
+ */
+public final class BranchGovernor {
+
+	private static final Logger LOGGER = Logger.getLogger(BranchGovernor.class.getName());
+
+	/** Weights of a new checkout duration in the usual and recent averages. */
+	private static final double BASELINE_WEIGHT = 0.05;
+	private static final double RECENT_WEIGHT = 0.3;
+
+	/** The recent checkouts are slow once that many times slower than usual. */
+	private static final double SLOWDOWN_RATIO = 1.5;
+
+	/** Number of checkouts needed to know how long they usually take. */
+	private static final int MIN_SAMPLES = 5;
+
+	/** Repository of the running branch builds by build id, guarded by the class. */
+	private static final Map<String, String> RUNNING = new HashMap<String, String>();
+
+	/** Start of the checkout of the branch builds, guarded by the class. */
+	private static final Map<Run<?, ?>, Long> CHECKOUTS = new WeakHashMap<Run<?, ?>, Long>();
+
+	/** Repository keys derived from the SCM configurations, guarded by itself. */
+	private static final Map<SCM, String> SCM_KEYS = new WeakHashMap<SCM, String>();
+
+	private static double baselineMillis;
+	private static double recentMillis;
+	private static int samples;
+
+	/** How much the overall limit is currently lowered by. */
+	private static int reduction;
+
+	private BranchGovernor() {
+	}
+
+	/**
+	 * Gets the current overall limit.
+	 *
+	 * @return <code>0</code> if there is none.
+	 */
+	public static synchronized int getCap() {
+		int configured = getDescriptor().getMaxConcurrentBranchBuilds();
+		return configured <= 0 ? 0 : Math.max(1, configured - reduction);
+	}
+
+	public static synchronized int getRunning() {
+		return RUNNING.size();
+	}
+
+	/**
+	 * Gets the number of branch builds handed to an executor but not started
+	 * yet.
+	 */
+	public static int getAdmitted() {
+		return getStartingKeys().size();
+	}
+
+	public static synchronized long getBaselineScmMillis() {
+		return (long) baselineMillis;
+	}
+
+	public static synchronized long getRecentScmMillis() {
+		return (long) recentMillis;
+	}
+
+	/**
+	 * Gets the repository the branch builds of a job count against.
+	 */
+	static String getRepositoryKey(MavenModuleSet project) {
+		BranchBuildWrapper wrapper = project.getBuildWrappersList().get(BranchBuildWrapper.class);
+		if (wrapper != null && StringUtils.isNotBlank(wrapper.getRepositoryKey())) {
+			return wrapper.getRepositoryKey().trim();
+		}
+		// a reconfigured job gets a new SCM, and so a new key
+		SCM scm = project.getScm();
+		String key;
+		synchronized (SCM_KEYS) {
+			key = SCM_KEYS.get(scm);
+		}
+		if (key == null) {
+			// serialized without holding any lock, at worst twice
+			key = scm.getType() + ':' + Util.getDigestOf(Items.XSTREAM.toXML(scm)).substring(0, 12);
+			synchronized (SCM_KEYS) {
+				SCM_KEYS.put(scm, key);
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * Tells if the limits apply to the given queue item.
+	 */
+	static boolean isGoverned(Queue.Item item) {
+		return item.task instanceof MavenModuleSet && BranchReason.isBranchBuild(item)
+				&& ((MavenModuleSet) item.task).getBuildWrappersList().get(BranchBuildWrapper.class) != null;
+	}
+
+	/**
+	 * Gets the repositories of the branch builds handed to an executor but
+	 * not started yet. Takes the queue lock, so the governor lock must not be
+	 * held.
+	 */
+	private static List<String> getStartingKeys() {
+		List<String> keys = new ArrayList<String>();
+		for (Queue.BuildableItem item : Jenkins.getInstance().getQueue().getPendingItems()) {
+			if (isGoverned(item)) {
+				keys.add(getRepositoryKey((MavenModuleSet) item.task));
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Tells if a queued branch build may start. Nothing is recorded: the
+	 * queue also asks when rendering the blocked items, and a build counts
+	 * against the limits once handed to an executor.
+	 *
+	 * @return why the build has to wait, <code>null</code> if it may start.
+	 */
+	static CauseOfBlockage check(MavenModuleSet project) {
+		String key = getRepositoryKey(project);
+		// the queue lock is taken first, never while holding the governor lock
+		List<String> starting = getStartingKeys();
+		synchronized (BranchGovernor.class) {
+			int cap = getCap();
+			int total = RUNNING.size() + starting.size();
+			if (cap > 0 && total >= cap) {
+				return new Blocked(String.format(Locale.ENGLISH, "%d branch builds are running or starting, the limit is %d", total, cap)); //$NON-NLS-1$
+			}
+			int perRepository = getDescriptor().getBranchBuildsPerRepository();
+			if (perRepository > 0) {
+				int count = Collections.frequency(RUNNING.values(), key) + Collections.frequency(starting, key);
+				if (count >= perRepository) {
+					return new Blocked(String.format(Locale.ENGLISH, "%d branch build(s) of repository %s are running or starting", count, key)); //$NON-NLS-1$
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Counts a started branch build against the limits.
+	 */
+	static synchronized void started(MavenModuleSetBuild build, String key) {
+		RUNNING.put(build.getExternalizableId(), key);
+	}
+
+	static synchronized void completed(MavenModuleSetBuild build) {
+		RUNNING.remove(build.getExternalizableId());
+		CHECKOUTS.remove(build);
+	}
+
+	static synchronized void checkoutStarted(Run<?, ?> build) {
+		CHECKOUTS.put(build, System.currentTimeMillis());
+	}
+
+	/**
+	 * Records how long the checkout of a branch build took, lowering or
+	 * raising the overall limit accordingly.
+	 */
+	static synchronized void checkoutCompleted(Run<?, ?> build) {
+		Long start = CHECKOUTS.remove(build);
+		if (start == null) {
+			return;
+		}
+		long millis = System.currentTimeMillis() - start;
+		BranchMetrics.SCM_CHECKOUT.stop(start);
+		if (samples == 0) {
+			baselineMillis = millis;
+			recentMillis = millis;
+		} else {
+			baselineMillis += BASELINE_WEIGHT * (millis - baselineMillis);
+			recentMillis += RECENT_WEIGHT * (millis - recentMillis);
+		}
+		samples++;
+		if (samples < MIN_SAMPLES) {
+			return;
+		}
+		int configured = getDescriptor().getMaxConcurrentBranchBuilds();
+		if (recentMillis > SLOWDOWN_RATIO * baselineMillis) {
+			if (configured - reduction > 1) {
+				reduction++;
+				LOGGER.log(Level.INFO, "SCM checkouts slowed down to {0}ms from {1}ms, lowering the branch builds limit to {2}",
+						new Object[] { (long) recentMillis, (long) baselineMillis, getCap() });
+			}
+		} else if (reduction > 0 && recentMillis <= baselineMillis) {
+			reduction--;
+			LOGGER.log(Level.INFO, "SCM checkouts recovered, raising the branch builds limit to {0}", getCap());
+		}
+	}
+
+	private static BranchBuildWrapper.DescriptorImpl getDescriptor() {
+		return Jenkins.getInstance().getDescriptorByType(BranchBuildWrapper.DescriptorImpl.class);
+	}
+
+	private static final class Blocked extends CauseOfBlockage {
+		private final String description;
+
+		Blocked(String description) {
+			this.description = description;
+		}
+
+		@Override
+		public String getShortDescription() {
+			return description;
+		}
+	}
+
+	/**
+	 * Keeps the branch builds over the limits in the queue.
+	 */
+	@Extension
+	public static class Dispatcher extends QueueTaskDispatcher {
+
+		@Override
+		public CauseOfBlockage canRun(Queue.Item item) {
+			if (!isGoverned(item)) {
+				return null;
+			}
+			return check((MavenModuleSet) item.task);
+		}
+	}
+
+	/**
+	 * Tracks the running branch builds.
+	 */
+	@Extension
+	public static class Tracker extends RunListener<MavenModuleSetBuild> {
+
+		public Tracker() {
+			super(MavenModuleSetBuild.class);
+		}
+
+		@Override
+		public void onStarted(MavenModuleSetBuild build, TaskListener listener) {
+			if (build.getCause(BranchReason.class) != null) {
+				started(build, getRepositoryKey(build.getProject()));
+			}
+		}
+
+		@Override
+		public void onCompleted(MavenModuleSetBuild build, TaskListener listener) {
+			completed(build);
+		}
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.RootAction;
+import hudson.model.TopLevelItem;
+import hudson.model.TransientProjectActionFactory;
+import hudson.model.TransientViewActionFactory;
+import hudson.model.View;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import jenkins.model.Jenkins;
+import net.sf.json.util.JSONUtils;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * JSON API listing branch builds, newest first, at
+ * <code>jobstreefactory-branches/</code> under Jenkins, any view and any job.
+ *
+ * <p>
+ * The following query parameters are supported:
+ * <dl>
+ * <dt>branch, user, result</dt>
+ * <dd>only list the builds of that branch, requested by that user, or with
+ * that result.</dd>
+ * <dt>since, until</dt>
+ * <dd>only list the builds started within that range, in milliseconds since
+ * the epoch.</dd>
+ * <dt>limit</dt>
+ * <dd>the number of builds per page, {@value #DEFAULT_LIMIT} by default.</dd>
+ * <dt>cursor</dt>
+ * <dd>the <code>next</code> value of the previous page.</dd>
+ * </dl>
+ * The builds are written as they are found, so large histories are never
+ * held in memory.
+ *
+ * @author Iheb Khemissi
+ */
+public abstract class BranchHistoryAction implements Action {
+
+	public static final int DEFAULT_LIMIT = 50;
+	public static final int MAX_LIMIT = 1000;
+
+	/** Number of builds written between two flushes. */
+	private static final int FLUSH_INTERVAL = 50;
+
+	public String getIconFileName() {
+		// API only
+		return null;
+	}
+
+	public String getDisplayName() {
+		return "Branch history";
+	}
+
+	public String getUrlName() {
+		return "jobstreefactory-branches"; //$NON-NLS-1$
+	}
+
+	/**
+	 * Gets the jobs whose branch builds are listed.
+	 */
+	@SuppressWarnings("rawtypes")
+	protected abstract Collection<? extends Job> getJobs();
+
+	public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		String branch = StringUtils.trimToNull(req.getParameter("branch")); //$NON-NLS-1$
+		String user = StringUtils.trimToNull(req.getParameter("user")); //$NON-NLS-1$
+		String result = StringUtils.trimToNull(req.getParameter("result")); //$NON-NLS-1$
+		long since = getLong(req, "since", Long.MIN_VALUE); //$NON-NLS-1$
+		long until = getLong(req, "until", Long.MAX_VALUE); //$NON-NLS-1$
+		int limit = (int) Math.min(MAX_LIMIT, Math.max(1, getLong(req, "limit", DEFAULT_LIMIT))); //$NON-NLS-1$
+
+		RecentBranchBuilds.Position after = null;
+		String cursor = StringUtils.trimToNull(req.getParameter("cursor")); //$NON-NLS-1$
+		try {
+			if (cursor != null) {
+				after = RecentBranchBuilds.Position.fromString(cursor);
+			} else if (until != Long.MAX_VALUE) {
+				// start with the newest builds not after the range
+				after = new RecentBranchBuilds.Position(until, "", Integer.MAX_VALUE); //$NON-NLS-1$
+			}
+		} catch (IllegalArgumentException e) {
+			rsp.sendError(StaplerResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+
+		rsp.setContentType("application/json;charset=UTF-8"); //$NON-NLS-1$
+		PrintWriter w = rsp.getWriter();
+		w.print("{\"builds\":["); //$NON-NLS-1$
+		int count = 0;
+		RecentBranchBuilds.Entry last = null;
+		Iterator<RecentBranchBuilds.Entry> it = RecentBranchBuilds.iterate(getJobs(), after);
+		while (it.hasNext()) {
+			RecentBranchBuilds.Entry entry = it.next();
+			BranchBuildRecord record = entry.getRecord();
+			if (record.getTimestamp() < since) {
+				// everything that follows is older
+				break;
+			}
+			if (record.getTimestamp() > until || !matches(branch, record.getBranchName()) || !matches(user, record.getUserName())
+					|| (result != null && !result.equalsIgnoreCase(String.valueOf(record.getResult())))) {
+				continue;
+			}
+			if (count > 0) {
+				w.print(',');
+			}
+			write(w, entry);
+			last = entry;
+			if (++count == limit) {
+				break;
+			}
+			if (count % FLUSH_INTERVAL == 0) {
+				w.flush();
+			}
+		}
+		w.print("],\"next\":"); //$NON-NLS-1$
+		w.print(count == limit && it.hasNext() ? JSONUtils.quote(last.getPosition().toString()) : "null"); //$NON-NLS-1$
+		w.print('}');
+		w.flush();
+	}
+
+	private static void write(PrintWriter w, RecentBranchBuilds.Entry entry) {
+		BranchBuildRecord record = entry.getRecord();
+		w.print("{\"job\":"); //$NON-NLS-1$
+		w.print(JSONUtils.quote(entry.getJob().getFullName()));
+		w.print(",\"number\":"); //$NON-NLS-1$
+		w.print(record.getNumber());
+		w.print(",\"timestamp\":"); //$NON-NLS-1$
+		w.print(record.getTimestamp());
+		w.print(",\"result\":"); //$NON-NLS-1$
+		w.print(JSONUtils.quote(String.valueOf(record.getResult())));
+		w.print(",\"version\":"); //$NON-NLS-1$
+		w.print(quote(record.getVersionNumber()));
+		w.print(",\"branch\":"); //$NON-NLS-1$
+		w.print(quote(record.getBranchName()));
+		w.print(",\"user\":"); //$NON-NLS-1$
+		w.print(quote(record.getUserName()));
+		w.print(",\"url\":"); //$NON-NLS-1$
+		w.print(JSONUtils.quote(entry.getJob().getUrl() + record.getNumber() + '/'));
+		w.print('}');
+	}
+
+	private static String quote(String value) {
+		return value == null ? "null" : JSONUtils.quote(value); //$NON-NLS-1$
+	}
+
+	private static boolean matches(String filter, String value) {
+		return filter == null || filter.equals(value);
+	}
+
+	private static long getLong(StaplerRequest req, String name, long defaultValue) {
+		String value = StringUtils.trimToNull(req.getParameter(name));
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Lists the branch builds of all the jobs.
+	 */
+	@Extension
+	public static class Root extends BranchHistoryAction implements RootAction {
+		@SuppressWarnings("rawtypes")
+		@Override
+		protected Collection<? extends Job> getJobs() {
+			return Jenkins.getInstance().getAllItems(Job.class);
+		}
+	}
+
+	/**
+	 * Lists the branch builds of the jobs of a view.
+	 */
+	public static class ForView extends BranchHistoryAction {
+		private final View view;
+
+		ForView(View view) {
+			this.view = view;
+		}
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		protected Collection<? extends Job> getJobs() {
+			List<Job> jobs = new ArrayList<Job>();
+			for (TopLevelItem item : view.getItems()) {
+				if (item instanceof Job) {
+					jobs.add((Job) item);
+				}
+			}
+			return jobs;
+		}
+
+		@Extension
+		public static class Factory extends TransientViewActionFactory {
+			@Override
+			public List<Action> createFor(View v) {
+				return Collections.<Action> singletonList(new ForView(v));
+			}
+		}
+	}
+
+	/**
+	 * Lists the branch builds of a single job.
+	 */
+	public static class ForJob extends BranchHistoryAction {
+		private final Job<?, ?> job;
+
+		ForJob(Job<?, ?> job) {
+			this.job = job;
+		}
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		protected Collection<? extends Job> getJobs() {
+			job.checkPermission(Item.READ);
+			return Collections.singletonList(job);
+		}
+
+		@Extension
+		public static class Factory extends TransientProjectActionFactory {
+			@SuppressWarnings("rawtypes")
+			@Override
+			public Collection<? extends Action> createFor(AbstractProject target) {
+				if (!BranchBuildWrapper.isBranchJob(target)) {
+					return Collections.emptyList();
+				}
+				return Collections.singletonList(new ForJob(target));
+			}
+		}
+	}
+}
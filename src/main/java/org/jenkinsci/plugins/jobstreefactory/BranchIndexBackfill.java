@@ -0,0 +1,324 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.maven.MavenModuleSet;
+import hudson.util.AtomicFileWriter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Fills the {@link BranchBuildIndex} of every branchable job from the build
+ * records on disk, for the builds the index does not know of.
+ *
+ * <p>
+ * The build directories are read by a {@link BuildXmlScanner}, a few jobs at
+ * a time on low priority threads, and the bytes read per second are capped so
+ * that the running builds do not notice. The progress is saved in
+ * {@value #STATE_FILE_NAME} every {@link #CHECKPOINT} builds, so that an
+ * interrupted backfill resumes where it stopped.
+ *
+ * @author Iheb Khemissi
+ */
+public final class BranchIndexBackfill {
+
+	private static final Logger LOGGER = Logger.getLogger(BranchIndexBackfill.class.getName());
+
+	/** Number of jobs scanned concurrently. */
+	static final int PARALLELISM = Integer.getInteger(BranchIndexBackfill.class.getName() + ".parallelism", 2); //$NON-NLS-1$
+
+	/** Bytes read per second by the whole backfill, 0 for no cap. */
+	static final long MAX_BYTES_PER_SECOND = Long.getLong(BranchIndexBackfill.class.getName() + ".maxBytesPerSecond", 4L * 1024 * 1024); //$NON-NLS-1$
+
+	/** Number of builds between two saves of the progress. */
+	static final int CHECKPOINT = 200;
+
+	static final String STATE_FILE_NAME = "jobstreefactory-backfill.state"; //$NON-NLS-1$
+
+	private static final String DONE = "\u0000done"; //$NON-NLS-1$
+
+	private static volatile BranchIndexBackfill current;
+
+	private final BuildXmlScanner.Throttle throttle = new BuildXmlScanner.Throttle(MAX_BYTES_PER_SECOND);
+	private final AtomicInteger jobsDone = new AtomicInteger();
+	private final AtomicInteger buildsScanned = new AtomicInteger();
+	private final AtomicInteger recordsAdded = new AtomicInteger();
+	private final long startTime = System.currentTimeMillis();
+	private final int jobsTotal;
+	private final File stateFile;
+
+	/** Last scanned build directory by job, or {@link #DONE}, guarded by <code>this</code>. */
+	private final Map<String, String> state;
+
+	private volatile boolean cancelled;
+	private volatile boolean finished;
+
+	private BranchIndexBackfill(int jobsTotal, File stateFile, Map<String, String> state) {
+		this.jobsTotal = jobsTotal;
+		this.stateFile = stateFile;
+		this.state = state;
+	}
+
+	/**
+	 * Starts the backfill, resuming the previous one unless asked to start
+	 * over.
+	 *
+	 * @return the backfill in progress, which may have been started earlier.
+	 */
+	public static synchronized BranchIndexBackfill start(boolean restart) {
+		if (current != null && !current.finished) {
+			return current;
+		}
+		File stateFile = new File(Jenkins.getInstance().getRootDir(), STATE_FILE_NAME);
+		Map<String, String> state = restart ? new TreeMap<String, String>() : readState(stateFile);
+
+		final List<MavenModuleSet> jobs = new ArrayList<MavenModuleSet>();
+		for (MavenModuleSet job : Jenkins.getInstance().getAllItems(MavenModuleSet.class)) {
+			if (job.getBuildWrappersList().get(BranchBuildWrapper.class) != null) {
+				jobs.add(job);
+			}
+		}
+		final BranchIndexBackfill backfill = new BranchIndexBackfill(jobs.size(), stateFile, state);
+		current = backfill;
+
+		Thread coordinator = new Thread("Jobs Tree Factory branch index backfill") { //$NON-NLS-1$
+			@Override
+			public void run() {
+				backfill.run(jobs);
+			}
+		};
+		coordinator.setDaemon(true);
+		coordinator.setPriority(Thread.MIN_PRIORITY);
+		coordinator.start();
+		return backfill;
+	}
+
+	/**
+	 * Gets the last started backfill.
+	 *
+	 * @return <code>null</code> if none was started since Jenkins started.
+	 */
+	public static BranchIndexBackfill getCurrent() {
+		return current;
+	}
+
+	/**
+	 * Stops the backfill after the builds being read, keeping its progress.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	private void run(List<MavenModuleSet> jobs) {
+		LOGGER.log(Level.INFO, "Backfilling the branch index of {0} jobs", jobsTotal);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, PARALLELISM), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Jobs Tree Factory branch index backfill #" + count.incrementAndGet()); //$NON-NLS-1$
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+		try {
+			for (final MavenModuleSet job : jobs) {
+				pool.execute(new Runnable() {
+					public void run() {
+						backfill(job);
+					}
+				});
+			}
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			LOGGER.log(Level.WARNING, "Branch index backfill interrupted at " + getProgress(), e);
+		} finally {
+			finished = true;
+		}
+		LOGGER.log(Level.INFO, "Backfilled the branch index in {0} ms: {1}, {2} records added",
+				new Object[] { System.currentTimeMillis() - startTime, getProgress(), recordsAdded.get() });
+	}
+
+	private void merge(BranchBuildIndex index, boolean filling, List<BranchBuildRecord> batch) {
+		// the index tells the caches about the added records
+		recordsAdded.addAndGet(filling ? index.fill(batch) : index.merge(batch));
+		batch.clear();
+	}
+
+	private void backfill(MavenModuleSet job) {
+		String name = job.getFullName();
+		try {
+			String resumeAfter;
+			synchronized (this) {
+				resumeAfter = state.get(name);
+			}
+			if (DONE.equals(resumeAfter) || cancelled) {
+				return;
+			}
+
+			List<File> dirs = BuildXmlScanner.listBuildDirs(job);
+			int from = 0;
+			if (resumeAfter != null) {
+				for (int i = 0; i < dirs.size(); i++) {
+					if (dirs.get(i).getName().equals(resumeAfter)) {
+						from = i + 1;
+						break;
+					}
+				}
+			}
+
+			// a job without an index gets it filled by the backfill, at its pace
+			BranchBuildIndex index = BranchBuildIndex.open(job);
+			boolean filling = index.startFilling();
+			boolean completed = false;
+			try {
+				List<BranchBuildRecord> batch = new ArrayList<BranchBuildRecord>();
+				for (int i = from; i < dirs.size(); i++) {
+					if (cancelled) {
+						return;
+					}
+					BranchBuildRecord record = BuildXmlScanner.read(dirs.get(i), throttle);
+					if (record != null) {
+						batch.add(record);
+					}
+					buildsScanned.incrementAndGet();
+					if ((i - from + 1) % CHECKPOINT == 0) {
+						merge(index, filling, batch);
+						saveState(name, dirs.get(i).getName());
+					}
+				}
+				merge(index, filling, batch);
+				completed = true;
+			} finally {
+				if (filling) {
+					index.stopFilling(completed);
+				}
+			}
+			saveState(name, DONE);
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.WARNING, "Failed to backfill the branch index of " + name, e);
+		} finally {
+			if (!cancelled) {
+				jobsDone.incrementAndGet();
+			}
+		}
+	}
+
+	private synchronized void saveState(String job, String position) {
+		state.put(job, position);
+		try {
+			AtomicFileWriter writer = new AtomicFileWriter(stateFile, "UTF-8"); //$NON-NLS-1$
+			try {
+				for (Map.Entry<String, String> entry : state.entrySet()) {
+					writer.write(entry.getKey());
+					writer.write('\t');
+					writer.write(entry.getValue());
+					writer.write('\n');
+				}
+				writer.commit();
+			} finally {
+				// no-op once committed
+				writer.abort();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to write " + stateFile, e);
+		}
+	}
+
+	private static Map<String, String> readState(File file) {
+		Map<String, String> state = new TreeMap<String, String>();
+		if (!file.exists()) {
+			return state;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8")); //$NON-NLS-1$
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.lastIndexOf('\t');
+				if (tab > 0) {
+					state.put(line.substring(0, tab), line.substring(tab + 1));
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to read " + file + ", starting over", e);
+			state.clear();
+		} finally {
+			IOUtils.closeQuietly(reader);
+		}
+		return state;
+	}
+
+	public int getJobsTotal() {
+		return jobsTotal;
+	}
+
+	public int getJobsDone() {
+		return jobsDone.get();
+	}
+
+	public int getBuildsScanned() {
+		return buildsScanned.get();
+	}
+
+	public int getRecordsAdded() {
+		return recordsAdded.get();
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Gets a human readable progress, e.g. <code>12/40 jobs, 5300 builds</code>.
+	 */
+	public String getProgress() {
+		return jobsDone.get() + "/" + jobsTotal + " jobs, " + buildsScanned.get() + " builds"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.Extension;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timers and counters of the branch operations.
+ *
+ * <p>
+ * Recording a value only costs a few atomic increments, so the timers can stay
+ * on the hot paths. They are published by {@link BranchMetricsAction}.
+ *
+ * @author Iheb Khemissi
+ */
+public final class BranchMetrics {
+
+	/** Upper bounds of the histogram buckets, in milliseconds. */
+	private static final long[] BUCKETS = { 1, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000,
+			600000, 1800000, 3600000 };
+
+	private static final List<Timer> TIMERS = new ArrayList<Timer>();
+	private static final List<Counter> COUNTERS = new ArrayList<Counter>();
+
+	public static final Timer SUBMIT = timer("submit", "Handling of the branch form submissions");
+	public static final Timer QUEUE_WAIT = timer("queue_wait", "Time from the scheduling of a branch build to its start");
+	public static final Timer SET_UP = timer("set_up", "Set up of the branch builds by the build wrapper");
+	public static final Timer SCM_CHECKOUT = timer("scm_checkout", "SCM checkout of the branch builds");
+	public static final Timer BUILD = timer("build", "Duration of the branch builds");
+	public static final Timer PORTLET_RENDER = timer("portlet_render", "Lookup of the recent branch builds by the dashboard portlet");
+	public static final Timer COLUMN_RENDER = timer("column_render", "Lookup of the last branch by the list view column");
+
+	public static final Counter SUBMIT_FAILURES = counter("submit_failures", "Branch submissions that could not be scheduled");
+	public static final Counter SUBMIT_MERGED = counter("submit_merged", "Branch submissions merged into an identical pending one");
+	public static final Counter SUBMIT_CONFLICTS = counter("submit_conflicts", "Branch submissions conflicting with a pending one");
+	public static final Counter BUILDS_STARTED = counter("builds_started", "Branch builds started");
+	public static final Counter BUILDS_FAILED = counter("builds_failed", "Branch builds completed without success");
+
+	private BranchMetrics() {
+	}
+
+	private static Timer timer(String name, String help) {
+		Timer timer = new Timer(name, help);
+		TIMERS.add(timer);
+		return timer;
+	}
+
+	private static Counter counter(String name, String help) {
+		Counter counter = new Counter(name, help);
+		COUNTERS.add(counter);
+		return counter;
+	}
+
+	public static List<Timer> getTimers() {
+		return Collections.unmodifiableList(TIMERS);
+	}
+
+	public static List<Counter> getCounters() {
+		return Collections.unmodifiableList(COUNTERS);
+	}
+
+	/**
+	 * Gets the upper bounds of the histogram buckets, in milliseconds. A last,
+	 * unbounded, bucket follows them.
+	 */
+	public static long[] getBuckets() {
+		return BUCKETS.clone();
+	}
+
+	/**
+	 * Histogram of durations.
+	 */
+	public static final class Timer {
+		private final String name;
+		private final String help;
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		private Timer(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		/**
+		 * Starts timing an operation.
+		 *
+		 * @return the value to give to {@link #stop(long)}.
+		 */
+		public long start() {
+			return System.nanoTime();
+		}
+
+		/**
+		 * Records the operation started by {@link #start()}.
+		 */
+		public void stop(long start) {
+			record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		}
+
+		/**
+		 * Records a duration, in milliseconds.
+		 */
+		public void record(long millis) {
+			if (millis < 0) {
+				return;
+			}
+			int bucket = 0;
+			while (bucket < BUCKETS.length && millis > BUCKETS[bucket]) {
+				bucket++;
+			}
+			buckets.incrementAndGet(bucket);
+			count.incrementAndGet();
+			sum.addAndGet(millis);
+			long current;
+			while ((current = max.get()) < millis && !max.compareAndSet(current, millis)) {
+				// retry
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getHelp() {
+			return help;
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		/** Total of the recorded durations, in milliseconds. */
+		public long getSum() {
+			return sum.get();
+		}
+
+		/** Longest recorded duration, in milliseconds. */
+		public long getMax() {
+			return max.get();
+		}
+
+		/**
+		 * Gets the number of durations that fell in each bucket, not
+		 * cumulated.
+		 *
+		 * @see BranchMetrics#getBuckets()
+		 */
+		public long[] getBucketCounts() {
+			long[] counts = new long[buckets.length()];
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = buckets.get(i);
+			}
+			return counts;
+		}
+	}
+
+	/**
+	 * Monotonic counter.
+	 */
+	public static final class Counter {
+		private final String name;
+		private final String help;
+		private final AtomicLong value = new AtomicLong();
+
+		private Counter(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		public void increment() {
+			value.incrementAndGet();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getHelp() {
+			return help;
+		}
+
+		public long getValue() {
+			return value.get();
+		}
+	}
+
+	/**
+	 * Records the queue waits and the durations of the branch builds.
+	 */
+	@Extension
+	@SuppressWarnings("rawtypes")
+	public static final class Recorder extends RunListener<Run> {
+
+		@Override
+		public void onStarted(Run run, TaskListener listener) {
+			BranchReason reason = (BranchReason) run.getCause(BranchReason.class);
+			if (reason != null) {
+				BUILDS_STARTED.increment();
+				if (reason.getScheduledAt() > 0) {
+					QUEUE_WAIT.record(System.currentTimeMillis() - reason.getScheduledAt());
+				}
+			}
+		}
+
+		@Override
+		public void onCompleted(Run run, TaskListener listener) {
+			if (run.getCause(BranchReason.class) != null) {
+				BUILD.record(System.currentTimeMillis() - run.getTimeInMillis());
+				if (run.getResult() != Result.SUCCESS) {
+					BUILDS_FAILED.increment();
+				}
+			}
+		}
+	}
+}
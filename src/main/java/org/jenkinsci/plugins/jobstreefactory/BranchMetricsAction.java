@@ -0,0 +1,156 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Publishes the {@link BranchMetrics} at <code>jobstreefactory-metrics/</code>
+ * in the Prometheus text format, and at
+ * <code>jobstreefactory-metrics/json</code> as JSON.
+ *
+ * @author Iheb Khemissi
+ */
+@Extension
+public class BranchMetricsAction implements RootAction {
+
+	private static final String PREFIX = "jobstreefactory_"; //$NON-NLS-1$
+
+	public String getIconFileName() {
+		// API only
+		return null;
+	}
+
+	public String getDisplayName() {
+		return "Jobs Tree Factory metrics";
+	}
+
+	public String getUrlName() {
+		return "jobstreefactory-metrics"; //$NON-NLS-1$
+	}
+
+	public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		Jenkins.getInstance().checkPermission(Jenkins.READ);
+		rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8"); //$NON-NLS-1$
+		PrintWriter w = rsp.getWriter();
+		long[] bounds = BranchMetrics.getBuckets();
+		for (BranchMetrics.Timer timer : BranchMetrics.getTimers()) {
+			String name = PREFIX + timer.getName() + "_seconds"; //$NON-NLS-1$
+			w.println("# HELP " + name + ' ' + timer.getHelp());
+			w.println("# TYPE " + name + " histogram");
+			long[] counts = timer.getBucketCounts();
+			long cumulated = 0;
+			for (int i = 0; i < counts.length; i++) {
+				cumulated += counts[i];
+				String le = i < bounds.length ? seconds(bounds[i]) : "+Inf"; //$NON-NLS-1$
+				w.println(name + "_bucket{le=\"" + le + "\"} " + cumulated);
+			}
+			w.println(name + "_sum " + seconds(timer.getSum()));
+			w.println(name + "_count " + timer.getCount());
+		}
+		for (BranchMetrics.Counter counter : BranchMetrics.getCounters()) {
+			String name = PREFIX + counter.getName() + "_total"; //$NON-NLS-1$
+			w.println("# HELP " + name + ' ' + counter.getHelp());
+			w.println("# TYPE " + name + " counter");
+			w.println(name + ' ' + counter.getValue());
+		}
+		BranchCacheWarmUp warmUp = BranchCacheWarmUp.getCurrent();
+		if (warmUp != null) {
+			w.println("# HELP " + PREFIX + "warm_up_done Jobs whose branch data was warmed up");
+			w.println("# TYPE " + PREFIX + "warm_up_done gauge");
+			w.println(PREFIX + "warm_up_done " + warmUp.getDone());
+			w.println("# HELP " + PREFIX + "warm_up_total Jobs whose branch data is warmed up");
+			w.println("# TYPE " + PREFIX + "warm_up_total gauge");
+			w.println(PREFIX + "warm_up_total " + warmUp.getTotal());
+		}
+		w.println("# HELP " + PREFIX + "governor_cap Current limit of the branch builds running at once, 0 for none");
+		w.println("# TYPE " + PREFIX + "governor_cap gauge");
+		w.println(PREFIX + "governor_cap " + BranchGovernor.getCap());
+		w.println("# HELP " + PREFIX + "governor_running Branch builds running");
+		w.println("# TYPE " + PREFIX + "governor_running gauge");
+		w.println(PREFIX + "governor_running " + BranchGovernor.getRunning());
+		w.println("# HELP " + PREFIX + "governor_admitted Branch builds admitted but not started yet");
+		w.println("# TYPE " + PREFIX + "governor_admitted gauge");
+		w.println(PREFIX + "governor_admitted " + BranchGovernor.getAdmitted());
+		w.flush();
+	}
+
+	public void doJson(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		Jenkins.getInstance().checkPermission(Jenkins.READ);
+		long[] bounds = BranchMetrics.getBuckets();
+		JSONObject timers = new JSONObject();
+		for (BranchMetrics.Timer timer : BranchMetrics.getTimers()) {
+			JSONObject buckets = new JSONObject();
+			long[] counts = timer.getBucketCounts();
+			for (int i = 0; i < counts.length; i++) {
+				buckets.put(i < bounds.length ? String.valueOf(bounds[i]) : "+Inf", counts[i]); //$NON-NLS-1$
+			}
+			JSONObject json = new JSONObject();
+			json.put("count", timer.getCount()); //$NON-NLS-1$
+			json.put("sumMillis", timer.getSum()); //$NON-NLS-1$
+			json.put("maxMillis", timer.getMax()); //$NON-NLS-1$
+			json.put("meanMillis", timer.getCount() == 0 ? 0 : timer.getSum() / timer.getCount()); //$NON-NLS-1$
+			json.put("buckets", buckets); //$NON-NLS-1$
+			timers.put(timer.getName(), json);
+		}
+		JSONObject counters = new JSONObject();
+		for (BranchMetrics.Counter counter : BranchMetrics.getCounters()) {
+			counters.put(counter.getName(), counter.getValue());
+		}
+		JSONObject json = new JSONObject();
+		json.put("timers", timers); //$NON-NLS-1$
+		json.put("counters", counters); //$NON-NLS-1$
+		BranchCacheWarmUp warmUp = BranchCacheWarmUp.getCurrent();
+		if (warmUp != null) {
+			JSONObject progress = new JSONObject();
+			progress.put("done", warmUp.getDone()); //$NON-NLS-1$
+			progress.put("total", warmUp.getTotal()); //$NON-NLS-1$
+			progress.put("finished", warmUp.isFinished()); //$NON-NLS-1$
+			json.put("warmUp", progress); //$NON-NLS-1$
+		}
+		JSONObject governor = new JSONObject();
+		governor.put("cap", BranchGovernor.getCap()); //$NON-NLS-1$
+		governor.put("running", BranchGovernor.getRunning()); //$NON-NLS-1$
+		governor.put("admitted", BranchGovernor.getAdmitted()); //$NON-NLS-1$
+		governor.put("baselineScmMillis", BranchGovernor.getBaselineScmMillis()); //$NON-NLS-1$
+		governor.put("recentScmMillis", BranchGovernor.getRecentScmMillis()); //$NON-NLS-1$
+		json.put("governor", governor); //$NON-NLS-1$
+		rsp.setContentType("application/json;charset=UTF-8"); //$NON-NLS-1$
+		rsp.getWriter().print(json.toString());
+	}
+
+	private static String seconds(long millis) {
+		return String.valueOf(millis / 1000.0);
+	}
+}
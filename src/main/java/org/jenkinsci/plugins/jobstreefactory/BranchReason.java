@@ -24,26 +24,88 @@
 package org.jenkinsci.plugins.jobstreefactory;
 
 import hudson.model.Hudson;
+import hudson.model.Queue;
 import hudson.model.Cause.UserCause;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+
 public class BranchReason extends UserCause {
 
 	private String authenticationName;
 
+	/** Users whose identical requests were merged into this one. */
+	private List<String> mergedUserNames;
+
+	/** When the build was handed to the queue, only known until a restart. */
+	private transient long scheduledAt;
 
 	public BranchReason() {
 		this.authenticationName = Hudson.getAuthentication().getName();
 	}
 
 
+	/**
+	 * Whether the queued item is a branch build.
+	 */
+	static boolean isBranchBuild(Queue.Item item) {
+		for (Object cause : item.getCauses()) {
+			if (cause instanceof BranchReason) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	void markScheduled() {
+		scheduledAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Gets when the build was scheduled.
+	 *
+	 * @return <code>0</code> if unknown.
+	 */
+	public long getScheduledAt() {
+		return scheduledAt;
+	}
+
+
 	@Override
 	public String getUserName() {
 		return authenticationName;
 	}
 
 
+	/**
+	 * Records that another user requested the same branch.
+	 */
+	synchronized void addRequester(String userName) {
+		if (mergedUserNames == null) {
+			mergedUserNames = new ArrayList<String>();
+		}
+		if (!userName.equals(authenticationName) && !mergedUserNames.contains(userName)) {
+			mergedUserNames.add(userName);
+		}
+	}
+
+	/**
+	 * Gets the users whose identical requests were served by this build.
+	 */
+	public synchronized List<String> getMergedUserNames() {
+		return mergedUserNames == null ? Collections.<String> emptyList() : new ArrayList<String>(mergedUserNames);
+	}
+
+
 	@Override
 	public String getShortDescription() {
+		List<String> merged = getMergedUserNames();
+		if (!merged.isEmpty()) {
+			return Messages.BranchReason_MergedShortDescription(authenticationName, StringUtils.join(merged, ", "));
+		}
 		return Messages.BranchReason_ShortDescription(authenticationName);
 	}
 }
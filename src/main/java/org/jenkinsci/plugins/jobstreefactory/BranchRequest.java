@@ -0,0 +1,351 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.maven.MavenModuleSet;
+import hudson.maven.MavenModuleSetBuild;
+import hudson.model.Hudson;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParameterValue;
+import hudson.model.ParametersAction;
+import hudson.model.ParametersDefinitionProperty;
+import hudson.model.PasswordParameterValue;
+import hudson.model.StringParameterValue;
+import hudson.model.queue.QueueTaskFuture;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Everything needed to schedule the branch build of a job.
+ *
+ * <p>
+ * The request captures the user that created it, so it can be scheduled later
+ * from a background thread.
+ *
+ * @author Iheb Khemissi
+ */
+public class BranchRequest {
+
+	private static final Pattern BRANCH_NAME = Pattern.compile("[A-Za-z0-9._/+-]+"); //$NON-NLS-1$
+
+	private final MavenModuleSet project;
+	private final BranchReason reason;
+
+	private String branchName;
+	private String releaseVersion;
+	private String developmentVersion;
+	private String branchBase;
+	private String scmUsername;
+	private String scmPassword;
+	private String scmCommentPrefix;
+	private boolean appendHusonUserName;
+	private final String hudsonUserName;
+	private final List<ParameterValue> parameters = new ArrayList<ParameterValue>();
+	private final Map<String, String> moduleReleaseVersions = new TreeMap<String, String>();
+	private final Map<String, String> moduleDevelopmentVersions = new TreeMap<String, String>();
+	private final List<String> completedSteps = new ArrayList<String>();
+	private int resumedBuild;
+
+	public BranchRequest(MavenModuleSet project) {
+		this.project = project;
+		this.reason = new BranchReason();
+		this.hudsonUserName = Hudson.getAuthentication().getName();
+	}
+
+	/**
+	 * Creates the request continuing a failed branch build, with the same
+	 * versions, parameters and completed steps.
+	 *
+	 * <p>
+	 * The SCM credentials and comment prefix are not persisted with the build:
+	 * they are only reused while the failed build is still in memory, the
+	 * caller may set them again.
+	 */
+	public static BranchRequest resume(MavenModuleSetBuild failed) {
+		BranchArgumentsAction args = failed.getAction(BranchArgumentsAction.class);
+		BranchRequest request = new BranchRequest(failed.getProject());
+		request.setBranchName(args.getBranchName());
+		request.setReleaseVersion(args.getReleaseVersion());
+		request.setDevelopmentVersion(args.getDevelopmentVersion());
+		request.setBranchBase(args.getBranchBase());
+		request.setScmUsername(args.getScmUsername());
+		request.setScmPassword(args.getScmPassword());
+		request.setScmCommentPrefix(args.getScmCommentPrefix());
+		request.setAppendHusonUserName(args.isAppendHusonUserName());
+		request.moduleReleaseVersions.putAll(args.getModuleReleaseVersions());
+		request.moduleDevelopmentVersions.putAll(args.getModuledevelopmentVersions());
+		request.completedSteps.addAll(args.getCompletedSteps());
+		request.resumedBuild = failed.getNumber();
+
+		// the parameters added by createParameters() are recomputed
+		Set<String> generated = new HashSet<String>();
+		generated.add(BranchBuildWrapper.DescriptorImpl.DEFAULT_RELEASE_VERSION_ENVVAR);
+		generated.add(BranchBuildWrapper.DescriptorImpl.DEFAULT_DEV_VERSION_ENVVAR);
+		BranchBuildWrapper m2Wrapper = request.project.getBuildWrappersList().get(BranchBuildWrapper.class);
+		if (m2Wrapper != null) {
+			generated.add(m2Wrapper.getScmUserEnvVar());
+			generated.add(m2Wrapper.getScmPasswordEnvVar());
+		}
+		ParametersAction parameters = failed.getAction(ParametersAction.class);
+		if (parameters != null) {
+			for (ParameterValue value : parameters.getParameters()) {
+				if (!generated.contains(value.getName())) {
+					request.addParameter(value);
+				}
+			}
+		}
+		return request;
+	}
+
+	public MavenModuleSet getProject() {
+		return project;
+	}
+
+	public String getBranchName() {
+		return branchName;
+	}
+
+	public void setBranchName(String branchName) {
+		this.branchName = branchName;
+	}
+
+	public String getReleaseVersion() {
+		return releaseVersion;
+	}
+
+	public void setReleaseVersion(String releaseVersion) {
+		this.releaseVersion = releaseVersion;
+	}
+
+	public String getDevelopmentVersion() {
+		return developmentVersion;
+	}
+
+	public void setDevelopmentVersion(String developmentVersion) {
+		this.developmentVersion = developmentVersion;
+	}
+
+	public String getBranchBase() {
+		return branchBase;
+	}
+
+	public void setBranchBase(String branchBase) {
+		this.branchBase = branchBase;
+	}
+
+	public String getScmUsername() {
+		return scmUsername;
+	}
+
+	public void setScmUsername(String scmUsername) {
+		this.scmUsername = scmUsername;
+	}
+
+	public String getScmPassword() {
+		return scmPassword;
+	}
+
+	public void setScmPassword(String scmPassword) {
+		this.scmPassword = scmPassword;
+	}
+
+	public String getScmCommentPrefix() {
+		return scmCommentPrefix;
+	}
+
+	public void setScmCommentPrefix(String scmCommentPrefix) {
+		this.scmCommentPrefix = scmCommentPrefix;
+	}
+
+	public boolean isAppendHusonUserName() {
+		return appendHusonUserName;
+	}
+
+	public void setAppendHusonUserName(boolean appendHusonUserName) {
+		this.appendHusonUserName = appendHusonUserName;
+	}
+
+	public String getHudsonUserName() {
+		return hudsonUserName;
+	}
+
+	/**
+	 * Gets the branch versions of the modules not following the root module.
+	 */
+	public Map<String, String> getModuleReleaseVersions() {
+		return moduleReleaseVersions;
+	}
+
+	/**
+	 * Gets the development versions of the modules not following the root
+	 * module.
+	 */
+	public Map<String, String> getModuleDevelopmentVersions() {
+		return moduleDevelopmentVersions;
+	}
+
+	/**
+	 * Gets the number of the failed build this request resumes.
+	 *
+	 * @return <code>0</code> if the request starts a new branch.
+	 */
+	public int getResumedBuild() {
+		return resumedBuild;
+	}
+
+	/**
+	 * Plans the versions of the modules whose version differs from the root
+	 * module one.
+	 */
+	public void planModuleVersions() {
+		moduleReleaseVersions.clear();
+		moduleDevelopmentVersions.clear();
+		BranchVersions.planModules(project.getModules(), project.getRootModule(), moduleReleaseVersions, moduleDevelopmentVersions);
+	}
+
+	/**
+	 * Adds the value of one of the job parameters.
+	 */
+	public void addParameter(ParameterValue value) {
+		parameters.add(value);
+	}
+
+	/**
+	 * Uses the default value of every job parameter.
+	 */
+	public void addDefaultParameters() {
+		ParametersDefinitionProperty pdp = project.getProperty(ParametersDefinitionProperty.class);
+		if (pdp != null) {
+			for (ParameterDefinition pd : pdp.getParameterDefinitions()) {
+				ParameterValue value = pd.getDefaultParameterValue();
+				if (value != null) {
+					parameters.add(value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Enforces that the developer version is actually a developer version and
+	 * ends with "-SNAPSHOT", and that the branch name is a valid one.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the version does not end with "-SNAPSHOT", or the branch
+	 *             name is not valid
+	 */
+	public void validate() throws IllegalArgumentException {
+		if (developmentVersion == null || !developmentVersion.endsWith("-SNAPSHOT")) {
+			throw new IllegalArgumentException(String.format(Locale.ENGLISH, "Developer Version (%s) is not a valid version (it must end with \"-SNAPSHOT\")",
+					developmentVersion));
+		}
+		if (branchName != null && !isValidBranchName(branchName)) {
+			throw new IllegalArgumentException(String.format(Locale.ENGLISH,
+					"Branch name (%s) is not valid (it may only hold letters, digits and . _ - + /, and must be a valid Git branch name)",
+					branchName));
+		}
+	}
+
+	/**
+	 * Tells if the given name can be used for a branch: it ends up in Git refs
+	 * and on the command line of the branch build, so only a safe subset of the
+	 * names allowed by <code>git check-ref-format</code> is accepted.
+	 */
+	static boolean isValidBranchName(String name) {
+		return BRANCH_NAME.matcher(name).matches() && !name.startsWith("-") && !name.startsWith("/") //$NON-NLS-1$ //$NON-NLS-2$
+				&& !name.endsWith("/") && !name.endsWith(".") && !name.endsWith(".lock") //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				&& !name.contains("..") && !name.contains("//") && !name.contains("/."); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+
+	/**
+	 * Creates the action recording what the branch build should do.
+	 */
+	public BranchArgumentsAction createArguments() {
+		BranchArgumentsAction arguments = new BranchArgumentsAction();
+
+		arguments.setReleaseVersion(releaseVersion);
+		arguments.setDevelopmentVersion(developmentVersion);
+		arguments.setBranchName(branchName);
+		arguments.setBranchBase(branchBase);
+		if (!moduleReleaseVersions.isEmpty()) {
+			arguments.setModuleReleaseVersions(moduleReleaseVersions);
+			arguments.setModuledevelopmentVersions(moduleDevelopmentVersions);
+		}
+
+		arguments.setRepoDescription("");
+		arguments.setScmUsername(scmUsername);
+		arguments.setScmPassword(scmPassword);
+		arguments.setScmCommentPrefix(scmCommentPrefix);
+		arguments.setAppendHusonUserName(appendHusonUserName);
+		arguments.setHudsonUserName(hudsonUserName);
+		arguments.setCompletedSteps(completedSteps);
+		arguments.setResumedBuild(resumedBuild);
+		return arguments;
+	}
+
+	/**
+	 * Creates the parameters of the branch build, including the ones exposing
+	 * the SCM credentials and the versions if the job is configured so.
+	 */
+	public ParametersAction createParameters() {
+		BranchBuildWrapper m2Wrapper = project.getBuildWrappersList().get(BranchBuildWrapper.class);
+		List<ParameterValue> values = new ArrayList<ParameterValue>(parameters);
+
+		// if configured, expose the SCM credentails as additional parameters
+		if (StringUtils.isNotBlank(m2Wrapper.getScmPasswordEnvVar())) {
+			String scmPasswordVal = StringUtils.isEmpty(scmPassword) ? "" : scmPassword;
+			values.add(new PasswordParameterValue(m2Wrapper.getScmPasswordEnvVar(), scmPasswordVal));
+		}
+		if (StringUtils.isNotBlank(m2Wrapper.getScmUserEnvVar())) {
+			String scmUsernameVal = StringUtils.isEmpty(scmUsername) ? "" : scmUsername;
+			values.add(new StringParameterValue(m2Wrapper.getScmUserEnvVar(), scmUsernameVal));
+		}
+		values.add(new StringParameterValue(BranchBuildWrapper.DescriptorImpl.DEFAULT_RELEASE_VERSION_ENVVAR, releaseVersion));
+		values.add(new StringParameterValue(BranchBuildWrapper.DescriptorImpl.DEFAULT_DEV_VERSION_ENVVAR, developmentVersion));
+
+		return new ParametersAction(values);
+	}
+
+	/**
+	 * Schedules the branch build, or joins the pending build of an identical
+	 * request.
+	 * 
+	 * @return <code>null</code> if the build could not be scheduled.
+	 * @throws BranchRequestQueue.ConflictException
+	 *             if the same branch is already being created with other
+	 *             versions.
+	 */
+	public QueueTaskFuture<MavenModuleSetBuild> schedule() throws BranchRequestQueue.ConflictException {
+		reason.markScheduled();
+		return BranchRequestQueue.schedule(this, reason);
+	}
+}
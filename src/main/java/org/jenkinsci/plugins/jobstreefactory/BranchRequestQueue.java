@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.maven.MavenModuleSetBuild;
+import hudson.model.queue.QueueTaskFuture;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Branch requests scheduled and not completed yet, by SCM repository.
+ *
+ * <p>
+ * A branch is created in the whole repository, whichever job branches it, so
+ * two requests for the same branch of a repository either are identical, of
+ * the same job with the same versions, in which case the later one is merged
+ * into the pending one and both requesters get the same build, or conflict,
+ * in which case the later one is rejected before it reaches the SCM. The
+ * repository of a job is the one {@link BranchGovernor} counts its builds
+ * against.
+ *
+ * @author Iheb Khemissi
+ */
+final class BranchRequestQueue {
+
+	/** Pending requests by repository, never empty, guarded by the class. */
+	private static final Map<String, List<Pending>> PENDING = new HashMap<String, List<Pending>>();
+
+	private BranchRequestQueue() {
+	}
+
+	/**
+	 * Schedules the branch build of the given request, unless an identical
+	 * request is already pending.
+	 *
+	 * @return the future of the build serving the request, <code>null</code>
+	 *         if it could not be scheduled.
+	 * @throws ConflictException
+	 *             if another request for the same branch is pending.
+	 */
+	static synchronized QueueTaskFuture<MavenModuleSetBuild> schedule(BranchRequest request, BranchReason reason) throws ConflictException {
+		prune();
+		String repository = BranchGovernor.getRepositoryKey(request.getProject());
+		String key = key(request);
+		List<Pending> pendings = PENDING.get(repository);
+		if (pendings != null) {
+			for (Pending pending : pendings) {
+				if (pending.key.equals(key)) {
+					pending.reason.addRequester(request.getHudsonUserName());
+					BranchMetrics.SUBMIT_MERGED.increment();
+					return pending.future;
+				} else if (StringUtils.equals(pending.branchName, request.getBranchName())) {
+					BranchMetrics.SUBMIT_CONFLICTS.increment();
+					throw new ConflictException(String.format("Branch %s is already being created by %s with other versions",
+							request.getBranchName(), pending.jobName));
+				}
+			}
+		}
+
+		QueueTaskFuture<MavenModuleSetBuild> future = request.getProject().scheduleBuild2(0, reason, request.createParameters(),
+				request.createArguments());
+		if (future != null) {
+			if (pendings == null) {
+				pendings = new ArrayList<Pending>();
+				PENDING.put(repository, pendings);
+			}
+			pendings.add(new Pending(key, request.getProject().getFullName(), request.getBranchName(), reason, future));
+		}
+		return future;
+	}
+
+	/**
+	 * Forgets the completed or cancelled requests, and the repositories left
+	 * without pending request.
+	 */
+	private static void prune() {
+		for (Iterator<List<Pending>> lists = PENDING.values().iterator(); lists.hasNext();) {
+			List<Pending> pendings = lists.next();
+			for (Iterator<Pending> it = pendings.iterator(); it.hasNext();) {
+				if (it.next().future.isDone()) {
+					it.remove();
+				}
+			}
+			if (pendings.isEmpty()) {
+				lists.remove();
+			}
+		}
+	}
+
+	/**
+	 * Identifies the branch a request creates, by which job, from which
+	 * versions.
+	 */
+	private static String key(BranchRequest request) {
+		return request.getProject().getFullName() + '\n' + request.getBranchName() + '\n' + request.getBranchBase() + '\n' + request.getReleaseVersion() + '\n'
+				+ request.getDevelopmentVersion() + '\n' + request.getModuleReleaseVersions() + '\n'
+				+ request.getModuleDevelopmentVersions();
+	}
+
+	private static final class Pending {
+		final String key;
+		final String jobName;
+		final String branchName;
+		final BranchReason reason;
+		final QueueTaskFuture<MavenModuleSetBuild> future;
+
+		Pending(String key, String jobName, String branchName, BranchReason reason, QueueTaskFuture<MavenModuleSetBuild> future) {
+			this.key = key;
+			this.jobName = jobName;
+			this.branchName = branchName;
+			this.reason = reason;
+			this.future = future;
+		}
+	}
+
+	/**
+	 * Thrown when a request conflicts with a pending one.
+	 */
+	public static class ConflictException extends IllegalStateException {
+		private static final long serialVersionUID = 1L;
+
+		ConflictException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.Extension;
+import hudson.maven.MavenModuleSetBuild;
+import hudson.model.Action;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TransientBuildActionFactory;
+import hudson.model.queue.QueueTaskFuture;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.ServletException;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Continues a failed branch build from the last step it completed.
+ *
+ * <p>
+ * The steps are recorded in the {@link BranchArgumentsAction} of the build:
+ * in native mode the new build skips the Git steps already done, otherwise
+ * <code>release:branch</code> is run with <code>-Dresume=true</code> so that
+ * it continues from the <code>release.properties</code> left in the workspace.
+ *
+ * @author Iheb Khemissi
+ */
+public class BranchResumeAction implements Action {
+
+	private final MavenModuleSetBuild build;
+
+	public BranchResumeAction(MavenModuleSetBuild build) {
+		this.build = build;
+	}
+
+	public MavenModuleSetBuild getBuild() {
+		return build;
+	}
+
+	public String getIconFileName() {
+		if (isResumable() && BranchBuildWrapper.hasBranchPermission(build.getProject())) {
+			return "/plugin/jobstreefactory/img/new-branch-24.gif"; //$NON-NLS-1$
+		}
+		// by returning null the link will not be shown.
+		return null;
+	}
+
+	public String getDisplayName() {
+		return Messages.BranchResumeAction_DisplayName();
+	}
+
+	public String getUrlName() {
+		return "jobstreefactory-resume"; //$NON-NLS-1$
+	}
+
+	/**
+	 * Whether the build is a completed branch build that did not succeed.
+	 */
+	public boolean isResumable() {
+		if (build.isBuilding() || build.getResult() == null || build.getResult().isBetterOrEqualTo(Result.SUCCESS)) {
+			return false;
+		}
+		return build.getAction(BranchArgumentsAction.class) != null
+				&& build.getProject().getBuildWrappersList().get(BranchBuildWrapper.class) != null;
+	}
+
+	/**
+	 * Gets the branch steps the build completed, oldest first.
+	 */
+	public List<String> getCompletedSteps() {
+		BranchArgumentsAction args = build.getAction(BranchArgumentsAction.class);
+		return args == null ? Collections.<String>emptyList() : args.getCompletedSteps();
+	}
+
+	public BranchArgumentsAction getArguments() {
+		return build.getAction(BranchArgumentsAction.class);
+	}
+
+	public void doSubmit(StaplerRequest req, StaplerResponse resp) throws IOException, ServletException {
+		BranchBuildWrapper.checkBranchPermission(build.getProject());
+		if (!isResumable()) {
+			resp.sendError(StaplerResponse.SC_CONFLICT, "Build " + build.getFullDisplayName() + " cannot be resumed"); //$NON-NLS-1$ //$NON-NLS-2$
+			return;
+		}
+
+		BranchRequest request = BranchRequest.resume(build);
+		if (req.getParameter("specifyScmCredentials") != null) { //$NON-NLS-1$
+			request.setScmUsername(StringUtils.trimToNull(req.getParameter("scmUsername"))); //$NON-NLS-1$
+			request.setScmPassword(StringUtils.trimToNull(req.getParameter("scmPassword"))); //$NON-NLS-1$
+		}
+
+		QueueTaskFuture<MavenModuleSetBuild> future;
+		try {
+			future = request.schedule();
+		} catch (BranchRequestQueue.ConflictException e) {
+			req.setAttribute("conflict", e.getMessage()); //$NON-NLS-1$
+			req.getView(build.getProject().getAction(BranchAction.class), "conflict.jelly").forward(req, resp); //$NON-NLS-1$
+			return;
+		}
+		if (future == null) {
+			BranchMetrics.SUBMIT_FAILURES.increment();
+			resp.sendRedirect(req.getContextPath() + '/' + build.getProject().getUrl() + "jobstreefactory/failed"); //$NON-NLS-1$
+			return;
+		}
+		resp.sendRedirect(req.getContextPath() + '/' + build.getProject().getUrl());
+	}
+
+	/**
+	 * Offers to resume the branch builds of the jobs having a
+	 * {@link BranchBuildWrapper}.
+	 */
+	@Extension
+	public static class Factory extends TransientBuildActionFactory {
+
+		@Override
+		public Collection<? extends Action> createFor(@SuppressWarnings("rawtypes") Run target) {
+			if (target instanceof MavenModuleSetBuild && target.getAction(BranchArgumentsAction.class) != null) {
+				return Collections.singleton(new BranchResumeAction((MavenModuleSetBuild) target));
+			}
+			return Collections.emptyList();
+		}
+	}
+}
@@ -0,0 +1,446 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.Util;
+import hudson.model.Job;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Rolling statistics of the branch builds of some jobs: how many per week, how
+ * long they take, how often they fail and who requests them.
+ *
+ * <p>
+ * Each job keeps one bucket per week over the last {@link #WEEKS} weeks. The
+ * buckets are seeded once from the {@link BranchBuildIndex} of the job, then
+ * fed by {@link BranchBuildIndexListener} as branch builds complete. A bucket
+ * has a fixed size: the durations go into a histogram of {@value #BINS}
+ * log-scale bins, each about 20% wider than the previous one, and at most
+ * {@link #MAX_REQUESTERS} requesters are counted by name. Folders and
+ * dashboards merge the buckets of their jobs on demand, so the median and the
+ * 95th percentile are within 10% of the exact ones. Deleted builds stay
+ * counted, the statistics are about what ran.
+ *
+ * @author Iheb Khemissi
+ */
+public final class BranchStatistics {
+
+	/** Number of weeks covered by the statistics, the current one included. */
+	public static final int WEEKS = Math.max(1, Integer.getInteger(BranchStatistics.class.getName() + ".weeks", 12)); //$NON-NLS-1$
+
+	/** Number of requesters counted by name in each weekly bucket. */
+	static final int MAX_REQUESTERS = Integer.getInteger(BranchStatistics.class.getName() + ".maxRequesters", 16); //$NON-NLS-1$
+
+	private static final long WEEK = TimeUnit.DAYS.toMillis(7);
+
+	static final int BINS = 64;
+
+	/** Ratio between the bounds of two consecutive bins, in seconds. */
+	private static final double BIN_GROWTH = 1.2;
+
+	private static final Map<Job<?, ?>, Window> WINDOWS = new WeakHashMap<Job<?, ?>, Window>();
+
+	private final long firstWeek;
+	private final int[] weeklyBuilds = new int[WEEKS];
+	private final int[] bins = new int[BINS];
+	private final Map<String, Integer> requesters = new HashMap<String, Integer>();
+	private int builds;
+	private int failures;
+	private int timedBuilds;
+	private int otherRequests;
+
+	private BranchStatistics(long now) {
+		this.firstWeek = now / WEEK - WEEKS + 1;
+	}
+
+	/**
+	 * Merges the statistics of the given jobs, skipping the ones not
+	 * configured for branch builds.
+	 */
+	@SuppressWarnings("rawtypes")
+	public static BranchStatistics of(Collection<? extends Job> jobs) {
+		BranchStatistics statistics = new BranchStatistics(System.currentTimeMillis());
+		for (Job<?, ?> job : jobs) {
+			if (BranchBuildWrapper.isBranchJob(job)) {
+				window(job).mergeInto(statistics);
+			}
+		}
+		return statistics;
+	}
+
+	/**
+	 * Counts a completed branch build, once it was added to the index of its
+	 * job.
+	 *
+	 * <p>
+	 * Must be called with the monitor of the index, so that the build is not
+	 * counted twice if the statistics of the job are seeded meanwhile.
+	 */
+	static void completed(Job<?, ?> job, BranchBuildRecord record) {
+		Window window;
+		synchronized (WINDOWS) {
+			window = WINDOWS.get(job);
+		}
+		if (window != null) {
+			window.completed(record, System.currentTimeMillis() / WEEK);
+		}
+	}
+
+	/**
+	 * Drops the statistics of the given job, to seed them again from its index
+	 * when they are next used.
+	 */
+	static void invalidate(Job<?, ?> job) {
+		synchronized (WINDOWS) {
+			WINDOWS.remove(job);
+		}
+	}
+
+	private static Window window(Job<?, ?> job) {
+		BranchBuildIndex index = BranchBuildIndex.of(job);
+		Window window;
+		synchronized (WINDOWS) {
+			window = WINDOWS.get(job);
+			if (window == null) {
+				window = new Window();
+				WINDOWS.put(job, window);
+			}
+		}
+		// same lock order as the listener: the index, then the window; until
+		// seeded, the window leaves the completed builds to the seed
+		synchronized (index) {
+			window.seed(index.getRecords());
+		}
+		return window;
+	}
+
+	/**
+	 * Gets the number of branch builds over the last {@link #WEEKS} weeks.
+	 */
+	public int getBuilds() {
+		return builds;
+	}
+
+	public int getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Gets the share of the branch builds that did not succeed, between 0 and 1.
+	 */
+	public double getFailureRate() {
+		return builds == 0 ? 0 : (double) failures / builds;
+	}
+
+	public double getBuildsPerWeek() {
+		return (double) builds / WEEKS;
+	}
+
+	/**
+	 * Gets when the given week started, 0 being the oldest week counted.
+	 */
+	public Date getWeekStart(int week) {
+		return new Date((firstWeek + week) * WEEK);
+	}
+
+	/**
+	 * Gets the number of branch builds of each week, the oldest first.
+	 */
+	public int[] getWeeklyBuilds() {
+		return weeklyBuilds.clone();
+	}
+
+	/**
+	 * Gets the median duration of the branch builds, in milliseconds.
+	 *
+	 * @return <code>0</code> if none of the builds recorded its duration.
+	 */
+	public long getMedianDuration() {
+		return getDurationPercentile(0.5);
+	}
+
+	/**
+	 * Gets the 95th percentile of the duration of the branch builds, in
+	 * milliseconds.
+	 *
+	 * @return <code>0</code> if none of the builds recorded its duration.
+	 */
+	public long getP95Duration() {
+		return getDurationPercentile(0.95);
+	}
+
+	/**
+	 * Same as {@link #getMedianDuration()}, for humans.
+	 */
+	public String getMedianDurationString() {
+		return timedBuilds == 0 ? "N/A" : Util.getTimeSpanString(getMedianDuration()); //$NON-NLS-1$
+	}
+
+	/**
+	 * Same as {@link #getP95Duration()}, for humans.
+	 */
+	public String getP95DurationString() {
+		return timedBuilds == 0 ? "N/A" : Util.getTimeSpanString(getP95Duration()); //$NON-NLS-1$
+	}
+
+	private long getDurationPercentile(double quantile) {
+		if (timedBuilds == 0) {
+			return 0;
+		}
+		int rank = Math.max(1, (int) Math.ceil(quantile * timedBuilds));
+		int seen = 0;
+		for (int bin = 0; bin < BINS; bin++) {
+			seen += bins[bin];
+			if (seen >= rank) {
+				return toDuration(bin);
+			}
+		}
+		return toDuration(BINS - 1);
+	}
+
+	/**
+	 * Gets the users who requested the most branch builds, the most active
+	 * first.
+	 */
+	public List<Requester> getTopRequesters(int max) {
+		List<Requester> list = new ArrayList<Requester>(requesters.size());
+		for (Map.Entry<String, Integer> entry : requesters.entrySet()) {
+			list.add(new Requester(entry.getKey(), entry.getValue()));
+		}
+		Collections.sort(list, Requester.MOST_ACTIVE_FIRST);
+		return list.size() > max ? list.subList(0, max) : list;
+	}
+
+	/**
+	 * Gets the number of branch builds whose requester was not counted by name,
+	 * as a week already had {@link #MAX_REQUESTERS} others.
+	 */
+	public int getOtherRequests() {
+		return otherRequests;
+	}
+
+	public JSONObject toJson(int topRequesters) {
+		JSONArray weekly = new JSONArray();
+		for (int count : weeklyBuilds) {
+			weekly.add(count);
+		}
+		JSONArray top = new JSONArray();
+		for (Requester requester : getTopRequesters(topRequesters)) {
+			JSONObject json = new JSONObject();
+			json.put("user", requester.getUserName()); //$NON-NLS-1$
+			json.put("builds", requester.getBuilds()); //$NON-NLS-1$
+			top.add(json);
+		}
+		JSONObject json = new JSONObject();
+		json.put("weeks", WEEKS); //$NON-NLS-1$
+		json.put("since", firstWeek * WEEK); //$NON-NLS-1$
+		json.put("builds", builds); //$NON-NLS-1$
+		json.put("buildsPerWeek", getBuildsPerWeek()); //$NON-NLS-1$
+		json.put("weeklyBuilds", weekly); //$NON-NLS-1$
+		json.put("failures", failures); //$NON-NLS-1$
+		json.put("failureRate", getFailureRate()); //$NON-NLS-1$
+		json.put("medianDuration", getMedianDuration()); //$NON-NLS-1$
+		json.put("p95Duration", getP95Duration()); //$NON-NLS-1$
+		json.put("topRequesters", top); //$NON-NLS-1$
+		json.put("otherRequests", otherRequests); //$NON-NLS-1$
+		return json;
+	}
+
+	static int toBin(long duration) {
+		double seconds = duration / 1000.0;
+		if (seconds < 1) {
+			return 0;
+		}
+		return Math.min(BINS - 1, 1 + (int) (Math.log(seconds) / Math.log(BIN_GROWTH)));
+	}
+
+	/** Gets the geometric middle of the given bin, in milliseconds. */
+	static long toDuration(int bin) {
+		if (bin == 0) {
+			return 500;
+		}
+		return (long) (1000 * Math.pow(BIN_GROWTH, bin - 0.5));
+	}
+
+	/**
+	 * A user and the number of branch builds they requested.
+	 */
+	public static final class Requester {
+		static final Comparator<Requester> MOST_ACTIVE_FIRST = new Comparator<Requester>() {
+			public int compare(Requester o1, Requester o2) {
+				if (o1.builds != o2.builds) {
+					return o2.builds - o1.builds;
+				}
+				return o1.userName.compareTo(o2.userName);
+			}
+		};
+
+		private final String userName;
+		private final int builds;
+
+		Requester(String userName, int builds) {
+			this.userName = userName;
+			this.builds = builds;
+		}
+
+		public String getUserName() {
+			return userName;
+		}
+
+		public int getBuilds() {
+			return builds;
+		}
+	}
+
+	/**
+	 * The weekly buckets of a job, guarded by <code>this</code>.
+	 */
+	private static final class Window {
+		private final Bucket[] buckets = new Bucket[WEEKS];
+		private boolean seeded;
+
+		synchronized void seed(List<BranchBuildRecord> records) {
+			if (seeded) {
+				return;
+			}
+			long week = System.currentTimeMillis() / WEEK;
+			for (BranchBuildRecord record : records) {
+				if (record.getTimestamp() / WEEK <= week - WEEKS) {
+					// newest first, the rest is older
+					break;
+				}
+				add(record, week);
+			}
+			seeded = true;
+		}
+
+		/**
+		 * Counts a completed build, unless the window is not seeded yet: the
+		 * build is already in the index the seed will read.
+		 */
+		synchronized void completed(BranchBuildRecord record, long currentWeek) {
+			if (seeded) {
+				add(record, currentWeek);
+			}
+		}
+
+		synchronized void add(BranchBuildRecord record, long currentWeek) {
+			long week = record.getTimestamp() / WEEK;
+			if (week <= currentWeek - WEEKS) {
+				return;
+			}
+			int slot = (int) (week % WEEKS);
+			Bucket bucket = buckets[slot];
+			if (bucket == null || bucket.week < week) {
+				// the slot held a week that left the window
+				bucket = new Bucket(week);
+				buckets[slot] = bucket;
+			} else if (bucket.week > week) {
+				return;
+			}
+			bucket.add(record);
+		}
+
+		synchronized void mergeInto(BranchStatistics statistics) {
+			for (Bucket bucket : buckets) {
+				if (bucket != null && bucket.week >= statistics.firstWeek) {
+					bucket.mergeInto(statistics);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The branch builds of a job started during a week.
+	 */
+	private static final class Bucket {
+		final long week;
+		final int[] bins = new int[BINS];
+		final Map<String, Integer> requesters = new HashMap<String, Integer>();
+		int builds;
+		int failures;
+		int timedBuilds;
+		int otherRequests;
+
+		Bucket(long week) {
+			this.week = week;
+		}
+
+		void add(BranchBuildRecord record) {
+			builds++;
+			if (!record.isSuccess()) {
+				failures++;
+			}
+			if (record.getDuration() > 0) {
+				bins[toBin(record.getDuration())]++;
+				timedBuilds++;
+			}
+			String userName = record.getUserName();
+			if (userName == null) {
+				return;
+			}
+			Integer count = requesters.get(userName);
+			if (count != null) {
+				requesters.put(userName, count + 1);
+			} else if (requesters.size() < MAX_REQUESTERS) {
+				requesters.put(userName, 1);
+			} else {
+				otherRequests++;
+			}
+		}
+
+		void mergeInto(BranchStatistics statistics) {
+			int index = (int) (week - statistics.firstWeek);
+			if (index >= WEEKS) {
+				// started after the statistics
+				return;
+			}
+			statistics.weeklyBuilds[index] += builds;
+			statistics.builds += builds;
+			statistics.failures += failures;
+			statistics.timedBuilds += timedBuilds;
+			statistics.otherRequests += otherRequests;
+			for (int bin = 0; bin < BINS; bin++) {
+				statistics.bins[bin] += bins[bin];
+			}
+			for (Map.Entry<String, Integer> entry : requesters.entrySet()) {
+				Integer count = statistics.requesters.get(entry.getKey());
+				statistics.requesters.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+			}
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.Extension;
+import hudson.maven.MavenModuleSet;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.RootAction;
+import hudson.model.TopLevelItem;
+import hudson.model.TransientProjectActionFactory;
+import hudson.model.TransientViewActionFactory;
+import hudson.model.View;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * JSON API reporting the {@link BranchStatistics} at
+ * <code>jobstreefactory-statistics/</code> under Jenkins, any view and any
+ * job.
+ *
+ * <p>
+ * The <code>top</code> query parameter sets the number of requesters listed,
+ * {@value #DEFAULT_TOP} by default. Under Jenkins, the <code>folder</code>
+ * parameter restricts the statistics to the jobs within the folder of that
+ * full name.
+ *
+ * @author Iheb Khemissi
+ */
+public abstract class BranchStatisticsAction implements Action {
+
+	public static final int DEFAULT_TOP = 5;
+
+	public String getIconFileName() {
+		// API only
+		return null;
+	}
+
+	public String getDisplayName() {
+		return "Branch statistics";
+	}
+
+	public String getUrlName() {
+		return "jobstreefactory-statistics"; //$NON-NLS-1$
+	}
+
+	/**
+	 * Gets the jobs whose branch builds are counted.
+	 *
+	 * @return <code>null</code> if the request does not designate any.
+	 */
+	@SuppressWarnings("rawtypes")
+	protected abstract Collection<? extends Job> getJobs(StaplerRequest req);
+
+	@SuppressWarnings("rawtypes")
+	public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		Collection<? extends Job> jobs = getJobs(req);
+		if (jobs == null) {
+			rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+			return;
+		}
+		int top = DEFAULT_TOP;
+		String value = StringUtils.trimToNull(req.getParameter("top")); //$NON-NLS-1$
+		if (value != null) {
+			try {
+				top = Math.max(0, Integer.parseInt(value));
+			} catch (NumberFormatException e) {
+				rsp.sendError(StaplerResponse.SC_BAD_REQUEST, "Invalid top: " + value);
+				return;
+			}
+		}
+		rsp.setContentType("application/json;charset=UTF-8"); //$NON-NLS-1$
+		rsp.getWriter().print(BranchStatistics.of(jobs).toJson(top).toString());
+	}
+
+	/**
+	 * Collects the branch jobs within the given group and its subgroups, that
+	 * the current user can see.
+	 */
+	@SuppressWarnings("rawtypes")
+	static void collectJobs(ItemGroup<?> group, List<Job> jobs) {
+		for (Item item : group.getItems()) {
+			if (!item.hasPermission(Item.READ)) {
+				continue;
+			}
+			if (item instanceof Job) {
+				if (BranchBuildWrapper.isBranchJob((Job) item)) {
+					jobs.add((Job) item);
+				}
+			} else if (item instanceof ItemGroup) {
+				collectJobs((ItemGroup<?>) item, jobs);
+			}
+		}
+	}
+
+	/**
+	 * Counts the branch builds of all the jobs, or of the jobs of a folder.
+	 */
+	@Extension
+	public static class Root extends BranchStatisticsAction implements RootAction {
+		@SuppressWarnings("rawtypes")
+		@Override
+		protected Collection<? extends Job> getJobs(StaplerRequest req) {
+			Jenkins jenkins = Jenkins.getInstance();
+			String folder = StringUtils.trimToNull(req.getParameter("folder")); //$NON-NLS-1$
+			if (folder == null) {
+				List<Job> jobs = new ArrayList<Job>();
+				for (MavenModuleSet job : jenkins.getAllItems(MavenModuleSet.class)) {
+					if (BranchBuildWrapper.isBranchJob(job)) {
+						jobs.add(job);
+					}
+				}
+				return jobs;
+			}
+			Item item = jenkins.getItemByFullName(folder);
+			if (!(item instanceof ItemGroup)) {
+				return null;
+			}
+			List<Job> jobs = new ArrayList<Job>();
+			collectJobs((ItemGroup<?>) item, jobs);
+			return jobs;
+		}
+	}
+
+	/**
+	 * Counts the branch builds of the jobs of a view.
+	 */
+	public static class ForView extends BranchStatisticsAction {
+		private final View view;
+
+		ForView(View view) {
+			this.view = view;
+		}
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		protected Collection<? extends Job> getJobs(StaplerRequest req) {
+			List<Job> jobs = new ArrayList<Job>();
+			for (TopLevelItem item : view.getItems()) {
+				if (item instanceof Job) {
+					jobs.add((Job) item);
+				}
+			}
+			return jobs;
+		}
+
+		@Extension
+		public static class Factory extends TransientViewActionFactory {
+			@Override
+			public List<Action> createFor(View v) {
+				return Collections.<Action> singletonList(new ForView(v));
+			}
+		}
+	}
+
+	/**
+	 * Counts the branch builds of a single job.
+	 */
+	public static class ForJob extends BranchStatisticsAction {
+		private final Job<?, ?> job;
+
+		ForJob(Job<?, ?> job) {
+			this.job = job;
+		}
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		protected Collection<? extends Job> getJobs(StaplerRequest req) {
+			job.checkPermission(Item.READ);
+			return Collections.singletonList(job);
+		}
+
+		@Extension
+		public static class Factory extends TransientProjectActionFactory {
+			@SuppressWarnings("rawtypes")
+			@Override
+			public Collection<? extends Action> createFor(AbstractProject target) {
+				if (!BranchBuildWrapper.isBranchJob(target)) {
+					return Collections.emptyList();
+				}
+				return Collections.singletonList(new ForJob(target));
+			}
+		}
+	}
+}
@@ -0,0 +1,265 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.maven.MavenModuleSetBuild;
+import hudson.model.Result;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Branch request submitted asynchronously, scheduled in the background and
+ * followed at <code>submission/ID/</code> under the {@link BranchAction}.
+ *
+ * <p>
+ * The stage is derived from the build future when it is asked for, so a
+ * submission costs no thread once its build is scheduled.
+ *
+ * @author Iheb Khemissi
+ */
+public class BranchSubmission implements Runnable {
+
+	private static final Logger LOGGER = Logger.getLogger(BranchSubmission.class.getName());
+
+	/** Number of threads scheduling the submitted requests. */
+	static final int PARALLELISM = Integer.getInteger(BranchSubmission.class.getName() + ".parallelism", 2);
+
+	/** Number of completed submissions kept for their stage to be reported. */
+	private static final int MAX_SUBMISSIONS = 1000;
+
+	/** How long a completed submission is kept, in milliseconds. */
+	private static final long RETENTION = TimeUnit.HOURS.toMillis(1);
+
+	private static final ExecutorService POOL = Executors.newFixedThreadPool(Math.max(1, PARALLELISM), new DaemonThreadFactory());
+
+	/** Submissions by id, oldest first, guarded by the map. */
+	private static final Map<String, BranchSubmission> SUBMISSIONS = new LinkedHashMap<String, BranchSubmission>();
+
+	public enum Stage {
+		/** Accepted, not handed to the Jenkins queue yet. */
+		QUEUED,
+		/** In the Jenkins queue. */
+		WAITING_FOR_EXECUTOR,
+		/** The branch build is running Maven. */
+		RUNNING,
+		/** The branch build succeeded. */
+		CREATED,
+		FAILED;
+
+		public boolean isCompleted() {
+			return this == CREATED || this == FAILED;
+		}
+	}
+
+	private final String id = UUID.randomUUID().toString();
+	private final BranchRequest request;
+	private final long submitTime = System.currentTimeMillis();
+	private volatile QueueTaskFuture<MavenModuleSetBuild> future;
+	private volatile String failure;
+	private volatile long completionTime;
+
+	private BranchSubmission(BranchRequest request) {
+		this.request = request;
+	}
+
+	/**
+	 * Plans, validates and schedules the given request in the background.
+	 */
+	public static BranchSubmission submit(BranchRequest request) {
+		BranchSubmission submission = new BranchSubmission(request);
+		synchronized (SUBMISSIONS) {
+			prune();
+			SUBMISSIONS.put(submission.id, submission);
+		}
+		POOL.submit(submission);
+		return submission;
+	}
+
+	/**
+	 * Gets a submission.
+	 *
+	 * @return <code>null</code> if unknown or forgotten.
+	 */
+	public static BranchSubmission get(String id) {
+		synchronized (SUBMISSIONS) {
+			return SUBMISSIONS.get(id);
+		}
+	}
+
+	/** Forgets the completed submissions that are too old or too many. */
+	private static void prune() {
+		long oldest = System.currentTimeMillis() - RETENTION;
+		int excess = SUBMISSIONS.size() - MAX_SUBMISSIONS;
+		for (Iterator<BranchSubmission> it = SUBMISSIONS.values().iterator(); it.hasNext();) {
+			BranchSubmission submission = it.next();
+			if (submission.getStage().isCompleted() && (excess > 0 || submission.completionTime < oldest)) {
+				it.remove();
+				excess--;
+			}
+		}
+	}
+
+	public void run() {
+		try {
+			request.planModuleVersions();
+			request.validate();
+			future = request.schedule();
+			if (future == null) {
+				fail("The branch build could not be scheduled");
+			}
+		} catch (RuntimeException e) {
+			// invalid versions and conflicts with pending requests
+			LOGGER.log(Level.FINE, "Branch submission " + id + " failed", e);
+			fail(e.getMessage());
+		}
+	}
+
+	private void fail(String reason) {
+		failure = reason == null ? "Unknown error" : reason;
+		completionTime = System.currentTimeMillis();
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public BranchRequest getRequest() {
+		return request;
+	}
+
+	public Stage getStage() {
+		if (failure != null) {
+			return Stage.FAILED;
+		}
+		QueueTaskFuture<MavenModuleSetBuild> f = future;
+		if (f == null) {
+			return Stage.QUEUED;
+		}
+		if (f.isDone()) {
+			MavenModuleSetBuild build = getBuild(f);
+			if (build == null || build.getResult() != Result.SUCCESS) {
+				return Stage.FAILED;
+			}
+			return Stage.CREATED;
+		}
+		return f.getStartCondition().isDone() ? Stage.RUNNING : Stage.WAITING_FOR_EXECUTOR;
+	}
+
+	/**
+	 * Gets the reason of the failure.
+	 *
+	 * @return <code>null</code> unless the stage is {@link Stage#FAILED}.
+	 */
+	public String getFailure() {
+		if (failure != null) {
+			return failure;
+		}
+		QueueTaskFuture<MavenModuleSetBuild> f = future;
+		if (f == null || !f.isDone()) {
+			return null;
+		}
+		MavenModuleSetBuild build = getBuild(f);
+		if (build == null) {
+			return "The branch build was cancelled";
+		}
+		if (build.getResult() != Result.SUCCESS) {
+			return "Branch build #" + build.getNumber() + " ended with result " + build.getResult();
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the branch build once it has started.
+	 *
+	 * @return <code>null</code> if it has not started yet, or was cancelled.
+	 */
+	public MavenModuleSetBuild getBuild() {
+		QueueTaskFuture<MavenModuleSetBuild> f = future;
+		if (f == null || !f.getStartCondition().isDone()) {
+			return null;
+		}
+		return getBuild(f.getStartCondition());
+	}
+
+	private MavenModuleSetBuild getBuild(Future<MavenModuleSetBuild> f) {
+		try {
+			MavenModuleSetBuild build = f.get();
+			if (f == future && completionTime == 0) {
+				completionTime = System.currentTimeMillis();
+			}
+			return build;
+		} catch (CancellationException e) {
+			return null;
+		} catch (ExecutionException e) {
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Reports the stage of the submission as JSON.
+	 */
+	public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		BranchBuildWrapper.checkBranchPermission(request.getProject());
+		Stage stage = getStage();
+		JSONObject status = new JSONObject();
+		status.put("id", id); //$NON-NLS-1$
+		status.put("job", request.getProject().getFullName()); //$NON-NLS-1$
+		status.put("branchName", request.getBranchName()); //$NON-NLS-1$
+		status.put("stage", stage.name()); //$NON-NLS-1$
+		status.put("completed", stage.isCompleted()); //$NON-NLS-1$
+		status.put("submitted", submitTime); //$NON-NLS-1$
+		MavenModuleSetBuild build = getBuild();
+		if (build != null) {
+			status.put("build", build.getNumber()); //$NON-NLS-1$
+			status.put("url", build.getUrl()); //$NON-NLS-1$
+		}
+		if (stage == Stage.FAILED) {
+			status.put("failure", getFailure()); //$NON-NLS-1$
+		}
+		rsp.setContentType("application/json;charset=UTF-8"); //$NON-NLS-1$
+		rsp.getWriter().print(status.toString());
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.maven.MavenModule;
+import hudson.util.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.shared.release.versions.DefaultVersionInfo;
+import org.apache.maven.shared.release.versions.VersionParseException;
+
+/**
+ * The versions derived from the version of a root module, parsed once.
+ *
+ * @author Iheb Khemissi
+ */
+public final class BranchVersions {
+
+	private static final Logger LOGGER = Logger.getLogger(BranchVersions.class.getName());
+
+	/** Number of threads parsing the module versions of large reactors. */
+	static final int PARALLELISM = Integer.getInteger(BranchVersions.class.getName() + ".parallelism",
+			Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	/** Below that many modules, the versions are parsed on the calling thread. */
+	static final int PARALLEL_THRESHOLD = 64;
+
+	private static final ExecutorService POOL = Executors.newFixedThreadPool(Math.max(1, PARALLELISM), new DaemonThreadFactory());
+
+	private final String moduleName;
+	private final String version;
+
+	private final String currentVersion;
+	private final String branchVersion;
+	private final String nextVersion;
+	private final String repoDescription;
+	private final String scmTag;
+
+	private BranchVersions(MavenModule rootModule) {
+		this.moduleName = rootModule == null ? null : rootModule.getName();
+		this.version = rootModule == null ? null : rootModule.getVersion();
+
+		String current = "NaN-SNAPSHOT";
+		String branch = "NaN";
+		String next = "NaN-SNAPSHOT";
+		if (StringUtils.isNotBlank(version)) {
+			current = version;
+			try {
+				DefaultVersionInfo dvi = new DefaultVersionInfo(version);
+				branch = dvi.getReleaseVersionString();
+				try {
+					next = dvi.getNextVersion().getSnapshotVersionString();
+				} catch (RuntimeException e) {
+					LOGGER.log(Level.WARNING, "Failed to compute next version.", e);
+				}
+			} catch (VersionParseException vpEx) {
+				LOGGER.log(Level.WARNING, "Failed to compute next version.", vpEx);
+				branch = version.replace("-SNAPSHOT", "");
+			}
+		}
+		this.currentVersion = current;
+		this.branchVersion = branch;
+		this.nextVersion = next;
+		this.repoDescription = moduleName + ':' + branch;
+		// maven default is artifact-version
+		String artifactId = rootModule == null ? "JOBSTREEFACTORY-TAG" : rootModule.getModuleName().artifactId;
+		this.scmTag = artifactId + '-' + branch;
+	}
+
+	/**
+	 * Gets the versions derived from the given root module, reusing the
+	 * previous ones if the module name and version have not changed.
+	 *
+	 * @param previous
+	 *        the versions computed earlier, may be <code>null</code>.
+	 */
+	public static BranchVersions of(MavenModule rootModule, BranchVersions previous) {
+		if (previous != null && previous.isFor(rootModule)) {
+			return previous;
+		}
+		return new BranchVersions(rootModule);
+	}
+
+	private boolean isFor(MavenModule rootModule) {
+		if (rootModule == null) {
+			return moduleName == null && version == null;
+		}
+		return StringUtils.equals(moduleName, rootModule.getName()) && StringUtils.equals(version, rootModule.getVersion());
+	}
+
+	/**
+	 * @return the version of the root module, <code>NaN-SNAPSHOT</code> if unknown.
+	 */
+	public String getCurrentVersion() {
+		return currentVersion;
+	}
+
+	/**
+	 * @return the release version of the branch, <code>NaN</code> if unknown.
+	 */
+	public String getBranchVersion() {
+		return branchVersion;
+	}
+
+	/**
+	 * @return the development version following the current one.
+	 */
+	public String getNextVersion() {
+		return nextVersion;
+	}
+
+	public String getRepoDescription() {
+		return repoDescription;
+	}
+
+	public String getScmTag() {
+		return scmTag;
+	}
+
+	/**
+	 * Plans the branch versions of the modules whose version differs from the
+	 * root module one, the others simply follow the root module.
+	 *
+	 * @param releaseVersions
+	 *        receives the branch version of each module, by
+	 *        <code>groupId:artifactId</code>.
+	 * @param developmentVersions
+	 *        receives the development version of each module, by
+	 *        <code>groupId:artifactId</code>.
+	 */
+	public static void planModules(Collection<MavenModule> modules, MavenModule rootModule, Map<String, String> releaseVersions,
+			Map<String, String> developmentVersions) {
+		final String rootVersion = rootModule == null ? null : rootModule.getVersion();
+		List<MavenModule> independent = new ArrayList<MavenModule>();
+		for (MavenModule module : modules) {
+			if (StringUtils.isNotBlank(module.getVersion()) && !module.getVersion().equals(rootVersion)) {
+				independent.add(module);
+			}
+		}
+
+		if (independent.size() < PARALLEL_THRESHOLD || PARALLELISM <= 1) {
+			record(parse(independent), releaseVersions, developmentVersions);
+			return;
+		}
+
+		int chunkSize = (independent.size() + PARALLELISM - 1) / PARALLELISM;
+		List<Future<Map<String, BranchVersions>>> futures = new ArrayList<Future<Map<String, BranchVersions>>>();
+		for (int i = 0; i < independent.size(); i += chunkSize) {
+			final List<MavenModule> chunk = independent.subList(i, Math.min(i + chunkSize, independent.size()));
+			futures.add(POOL.submit(new Callable<Map<String, BranchVersions>>() {
+				public Map<String, BranchVersions> call() {
+					return parse(chunk);
+				}
+			}));
+		}
+		try {
+			for (Future<Map<String, BranchVersions>> future : futures) {
+				record(future.get(), releaseVersions, developmentVersions);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while planning the module versions", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Failed to plan the module versions", e.getCause());
+		}
+	}
+
+	private static Map<String, BranchVersions> parse(List<MavenModule> modules) {
+		Map<String, BranchVersions> parsed = new TreeMap<String, BranchVersions>();
+		for (MavenModule module : modules) {
+			parsed.put(module.getModuleName().toString(), new BranchVersions(module));
+		}
+		return parsed;
+	}
+
+	private static void record(Map<String, BranchVersions> parsed, Map<String, String> releaseVersions, Map<String, String> developmentVersions) {
+		for (Map.Entry<String, BranchVersions> entry : parsed.entrySet()) {
+			releaseVersions.put(entry.getKey(), entry.getValue().getBranchVersion());
+			developmentVersions.put(entry.getKey(), entry.getValue().getCurrentVersion());
+		}
+	}
+}
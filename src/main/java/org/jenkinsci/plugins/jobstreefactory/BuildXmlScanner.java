@@ -0,0 +1,346 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.Util;
+import hudson.model.Job;
+import hudson.model.Result;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Reads the branch builds of a job straight from the <code>build.xml</code>
+ * files of its build directories, without loading the builds.
+ *
+ * <p>
+ * Only the build number, timestamp, duration and result, and the fields of the
+ * {@link BranchBadgeAction}, {@link BranchArgumentsAction} and
+ * {@link BranchReason} are read, with a streaming parser. The version of the
+ * legacy badges is recovered from their tooltip text, like
+ * {@link BranchBadgeAction#readResolve()} does.
+ *
+ * @author Iheb Khemissi
+ */
+final class BuildXmlScanner {
+
+	private static final Logger LOGGER = Logger.getLogger(BuildXmlScanner.class.getName());
+
+	private static final String BUILD_XML = "build.xml"; //$NON-NLS-1$
+
+	/** Same as the build ids of Jenkins 1.509. */
+	private static final String ID_FORMAT = "yyyy-MM-dd_HH-mm-ss"; //$NON-NLS-1$
+
+	private static final String LEGACY_TOOLTIP_PREFIX = "Branch - "; //$NON-NLS-1$
+
+	private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+	private BuildXmlScanner() {
+	}
+
+	/**
+	 * Lists the build directories of a job, the most recent first. The build
+	 * number symlinks are left out.
+	 */
+	static List<File> listBuildDirs(Job<?, ?> job) {
+		File[] dirs = job.getBuildDir().listFiles();
+		if (dirs == null) {
+			return Collections.emptyList();
+		}
+		List<File> list = new ArrayList<File>(dirs.length);
+		for (File dir : dirs) {
+			try {
+				if (dir.isDirectory() && !Util.isSymlink(dir)) {
+					list.add(dir);
+				}
+			} catch (IOException e) {
+				LOGGER.log(Level.FINE, "Skipping " + dir, e);
+			}
+		}
+		// ids and numbers both sort chronologically, numbers once padded
+		File[] sorted = list.toArray(new File[list.size()]);
+		Arrays.sort(sorted, new Comparator<File>() {
+			public int compare(File o1, File o2) {
+				String n1 = o1.getName();
+				String n2 = o2.getName();
+				if (n1.length() != n2.length() && isNumber(n1) && isNumber(n2)) {
+					return n2.length() - n1.length();
+				}
+				return n2.compareTo(n1);
+			}
+		});
+		return Arrays.asList(sorted);
+	}
+
+	/**
+	 * Reads the branch build of a build directory.
+	 *
+	 * @return <code>null</code> if it is not a completed branch build, or
+	 *         cannot be read.
+	 */
+	static BranchBuildRecord read(File dir, Throttle throttle) {
+		File file = new File(dir, BUILD_XML);
+		if (!file.isFile()) {
+			return null;
+		}
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new ThrottledInputStream(new FileInputStream(file), throttle), 16 * 1024);
+			Fields fields = parse(in);
+			if (!fields.badge || fields.result == null || fields.number <= 0) {
+				return null;
+			}
+			long timestamp = fields.timestamp;
+			if (timestamp <= 0) {
+				timestamp = parseId(dir.getName());
+			}
+			return new BranchBuildRecord(fields.number, timestamp, fields.duration, Result.fromString(fields.result), fields.versionNumber,
+					fields.branchName, fields.userName);
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Failed to read " + file, e);
+		} catch (XMLStreamException e) {
+			LOGGER.log(Level.FINE, "Failed to parse " + file, e);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		return null;
+	}
+
+	private static Fields parse(InputStream in) throws XMLStreamException {
+		Fields fields = new Fields();
+		XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+		try {
+			int depth = 0;
+			// depth of the element of the action or cause being read, 0 if none
+			int badge = 0;
+			int args = 0;
+			int reason = 0;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.END_ELEMENT) {
+					if (depth == badge) {
+						badge = 0;
+					} else if (depth == args) {
+						args = 0;
+					} else if (depth == reason) {
+						reason = 0;
+					}
+					depth--;
+					continue;
+				}
+				if (event != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				depth++;
+				String name = reader.getLocalName();
+				String type = reader.getAttributeValue(null, "class"); //$NON-NLS-1$
+				if (type == null) {
+					type = name;
+				}
+
+				if (depth == 2 && name.equals("number")) { //$NON-NLS-1$
+					fields.number = toInt(reader.getElementText());
+				} else if (depth == 2 && name.equals("result")) { //$NON-NLS-1$
+					fields.result = reader.getElementText().trim();
+				} else if (depth == 2 && name.equals("timestamp")) { //$NON-NLS-1$
+					fields.timestamp = toLong(reader.getElementText());
+				} else if (depth == 2 && name.equals("duration")) { //$NON-NLS-1$
+					fields.duration = toLong(reader.getElementText());
+				} else if (type.equals(BranchBadgeAction.class.getName())) {
+					fields.badge = true;
+					badge = depth;
+					continue;
+				} else if (type.equals(BranchArgumentsAction.class.getName())) {
+					args = depth;
+					continue;
+				} else if (type.equals(BranchReason.class.getName())) {
+					reason = depth;
+					continue;
+				} else if (badge > 0 && depth == badge + 1 && name.equals("versionNumber")) { //$NON-NLS-1$
+					fields.versionNumber = reader.getElementText();
+				} else if (badge > 0 && depth == badge + 1 && name.equals("tooltipText")) { //$NON-NLS-1$
+					String tooltip = reader.getElementText();
+					if (fields.versionNumber == null && tooltip.startsWith(LEGACY_TOOLTIP_PREFIX)) {
+						fields.versionNumber = tooltip.substring(LEGACY_TOOLTIP_PREFIX.length());
+					}
+				} else if (args > 0 && depth == args + 1 && name.equals("branchName")) { //$NON-NLS-1$
+					fields.branchName = reader.getElementText();
+				} else if (reason > 0 && depth == reason + 1 && name.equals("authenticationName")) { //$NON-NLS-1$
+					fields.userName = reader.getElementText();
+				} else {
+					continue;
+				}
+				// getElementText() consumed the end of the element
+				depth--;
+			}
+		} finally {
+			reader.close();
+		}
+		return fields;
+	}
+
+	private static int toInt(String text) {
+		try {
+			return Integer.parseInt(text.trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static long toLong(String text) {
+		try {
+			return Long.parseLong(text.trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static boolean isNumber(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (!Character.isDigit(s.charAt(i))) {
+				return false;
+			}
+		}
+		return s.length() > 0;
+	}
+
+	private static long parseId(String id) {
+		try {
+			return new SimpleDateFormat(ID_FORMAT).parse(id).getTime();
+		} catch (ParseException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * The fields of a build read from its <code>build.xml</code>.
+	 */
+	private static final class Fields {
+		int number;
+		long timestamp;
+		long duration;
+		String result;
+		boolean badge;
+		String versionNumber;
+		String branchName;
+		String userName;
+	}
+
+	/**
+	 * Caps the bytes read per second by all the threads sharing it.
+	 */
+	static final class Throttle {
+		private final long bytesPerSecond;
+
+		/** When the next read may go on, in nanoseconds. */
+		private long next = System.nanoTime();
+
+		/**
+		 * @param bytesPerSecond
+		 *            <code>0</code> for no cap.
+		 */
+		Throttle(long bytesPerSecond) {
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		void acquire(int bytes) throws InterruptedException {
+			if (bytesPerSecond <= 0) {
+				return;
+			}
+			long delay;
+			synchronized (this) {
+				long now = System.nanoTime();
+				// an idle throttle does not save up for a burst
+				if (next < now) {
+					next = now;
+				}
+				delay = next - now;
+				next += bytes * 1000000000L / bytesPerSecond;
+			}
+			if (delay > 0) {
+				TimeUnit.NANOSECONDS.sleep(delay);
+			}
+		}
+	}
+
+	private static final class ThrottledInputStream extends FilterInputStream {
+		private final Throttle throttle;
+
+		ThrottledInputStream(InputStream in, Throttle throttle) {
+			super(in);
+			this.throttle = throttle;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				acquire(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				acquire(n);
+			}
+			return n;
+		}
+
+		private void acquire(int n) throws IOException {
+			if (throttle == null) {
+				return;
+			}
+			try {
+				throttle.acquire(n);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while throttled");
+			}
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.Extension;
+import hudson.maven.MavenModuleSet;
+import hudson.model.Failure;
+import hudson.model.RootAction;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.servlet.ServletException;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Branches several jobs at once, from the <code>/jobstreefactory-bulk</code> page.
+ *
+ * @author Iheb Khemissi
+ */
+@Extension
+public class BulkBranchAction implements RootAction {
+
+	/** Default number of branch builds running at once. */
+	public static final int DEFAULT_CONCURRENCY = 4;
+
+	/** Number of completed tasks kept for their status to be reported. */
+	private static final int MAX_TASKS = 20;
+
+	/** Version rule: branch each job from its own current version. */
+	public static final String VERSIONS_CURRENT = "current"; //$NON-NLS-1$
+	/** Version rule: use the same versions for all the jobs. */
+	public static final String VERSIONS_FIXED = "fixed"; //$NON-NLS-1$
+
+	private final Map<String, BulkBranchTask> tasks = new LinkedHashMap<String, BulkBranchTask>();
+
+	public String getIconFileName() {
+		if (Jenkins.getInstance().hasPermission(BranchBuildWrapper.DescriptorImpl.CREATE_BRANCH)) {
+			return "/plugin/jobstreefactory/img/new-branch-24.gif"; //$NON-NLS-1$
+		}
+		// by returning null the link will not be shown.
+		return null;
+	}
+
+	public String getDisplayName() {
+		return Messages.BulkBranchAction_DisplayName();
+	}
+
+	public String getUrlName() {
+		return "jobstreefactory-bulk"; //$NON-NLS-1$
+	}
+
+	/**
+	 * Gets the jobs the current user may branch.
+	 */
+	public List<MavenModuleSet> getJobs() {
+		List<MavenModuleSet> jobs = new ArrayList<MavenModuleSet>();
+		for (MavenModuleSet job : Jenkins.getInstance().getAllItems(MavenModuleSet.class)) {
+			if (job.getBuildWrappersList().get(BranchBuildWrapper.class) != null && BranchBuildWrapper.hasBranchPermission(job)) {
+				jobs.add(job);
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * Gets the tasks that are running or recently completed, the newest first.
+	 */
+	public synchronized List<BulkBranchTask> getTasks() {
+		if (!Jenkins.getInstance().hasPermission(BranchBuildWrapper.DescriptorImpl.CREATE_BRANCH)) {
+			return Collections.emptyList();
+		}
+		List<BulkBranchTask> list = new ArrayList<BulkBranchTask>(tasks.values());
+		Collections.reverse(list);
+		return list;
+	}
+
+	/**
+	 * Binds the tasks to <code>task/ID/</code>.
+	 */
+	public synchronized BulkBranchTask getTask(String id) {
+		Jenkins.getInstance().checkPermission(BranchBuildWrapper.DescriptorImpl.CREATE_BRANCH);
+		return tasks.get(id);
+	}
+
+	public void doSubmit(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+		Jenkins.getInstance().checkPermission(BranchBuildWrapper.DescriptorImpl.CREATE_BRANCH);
+
+		String branchName = StringUtils.trimToNull(req.getParameter("branchName")); //$NON-NLS-1$
+		if (branchName == null) {
+			throw new Failure("A branch name is required");
+		}
+		String versions = VERSIONS_FIXED.equals(req.getParameter("versions")) ? VERSIONS_FIXED : VERSIONS_CURRENT; //$NON-NLS-1$
+		String releaseVersion = req.getParameter("releaseVersion"); //$NON-NLS-1$
+		String developmentVersion = req.getParameter("developmentVersion"); //$NON-NLS-1$
+		String branchBase = StringUtils.trimToNull(req.getParameter("branchBase")); //$NON-NLS-1$
+		int concurrency = DEFAULT_CONCURRENCY;
+		String value = StringUtils.trimToNull(req.getParameter("concurrency")); //$NON-NLS-1$
+		if (value != null) {
+			try {
+				concurrency = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				concurrency = 0;
+			}
+			if (concurrency < 1) {
+				throw new Failure("The number of concurrent branch builds must be a positive integer: " + value);
+			}
+		}
+
+		String[] names = req.getParameterValues("job"); //$NON-NLS-1$
+		if (names == null || names.length == 0) {
+			throw new Failure("No job selected");
+		}
+		List<BranchRequest> requests = new ArrayList<BranchRequest>(names.length);
+		for (String name : names) {
+			MavenModuleSet job = Jenkins.getInstance().getItemByFullName(name, MavenModuleSet.class);
+			if (job == null || job.getBuildWrappersList().get(BranchBuildWrapper.class) == null) {
+				throw new Failure("No such branchable job: " + name);
+			}
+			BranchBuildWrapper.checkBranchPermission(job);
+
+			BranchRequest request = new BranchRequest(job);
+			request.setBranchName(branchName);
+			if (VERSIONS_FIXED.equals(versions)) {
+				request.setReleaseVersion(releaseVersion);
+				request.setDevelopmentVersion(developmentVersion);
+			} else {
+				BranchAction action = job.getAction(BranchAction.class);
+				request.setReleaseVersion(action.computeBranchVersion());
+				request.setDevelopmentVersion(action.getCurrentVersion());
+				request.planModuleVersions();
+			}
+			request.setBranchBase(branchBase != null ? branchBase : job.getBuildWrappersList().get(BranchBuildWrapper.class).getScmBranchBaseDefault());
+			request.addDefaultParameters();
+			try {
+				request.validate();
+			} catch (IllegalArgumentException e) {
+				throw new Failure(job.getFullDisplayName() + ": " + e.getMessage());
+			}
+			requests.add(request);
+		}
+
+		BulkBranchTask task = new BulkBranchTask(UUID.randomUUID().toString(), branchName, requests, concurrency);
+		synchronized (this) {
+			tasks.put(task.getId(), task);
+			prune();
+		}
+		Thread thread = new Thread(task, "Jobs Tree Factory bulk branch " + branchName);
+		thread.setDaemon(true);
+		thread.start();
+
+		rsp.sendRedirect("task/" + task.getId() + "/");
+	}
+
+	/** Forgets the oldest completed tasks. */
+	private void prune() {
+		int excess = tasks.size() - MAX_TASKS;
+		for (Iterator<BulkBranchTask> it = tasks.values().iterator(); excess > 0 && it.hasNext();) {
+			if (it.next().isCompleted()) {
+				it.remove();
+				excess--;
+			}
+		}
+	}
+}
@@ -0,0 +1,338 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.maven.MavenModuleSet;
+import hudson.maven.MavenModuleSetBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+import hudson.model.queue.QueueTaskFuture;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Branches a set of jobs, running at most a given number of branch builds at
+ * once and starting the branch build of a job only once all the selected jobs
+ * it depends on have been branched successfully.
+ *
+ * @author Iheb Khemissi
+ */
+public class BulkBranchTask implements Runnable {
+
+	private static final Logger LOGGER = Logger.getLogger(BulkBranchTask.class.getName());
+
+	/** How often the running branch builds are checked, in milliseconds. */
+	private static final long POLL_INTERVAL = 1000;
+
+	public enum State {
+		WAITING, QUEUED, RUNNING, SUCCESS, FAILURE, SKIPPED;
+
+		public boolean isCompleted() {
+			return this == SUCCESS || this == FAILURE || this == SKIPPED;
+		}
+	}
+
+	/**
+	 * Branch build of one of the jobs.
+	 */
+	public static final class Step {
+		private final BranchRequest request;
+		private final List<String> upstreams = new ArrayList<String>();
+		private volatile State state = State.WAITING;
+		private volatile int buildNumber = -1;
+		private volatile String message;
+		private transient QueueTaskFuture<MavenModuleSetBuild> future;
+
+		Step(BranchRequest request) {
+			this.request = request;
+		}
+
+		public String getJobName() {
+			return request.getProject().getFullName();
+		}
+
+		public MavenModuleSet getProject() {
+			return request.getProject();
+		}
+
+		public List<String> getUpstreams() {
+			return Collections.unmodifiableList(upstreams);
+		}
+
+		public State getState() {
+			return state;
+		}
+
+		/**
+		 * @return <code>-1</code> until the branch build has completed.
+		 */
+		public int getBuildNumber() {
+			return buildNumber;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+	}
+
+	private final String id;
+	private final String branchName;
+	private final int concurrency;
+	/** Steps in dependency order. */
+	private final Map<String, Step> steps = new LinkedHashMap<String, Step>();
+	private final long startTime = System.currentTimeMillis();
+	private volatile long endTime;
+
+	/**
+	 * @param requests
+	 *        one request per job to branch.
+	 * @param concurrency
+	 *        the maximum number of branch builds running at once.
+	 */
+	public BulkBranchTask(String id, String branchName, List<BranchRequest> requests, int concurrency) {
+		this.id = id;
+		this.branchName = branchName;
+		this.concurrency = Math.max(1, concurrency);
+
+		Map<String, Step> byName = new LinkedHashMap<String, Step>();
+		for (BranchRequest request : requests) {
+			byName.put(request.getProject().getFullName(), new Step(request));
+		}
+		for (Step step : byName.values()) {
+			for (AbstractProject<?, ?> upstream : step.getProject().getTransitiveUpstreamProjects()) {
+				if (byName.containsKey(upstream.getFullName())) {
+					step.upstreams.add(upstream.getFullName());
+				}
+			}
+		}
+		// order the steps so that they are started and displayed upstream first
+		while (!byName.isEmpty()) {
+			boolean progress = false;
+			for (Step step : new ArrayList<Step>(byName.values())) {
+				if (steps.keySet().containsAll(step.upstreams)) {
+					steps.put(step.getJobName(), step);
+					byName.remove(step.getJobName());
+					progress = true;
+				}
+			}
+			if (!progress) {
+				// dependency cycle, these ones will never be started
+				for (Step step : byName.values()) {
+					step.state = State.SKIPPED;
+					step.message = "Dependency cycle";
+					steps.put(step.getJobName(), step);
+				}
+				byName.clear();
+			}
+		}
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getBranchName() {
+		return branchName;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	public List<Step> getSteps() {
+		return new ArrayList<Step>(steps.values());
+	}
+
+	public boolean isCompleted() {
+		return endTime != 0;
+	}
+
+	/**
+	 * Gets the aggregated state of all the branch builds.
+	 *
+	 * @return {@link State#SUCCESS} once every job has been branched,
+	 *         {@link State#FAILURE} once all are completed but some failed or
+	 *         were skipped, {@link State#RUNNING} otherwise.
+	 */
+	public State getState() {
+		if (!isCompleted()) {
+			return State.RUNNING;
+		}
+		for (Step step : steps.values()) {
+			if (step.state != State.SUCCESS) {
+				return State.FAILURE;
+			}
+		}
+		return State.SUCCESS;
+	}
+
+	public void run() {
+		try {
+			while (schedule()) {
+				Thread.sleep(POLL_INTERVAL);
+				update();
+			}
+		} catch (InterruptedException e) {
+			LOGGER.log(Level.WARNING, "Bulk branch " + id + " interrupted", e);
+			for (Step step : steps.values()) {
+				if (!step.state.isCompleted()) {
+					step.state = State.SKIPPED;
+					step.message = "Interrupted";
+				}
+			}
+		} finally {
+			endTime = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Starts the steps whose upstreams are branched, within the concurrency
+	 * limit, and skips the ones whose upstreams failed.
+	 *
+	 * @return <code>false</code> once all the steps are completed.
+	 */
+	private boolean schedule() {
+		int running = 0;
+		boolean pending = false;
+		for (Step step : steps.values()) {
+			if (step.state == State.QUEUED || step.state == State.RUNNING) {
+				running++;
+			}
+		}
+		for (Step step : steps.values()) {
+			if (step.state != State.WAITING) {
+				pending |= !step.state.isCompleted();
+				continue;
+			}
+			State upstreamState = getUpstreamState(step);
+			if (upstreamState == State.FAILURE) {
+				step.state = State.SKIPPED;
+				step.message = "An upstream job was not branched";
+			} else if (upstreamState == State.SUCCESS && running < concurrency) {
+				try {
+					step.future = step.request.schedule();
+				} catch (BranchRequestQueue.ConflictException e) {
+					step.state = State.FAILURE;
+					step.message = e.getMessage();
+					continue;
+				}
+				if (step.future == null) {
+					step.state = State.FAILURE;
+					step.message = "Could not be scheduled";
+				} else {
+					step.state = State.QUEUED;
+					running++;
+					pending = true;
+				}
+			} else {
+				pending = true;
+			}
+		}
+		return pending;
+	}
+
+	/**
+	 * @return {@link State#SUCCESS} if all the upstreams are branched,
+	 *         {@link State#FAILURE} if one of them will never be,
+	 *         {@link State#WAITING} otherwise.
+	 */
+	private State getUpstreamState(Step step) {
+		State result = State.SUCCESS;
+		for (String name : step.upstreams) {
+			State state = steps.get(name).state;
+			if (state == State.FAILURE || state == State.SKIPPED) {
+				return State.FAILURE;
+			}
+			if (state != State.SUCCESS) {
+				result = State.WAITING;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Records the progress of the scheduled branch builds.
+	 */
+	private void update() throws InterruptedException {
+		for (Step step : steps.values()) {
+			if (step.state != State.QUEUED && step.state != State.RUNNING) {
+				continue;
+			}
+			if (step.future.isDone()) {
+				try {
+					MavenModuleSetBuild build = step.future.get();
+					step.buildNumber = build.getNumber();
+					step.state = build.getResult() == Result.SUCCESS ? State.SUCCESS : State.FAILURE;
+					step.message = String.valueOf(build.getResult());
+				} catch (ExecutionException e) {
+					step.state = State.FAILURE;
+					step.message = String.valueOf(e.getCause());
+				} catch (CancellationException e) {
+					step.state = State.FAILURE;
+					step.message = "Cancelled";
+				}
+			} else if (step.future.getStartCondition().isDone()) {
+				step.state = State.RUNNING;
+			}
+		}
+	}
+
+	/**
+	 * Reports the aggregated status and the status of every job as JSON.
+	 */
+	public void doStatus(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		JSONArray jobs = new JSONArray();
+		for (Step step : steps.values()) {
+			JSONObject job = new JSONObject();
+			job.put("name", step.getJobName());
+			job.put("state", step.state.name());
+			job.put("build", step.buildNumber);
+			job.put("message", step.message);
+			jobs.add(job);
+		}
+		JSONObject status = new JSONObject();
+		status.put("id", id);
+		status.put("branchName", branchName);
+		status.put("state", getState().name());
+		status.put("duration", (isCompleted() ? endTime : System.currentTimeMillis()) - startTime);
+		status.put("jobs", jobs);
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().print(status.toString());
+	}
+}
@@ -0,0 +1,324 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.BulkChange;
+import hudson.Extension;
+import hudson.Util;
+import hudson.maven.MavenModuleSet;
+import hudson.model.AbstractProject;
+import hudson.model.Items;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import hudson.model.listeners.RunListener;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Creates the jobs of a new branch from a tree of template jobs, once the
+ * branch build has succeeded.
+ *
+ * <p>
+ * The configuration of each template job is copied with its SCM location
+ * pointing to the new branch, and the references between the template jobs
+ * pointing to their copies. The SCM location is rewritten by replacing a
+ * path within it, which suits the Subversion layouts only: the branch specs
+ * and URLs of Git are not rewritten. All the configurations are generated and written
+ * in parallel, then the jobs are loaded in a single {@link BulkChange} with
+ * one dependency graph rebuild at the end.
+ *
+ * @author Iheb Khemissi
+ */
+public class JobTreeFactory {
+
+	public static final String DEFAULT_JOB_NAME_PATTERN = "${JOB_NAME}-${BRANCH_NAME}"; //$NON-NLS-1$
+	public static final String DEFAULT_TEMPLATE_SCM_PATH = "trunk"; //$NON-NLS-1$
+	public static final String DEFAULT_BRANCH_SCM_PATH = "branches/${BRANCH_NAME}"; //$NON-NLS-1$
+
+	/** Number of configurations generated at once. */
+	static final int PARALLELISM = Integer.getInteger(JobTreeFactory.class.getName() + ".parallelism",
+			Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	/** Where the configurations are written before their jobs are registered, in the Jenkins root directory. */
+	static final String STAGING_DIR_NAME = "jobstreefactory-staging"; //$NON-NLS-1$
+
+	private static final Pattern VARIABLE = Pattern.compile("\\$\\{(\\w+)\\}"); //$NON-NLS-1$
+	private static final Pattern SCM_SECTION = Pattern.compile("(?s)<scm\\b.*?</scm>"); //$NON-NLS-1$
+	private static final Pattern PROJECT_LIST = Pattern.compile("(?s)(<(childProjects|upstreamProjects|projects)>)(.*?)(</\\2>)"); //$NON-NLS-1$
+	private static final Pattern CREATE_JOB_TREE = Pattern.compile("(?s)<jobTree>.*?</jobTree>"); //$NON-NLS-1$
+
+	/** Names of the template jobs, separated by commas or spaces. Empty means the branched job only. */
+	private final String templateJobs;
+	private final String jobNamePattern;
+	private final String templateScmPath;
+	private final String branchScmPath;
+
+	@DataBoundConstructor
+	public JobTreeFactory(String templateJobs, String jobNamePattern, String templateScmPath, String branchScmPath) {
+		this.templateJobs = Util.fixEmptyAndTrim(templateJobs);
+		this.jobNamePattern = StringUtils.isBlank(jobNamePattern) ? DEFAULT_JOB_NAME_PATTERN : jobNamePattern.trim();
+		this.templateScmPath = StringUtils.isBlank(templateScmPath) ? DEFAULT_TEMPLATE_SCM_PATH : templateScmPath.trim();
+		this.branchScmPath = StringUtils.isBlank(branchScmPath) ? DEFAULT_BRANCH_SCM_PATH : branchScmPath.trim();
+	}
+
+	public String getTemplateJobs() {
+		return templateJobs;
+	}
+
+	public String getJobNamePattern() {
+		return jobNamePattern;
+	}
+
+	public String getTemplateScmPath() {
+		return templateScmPath;
+	}
+
+	public String getBranchScmPath() {
+		return branchScmPath;
+	}
+
+	/**
+	 * Gets the template jobs, the branched job itself if none are configured.
+	 */
+	public List<AbstractProject<?, ?>> getTemplates(AbstractProject<?, ?> branched) {
+		List<AbstractProject<?, ?>> templates = new ArrayList<AbstractProject<?, ?>>();
+		if (templateJobs == null) {
+			templates.add(branched);
+			return templates;
+		}
+		for (String name : templateJobs.split("[,\\s]+")) { //$NON-NLS-1$
+			AbstractProject<?, ?> job = Jenkins.getInstance().getItemByFullName(name, AbstractProject.class);
+			if (job != null) {
+				templates.add(job);
+			}
+		}
+		return templates;
+	}
+
+	/**
+	 * Creates the jobs of the given branch.
+	 *
+	 * @return the created jobs.
+	 */
+	public List<TopLevelItem> createJobs(AbstractProject<?, ?> branched, String branchName, PrintStream logger) throws IOException, InterruptedException {
+		final Jenkins jenkins = Jenkins.getInstance();
+		final Map<String, String> names = new LinkedHashMap<String, String>();
+		final Map<String, String> variables = new HashMap<String, String>();
+		variables.put("BRANCH_NAME", branchName); //$NON-NLS-1$
+
+		for (AbstractProject<?, ?> template : getTemplates(branched)) {
+			if (template.getParent() != jenkins) {
+				logger.println("[jobstreefactory] Skipping " + template.getFullName() + ", only top level jobs can be used as templates");
+				continue;
+			}
+			variables.put("JOB_NAME", template.getName()); //$NON-NLS-1$
+			String name = expand(jobNamePattern, variables);
+			Jenkins.checkGoodName(name);
+			if (jenkins.getItem(name) != null) {
+				logger.println("[jobstreefactory] Skipping " + name + ", it already exists");
+				continue;
+			}
+			if (names.containsValue(name)) {
+				throw new IOException("Several template jobs would be copied to " + name + ", the job name pattern " + jobNamePattern
+						+ " has to tell them apart with ${JOB_NAME}");
+			}
+			names.put(template.getName(), name);
+		}
+		variables.remove("JOB_NAME"); //$NON-NLS-1$
+		final String branchPath = expand(branchScmPath, variables);
+
+		// generate and write the configurations in parallel, out of the jobs directory until registered
+		final File staging = new File(jenkins.getRootDir(), STAGING_DIR_NAME);
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, PARALLELISM), new DaemonThreadFactory());
+		Map<String, Future<File>> written = new LinkedHashMap<String, Future<File>>();
+		try {
+			for (final Map.Entry<String, String> entry : names.entrySet()) {
+				written.put(entry.getValue(), pool.submit(new Callable<File>() {
+					public File call() throws IOException {
+						AbstractProject<?, ?> template = (AbstractProject<?, ?>) jenkins.getItem(entry.getKey());
+						String xml = rewrite(template.getConfigFile().asString(), branchPath, names);
+						File dir = new File(staging, entry.getValue());
+						FileUtils.writeStringToFile(new File(dir, "config.xml"), xml, "UTF-8"); //$NON-NLS-1$ //$NON-NLS-2$
+						return dir;
+					}
+				}));
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		List<TopLevelItem> created = new ArrayList<TopLevelItem>();
+		BulkChange bc = new BulkChange(jenkins);
+		try {
+			for (Map.Entry<String, Future<File>> entry : written.entrySet()) {
+				// a generation may fail after writing part of the job directory
+				File dir = new File(staging, entry.getKey());
+				try {
+					entry.getValue().get();
+				} catch (ExecutionException e) {
+					logger.println("[jobstreefactory] Failed to generate " + entry.getKey() + ": " + e.getCause());
+					Util.deleteRecursive(dir);
+					continue;
+				}
+				TopLevelItem item;
+				// putItem() would replace a job created meanwhile
+				synchronized (jenkins) {
+					File jobDir = new File(jenkins.getRootDir(), "jobs/" + entry.getKey()); //$NON-NLS-1$
+					if (jenkins.getItem(entry.getKey()) != null || jobDir.exists()) {
+						logger.println("[jobstreefactory] Skipping " + entry.getKey() + ", it was created meanwhile");
+						Util.deleteRecursive(dir);
+						continue;
+					}
+					if (!dir.renameTo(jobDir)) {
+						logger.println("[jobstreefactory] Failed to move " + entry.getKey() + " to " + jobDir);
+						Util.deleteRecursive(dir);
+						continue;
+					}
+					try {
+						item = (TopLevelItem) Items.load(jenkins, jobDir);
+					} catch (IOException e) {
+						logger.println("[jobstreefactory] Failed to load " + entry.getKey() + ": " + e);
+						Util.deleteRecursive(jobDir);
+						continue;
+					} catch (RuntimeException e) {
+						logger.println("[jobstreefactory] Failed to load " + entry.getKey() + ": " + e);
+						Util.deleteRecursive(jobDir);
+						continue;
+					}
+					// notifies the item listeners, like createProject() does
+					jenkins.putItem(item);
+				}
+				created.add(item);
+				logger.println("[jobstreefactory] Created " + item.getName());
+			}
+			bc.commit();
+		} finally {
+			bc.abort();
+			jenkins.rebuildDependencyGraph();
+		}
+		return created;
+	}
+
+	/**
+	 * Rewrites the configuration of a template job for the new branch: the
+	 * template SCM path is replaced with the branch one within the
+	 * <code>&lt;scm&gt;</code> section, as in a Subversion location.
+	 *
+	 * @param names
+	 *        the names of the template jobs mapped to the names of their copies.
+	 */
+	String rewrite(String xml, String branchPath, Map<String, String> names) {
+		// point the SCM to the branch
+		Matcher scm = SCM_SECTION.matcher(xml);
+		StringBuffer sb = new StringBuffer(xml.length() + 64);
+		while (scm.find()) {
+			scm.appendReplacement(sb, Matcher.quoteReplacement(scm.group().replace(templateScmPath, branchPath)));
+		}
+		scm.appendTail(sb);
+
+		// point the triggers to the copies of the template jobs
+		Matcher projects = PROJECT_LIST.matcher(sb.toString());
+		sb = new StringBuffer(sb.length());
+		while (projects.find()) {
+			StringBuilder list = new StringBuilder();
+			for (String project : projects.group(3).split(",")) { //$NON-NLS-1$
+				if (list.length() > 0) {
+					list.append(',');
+				}
+				String trimmed = project.trim();
+				list.append(names.containsKey(trimmed) ? names.get(trimmed) : trimmed);
+			}
+			projects.appendReplacement(sb, Matcher.quoteReplacement(projects.group(1) + list + projects.group(4)));
+		}
+		projects.appendTail(sb);
+
+		// the copies do not create job trees themselves
+		return CREATE_JOB_TREE.matcher(sb.toString()).replaceAll(""); //$NON-NLS-1$
+	}
+
+	private static String expand(String pattern, Map<String, String> variables) {
+		Matcher m = VARIABLE.matcher(pattern);
+		StringBuffer sb = new StringBuffer();
+		while (m.find()) {
+			String value = variables.get(m.group(1));
+			m.appendReplacement(sb, Matcher.quoteReplacement(value != null ? value : m.group()));
+		}
+		m.appendTail(sb);
+		return sb.toString();
+	}
+
+	/**
+	 * Creates the job tree of a branch once its branch build has succeeded.
+	 */
+	@Extension
+	@SuppressWarnings("rawtypes")
+	public static final class Trigger extends RunListener<Run> {
+
+		@Override
+		public void onCompleted(Run run, TaskListener listener) {
+			if (run.getResult() != Result.SUCCESS || run.getAction(BranchBadgeAction.class) == null
+					|| !(run.getParent() instanceof MavenModuleSet)) {
+				return;
+			}
+			MavenModuleSet project = (MavenModuleSet) run.getParent();
+			BranchBuildWrapper wrapper = project.getBuildWrappersList().get(BranchBuildWrapper.class);
+			BranchArgumentsAction args = run.getAction(BranchArgumentsAction.class);
+			if (wrapper == null || wrapper.getJobTree() == null || args == null || StringUtils.isBlank(args.getBranchName())) {
+				return;
+			}
+			try {
+				wrapper.getJobTree().createJobs(project, args.getBranchName(), listener.getLogger());
+			} catch (IOException e) {
+				e.printStackTrace(listener.error("[jobstreefactory] Failed to create the job tree of " + args.getBranchName()));
+			} catch (InterruptedException e) {
+				e.printStackTrace(listener.error("[jobstreefactory] Interrupted while creating the job tree of " + args.getBranchName()));
+			} catch (RuntimeException e) {
+				e.printStackTrace(listener.error("[jobstreefactory] Failed to create the job tree of " + args.getBranchName()));
+			}
+		}
+	}
+}
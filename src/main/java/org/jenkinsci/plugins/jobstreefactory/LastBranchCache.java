@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.model.Job;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jenkinsci.plugins.jobstreefactory.LastBranchListViewColumn.Info;
+
+/**
+ * Remembers the last successful branch build of each job.
+ *
+ * <p>
+ * Entries are dropped by {@link BranchBuildIndexListener} whenever a branch
+ * build of the job completes or is deleted.
+ *
+ * @author Iheb Khemissi
+ */
+final class LastBranchCache {
+
+	/** Marks a job known to have no successful branch build. */
+	private static final Info NONE = new Info(null);
+
+	private static final Map<Job<?, ?>, Info> CACHE = Collections.synchronizedMap(new WeakHashMap<Job<?, ?>, Info>());
+
+	/** Incremented by every invalidation, under the lock of {@link #CACHE}. */
+	private static final AtomicLong GENERATION = new AtomicLong();
+
+	private LastBranchCache() {
+	}
+
+	/**
+	 * Gets the last release of the given job.
+	 *
+	 * @return <code>null</code> if the job has never been successfully branched.
+	 */
+	static Info get(Job<?, ?> job) {
+		Info info = CACHE.get(job);
+		if (info == null) {
+			long generation = GENERATION.get();
+			BranchBuildRecord record = BranchBuildIndex.of(job).getLastSuccessful();
+			info = record == null ? NONE : new Info(record);
+			synchronized (CACHE) {
+				// read before an invalidation, it may already be stale
+				if (GENERATION.get() == generation) {
+					CACHE.put(job, info);
+				}
+			}
+		}
+		return info == NONE ? null : info;
+	}
+
+	/**
+	 * Gets the last release of each of the given jobs.
+	 *
+	 * @return every job mapped to its last release, or to <code>null</code>
+	 *         if it has never been successfully branched.
+	 */
+	static Map<Job<?, ?>, Info> getAll(Iterable<?> jobs) {
+		Map<Job<?, ?>, Info> infos = new IdentityHashMap<Job<?, ?>, Info>();
+		for (Object item : jobs) {
+			if (item instanceof Job) {
+				Job<?, ?> job = (Job<?, ?>) item;
+				infos.put(job, get(job));
+			}
+		}
+		return infos;
+	}
+
+	static void invalidate(Job<?, ?> job) {
+		synchronized (CACHE) {
+			GENERATION.incrementAndGet();
+			CACHE.remove(job);
+		}
+	}
+}
@@ -25,11 +25,16 @@ package org.jenkinsci.plugins.jobstreefactory;
 
 import hudson.Extension;
 import hudson.maven.AbstractMavenProject;
-import hudson.model.AbstractBuild;
-import hudson.model.Run;
+import hudson.model.Job;
 import hudson.views.ListViewColumn;
 import hudson.views.ListViewColumnDescriptor;
+
+import java.util.Collection;
+import java.util.Map;
+
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
 
 /**
  * {@link ListViewColumn} that shows the last released version and date.
@@ -45,23 +50,77 @@ public class LastBranchListViewColumn extends ListViewColumn {
      * Finds the last release information of the given project.
      */
     public Info getLastReleaseInfoOf(AbstractMavenProject<?,?> project) {
-        Run<?,?> r = LastBranchPermalink.INSTANCE.resolve(project);
-        if (r!=null)
-            return new Info((AbstractBuild<?,?>)r);
-        return null;
+        return LastBranchCache.get(project);
+    }
+
+    /**
+     * Finds the last release information of the given project, resolving all
+     * the jobs displayed by the view at once on the first row.
+     *
+     * @param jobs the jobs rendered by the view, including <code>project</code>.
+     */
+    public Info getLastReleaseInfoOf(AbstractMavenProject<?,?> project, Collection<?> jobs) {
+        long start = BranchMetrics.COLUMN_RENDER.start();
+        try {
+            return getBatchedReleaseInfoOf(project, jobs);
+        } finally {
+            BranchMetrics.COLUMN_RENDER.stop(start);
+        }
+    }
+
+    private Info getBatchedReleaseInfoOf(AbstractMavenProject<?,?> project, Collection<?> jobs) {
+        StaplerRequest req = Stapler.getCurrentRequest();
+        if (req == null || jobs == null) {
+            return getLastReleaseInfoOf(project);
+        }
+        @SuppressWarnings("unchecked")
+        Map<Job<?,?>, Info> infos = (Map<Job<?,?>, Info>) req.getAttribute(BATCH_ATTRIBUTE);
+        if (infos == null) {
+            infos = LastBranchCache.getAll(jobs);
+            req.setAttribute(BATCH_ATTRIBUTE, infos);
+        }
+        if (!infos.containsKey(project)) {
+            // not part of the batch
+            return getLastReleaseInfoOf(project);
+        }
+        return infos.get(project);
     }
     
+    /**
+     * Last release of a project, as recorded in its {@link BranchBuildIndex}.
+     */
     public static class Info {
-        public final AbstractBuild<?,?> build;
-        public final BranchBadgeAction action;
+        public final BranchBuildRecord record;
+        private final String timestampString2;
+
+        Info(BranchBuildRecord record) {
+            this.record = record;
+            this.timestampString2 = record == null ? null : record.getTimestampString2();
+        }
+
+        public int getNumber() {
+            return record.getNumber();
+        }
 
-        Info(AbstractBuild<?,?> build) {
-            this.build = build;
-            this.action = build.getAction(BranchBadgeAction.class);
-            assert action!=null;
+        public String getVersionNumber() {
+            return record.getVersionNumber();
+        }
+
+        public String getTimestampString() {
+            return record.getTimestampString();
+        }
+
+        /**
+         * Sortable timestamp, computed once per release.
+         */
+        public String getTimestampString2() {
+            return timestampString2;
         }
     }
 
+    /** Request attribute holding the batch of resolved {@link Info}s. */
+    private static final String BATCH_ATTRIBUTE = LastBranchListViewColumn.class.getName() + ".batch";
+
     @Extension
     public static class DescriptorImpl extends ListViewColumnDescriptor {
         @Override
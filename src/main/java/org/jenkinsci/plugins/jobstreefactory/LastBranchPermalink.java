@@ -23,7 +23,7 @@
  */
 package org.jenkinsci.plugins.jobstreefactory;
 
-import hudson.model.Result;
+import hudson.model.Job;
 import hudson.model.PermalinkProjectAction.Permalink;
 import hudson.model.Run;
 import jenkins.model.PeepholePermalink;
@@ -31,6 +31,10 @@ import jenkins.model.PeepholePermalink;
 /**
  * Resolves to the last release.
  *
+ * <p>
+ * The last release is looked up in the {@link BranchBuildIndex} of the job
+ * instead of walking back the build history.
+ *
  * @author Kohsuke Kawaguchi
  */
 public class LastBranchPermalink extends PeepholePermalink {
@@ -46,15 +50,26 @@ public class LastBranchPermalink extends PeepholePermalink {
         return "lastRelease";
     }
 
+    @Override
+    public Run<?, ?> resolve(Job<?, ?> job) {
+        BranchBuildRecord record = BranchBuildIndex.of(job).getLastSuccessful();
+        if (record == null) {
+            return null;
+        }
+        return job.getBuildByNumber(record.getNumber());
+    }
+
    @Override
    public boolean apply(Run<?, ?> run) {
       boolean retVal = false;
-      BranchBadgeAction a = run.getAction(BranchBadgeAction.class);
-      if (a != null) {
-          if (!run.isBuilding()) {
-              if (run.getResult() == Result.SUCCESS) {
-                  retVal = true;
-              }
+      if (!run.isBuilding()) {
+          BranchBuildRecord record = BranchBuildIndex.of(run.getParent()).get(run.getNumber());
+          if (record == null) {
+              // the run may complete before the index listener was notified
+              record = BranchBuildRecord.of(run);
+          }
+          if (record != null && record.isSuccess()) {
+              retVal = true;
           }
       }
       return retVal;
@@ -0,0 +1,547 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.maven.MavenModuleSet;
+import hudson.maven.MavenModuleSetBuild;
+import hudson.maven.local_repo.PerJobLocalRepositoryLocator;
+import hudson.model.AbstractBuild;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Per-job local Maven repositories of the branch builds, seeded from the local
+ * repository of the last successful regular build of the job.
+ *
+ * <p>
+ * Each node keeps, under {@value #DIR_NAME} in its root directory and for each
+ * job, the <code>repository</code> the branch builds use, refreshed from a
+ * <code>snapshot</code> of the local repository of the regular builds whenever
+ * a newer one was taken. The snapshot of a local repository of the job's own
+ * is taken in the cache of the job after each of its successful regular
+ * builds on that node. A local repository shared with other jobs, like the
+ * one of the node, is only snapshot once per node, in a cache named after it
+ * and shared by the jobs using it. Both are mirrored incrementally, only the
+ * new or changed files are copied. The caches not used for a while, then the
+ * least recently used ones, are evicted to stay within the age and size
+ * configured globally, except the ones a running branch build uses.
+ *
+ * @author Iheb Khemissi
+ */
+public final class LocalRepositoryCache {
+
+	private static final Logger LOGGER = Logger.getLogger(LocalRepositoryCache.class.getName());
+
+	static final String DIR_NAME = "jobstreefactory-m2"; //$NON-NLS-1$
+
+	private static final String SNAPSHOT = "snapshot"; //$NON-NLS-1$
+	private static final String REPOSITORY = "repository"; //$NON-NLS-1$
+
+	/** Last modified when the snapshot was last completed. */
+	private static final String SNAPSHOT_STAMP = "snapshot.stamp"; //$NON-NLS-1$
+
+	/** Last modified when the repository was last seeded from the snapshot. */
+	private static final String REPOSITORY_STAMP = "repository.stamp"; //$NON-NLS-1$
+
+	/** Last modified when the cache was last used, for the eviction. */
+	private static final String USED_STAMP = "used.stamp"; //$NON-NLS-1$
+
+	private static final String PARTIAL_SUFFIX = ".part"; //$NON-NLS-1$
+
+	/** Starts the name of the caches of shared repositories, which no job cache name contains. */
+	private static final String SHARED_PREFIX = "@"; //$NON-NLS-1$
+
+	/** Starts the name of the caches being deleted, which no cache name contains. */
+	private static final String EVICTED_PREFIX = "~evicted-"; //$NON-NLS-1$
+
+	/** Directory of a cache holding a marker per branch build using it. */
+	private static final String LEASES_DIR = "leases"; //$NON-NLS-1$
+
+	/** The snapshots of a node are taken one at a time. */
+	private static final ExecutorService POOL = Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+
+	/** Caches used by the running branch builds, by build, guarded by itself. */
+	private static final Map<String, Lease> LEASES = new HashMap<String, Lease>();
+
+	/**
+	 * Taken on the node, within its JVM, to mark a cache as leased or to take
+	 * it away for deletion, so that a cache is never deleted once leased.
+	 */
+	private static final Object NODE_LOCK = new Object();
+
+	private LocalRepositoryCache() {
+	}
+
+	/**
+	 * Prepares the local repository of a branch build, seeding it from the
+	 * last snapshot of the job on the node of the build. The caches it uses
+	 * are not evicted until the build completes.
+	 *
+	 * @return <code>null</code> if the node is offline.
+	 */
+	static FilePath prepare(AbstractBuild<?, ?> build, TaskListener listener) throws IOException, InterruptedException {
+		Node node = build.getBuiltOn();
+		String name = getCacheName(build.getParent());
+		FilePath dir = getCacheDir(node, name);
+		if (dir == null) {
+			return null;
+		}
+		String snapshot = name;
+		if (build instanceof MavenModuleSetBuild) {
+			MavenModuleSetBuild mavenBuild = (MavenModuleSetBuild) build;
+			snapshot = getSnapshotName(mavenBuild.getProject(), mavenBuild.getProject().getLocalRepository().locate(mavenBuild));
+		}
+		String key = getBuildKey(build);
+		synchronized (LEASES) {
+			LEASES.put(key, new Lease(node.getNodeName(), name, snapshot));
+		}
+		// an eviction running meanwhile only sees the lease marked on the node
+		int copied = dir.act(new Seed(snapshot, sanitize(key)));
+		if (copied < 0) {
+			listener.getLogger().println("No snapshot of the local repository yet, the branch build starts from an empty one");
+		} else {
+			listener.getLogger().println("Seeded the local repository from the last snapshot, " + copied + " file(s) copied");
+		}
+		return dir.child(REPOSITORY);
+	}
+
+	/**
+	 * Lets the caches used by a branch build be evicted again.
+	 */
+	static void release(AbstractBuild<?, ?> build) {
+		String key = getBuildKey(build);
+		Lease lease;
+		synchronized (LEASES) {
+			lease = LEASES.remove(key);
+		}
+		if (lease == null) {
+			return;
+		}
+		FilePath dir = getCacheDir(build.getBuiltOn(), lease.cache);
+		if (dir == null) {
+			// the markers left on the node expire with the caches
+			return;
+		}
+		try {
+			dir.getParent().act(new Unlease(sanitize(key), lease.cache, lease.snapshot));
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Failed to release the local repository caches of " + key, e);
+		} catch (InterruptedException e) {
+			LOGGER.log(Level.FINE, "Interrupted while releasing the local repository caches of " + key, e);
+		}
+	}
+
+	/**
+	 * Gets the given cache on the given node.
+	 *
+	 * @return <code>null</code> if the node is offline.
+	 */
+	static FilePath getCacheDir(Node node, String name) {
+		FilePath root = node == null ? null : node.getRootPath();
+		if (root == null) {
+			return null;
+		}
+		return root.child(DIR_NAME).child(name);
+	}
+
+	static String getCacheName(Job<?, ?> job) {
+		return sanitize(job.getFullName());
+	}
+
+	/**
+	 * Gets the name of the cache holding the snapshot of the local repository
+	 * of a job: the cache of the job if the repository is its own, else the
+	 * cache of that repository, shared by the jobs using it on the node.
+	 *
+	 * @param repository
+	 *            the local repository of the job, <code>null</code> for the
+	 *            default one of the node.
+	 */
+	static String getSnapshotName(MavenModuleSet project, FilePath repository) {
+		if (project.getLocalRepository() instanceof PerJobLocalRepositoryLocator) {
+			return getCacheName(project);
+		}
+		return SHARED_PREFIX + (repository == null ? "node" : sanitize(repository.getRemote())); //$NON-NLS-1$
+	}
+
+	private static String sanitize(String name) {
+		return name.replaceAll("[^A-Za-z0-9._-]", "_"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	private static String getBuildKey(AbstractBuild<?, ?> build) {
+		return build.getParent().getFullName() + '#' + build.getNumber();
+	}
+
+	/**
+	 * Gets the caches leased on the given node.
+	 */
+	private static Set<String> getLeased(String node) {
+		Set<String> leased = new HashSet<String>();
+		synchronized (LEASES) {
+			for (Lease lease : LEASES.values()) {
+				if (lease.node.equals(node)) {
+					leased.add(lease.cache);
+					leased.add(lease.snapshot);
+				}
+			}
+		}
+		return leased;
+	}
+
+	/** Caches used by a branch build on a node. */
+	private static final class Lease {
+		final String node;
+		final String cache;
+		final String snapshot;
+
+		Lease(String node, String cache, String snapshot) {
+			this.node = node;
+			this.cache = cache;
+			this.snapshot = snapshot;
+		}
+	}
+
+	/**
+	 * Copies the new or changed files of a directory tree, leaving out the
+	 * markers of failed downloads.
+	 *
+	 * @return the number of copied files.
+	 */
+	static int mirror(File from, File to) throws IOException {
+		File[] children = from.listFiles();
+		if (children == null) {
+			return 0;
+		}
+		if (!to.isDirectory() && !to.mkdirs()) {
+			throw new IOException("Could not create " + to);
+		}
+		int copied = 0;
+		for (File child : children) {
+			String name = child.getName();
+			File target = new File(to, name);
+			if (child.isDirectory()) {
+				copied += mirror(child, target);
+			} else if (!name.endsWith(".lastUpdated") && !name.endsWith(PARTIAL_SUFFIX) //$NON-NLS-1$
+					&& (target.length() != child.length() || target.lastModified() != child.lastModified())) {
+				// readers of the target never see a partially copied file
+				File partial = new File(to, name + PARTIAL_SUFFIX);
+				FileUtils.copyFile(child, partial);
+				if (!partial.renameTo(target) && !(target.delete() && partial.renameTo(target))) {
+					throw new IOException("Could not replace " + target);
+				}
+				copied++;
+			}
+		}
+		return copied;
+	}
+
+	/**
+	 * Marks a cache as leased by a branch build.
+	 */
+	private static void lease(File dir, String lease) throws IOException {
+		FileUtils.touch(new File(new File(dir, LEASES_DIR), lease));
+	}
+
+	/**
+	 * Marks the caches used by a branch build as leased, then refreshes the
+	 * repository of the branch builds from the snapshot, if it is newer.
+	 *
+	 * @return the number of copied files, <code>-1</code> if there is no
+	 *         snapshot.
+	 */
+	private static final class Seed implements FileCallable<Integer> {
+		private static final long serialVersionUID = 1L;
+
+		/** Name of the cache holding the snapshot. */
+		private final String snapshot;
+
+		/** Name of the lease marker of the build. */
+		private final String lease;
+
+		Seed(String snapshot, String lease) {
+			this.snapshot = snapshot;
+			this.lease = lease;
+		}
+
+		public Integer invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+			File snapshotDir = new File(dir.getParentFile(), snapshot);
+			synchronized (NODE_LOCK) {
+				lease(dir, lease);
+				lease(snapshotDir, lease);
+			}
+			File repository = new File(dir, REPOSITORY);
+			if (!repository.isDirectory() && !repository.mkdirs()) {
+				throw new IOException("Could not create " + repository);
+			}
+			FileUtils.touch(new File(dir, USED_STAMP));
+
+			File snapshotStamp = new File(snapshotDir, SNAPSHOT_STAMP);
+			if (!snapshotStamp.exists()) {
+				return -1;
+			}
+			FileUtils.touch(new File(snapshotDir, USED_STAMP));
+			File repositoryStamp = new File(dir, REPOSITORY_STAMP);
+			if (repositoryStamp.lastModified() >= snapshotStamp.lastModified()) {
+				return 0;
+			}
+			int copied = mirror(new File(snapshotDir, SNAPSHOT), repository);
+			FileUtils.touch(repositoryStamp);
+			return copied;
+		}
+	}
+
+	/**
+	 * Removes the lease markers of a branch build.
+	 */
+	private static final class Unlease implements FileCallable<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final String lease;
+		private final String cache;
+		private final String snapshot;
+
+		Unlease(String lease, String cache, String snapshot) {
+			this.lease = lease;
+			this.cache = cache;
+			this.snapshot = snapshot;
+		}
+
+		public Void invoke(File root, VirtualChannel channel) throws IOException, InterruptedException {
+			synchronized (NODE_LOCK) {
+				new File(new File(new File(root, cache), LEASES_DIR), lease).delete();
+				new File(new File(new File(root, snapshot), LEASES_DIR), lease).delete();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Mirrors the local repository of a regular build into the snapshot.
+	 */
+	private static final class Snapshot implements FileCallable<Integer> {
+		private static final long serialVersionUID = 1L;
+
+		/** Path of the local repository, <code>null</code> for the default one of the node. */
+		private final String source;
+
+		Snapshot(String source) {
+			this.source = source;
+		}
+
+		public Integer invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+			File from = source != null ? new File(source)
+					: new File(new File(System.getProperty("user.home"), ".m2"), REPOSITORY); //$NON-NLS-1$ //$NON-NLS-2$
+			if (!from.isDirectory()) {
+				return -1;
+			}
+			int copied = mirror(from, new File(dir, SNAPSHOT));
+			FileUtils.touch(new File(dir, SNAPSHOT_STAMP));
+			FileUtils.touch(new File(dir, USED_STAMP));
+			return copied;
+		}
+	}
+
+	/**
+	 * Deletes the caches unused for longer than the maximum age, then the
+	 * least recently used ones until the caches fit in the maximum size. The
+	 * caches leased on the node meanwhile are left alone; lease markers older
+	 * than the maximum age are left by builds whose node went offline.
+	 */
+	private static final class Evict implements FileCallable<Integer> {
+		private static final long serialVersionUID = 1L;
+
+		private final HashSet<String> keep;
+		private final long maxAge;
+		private final long maxSize;
+
+		/**
+		 * @param keep
+		 *            names of the caches that are not evicted.
+		 */
+		Evict(Set<String> keep, long maxAge, long maxSize) {
+			this.keep = new HashSet<String>(keep);
+			this.maxAge = maxAge;
+			this.maxSize = maxSize;
+		}
+
+		public Integer invoke(File root, VirtualChannel channel) throws IOException, InterruptedException {
+			File[] dirs = root.listFiles();
+			if (dirs == null) {
+				return 0;
+			}
+			int evicted = 0;
+			long oldest = System.currentTimeMillis() - maxAge;
+			long total = 0;
+			List<File> candidates = new ArrayList<File>();
+			for (File dir : dirs) {
+				if (!dir.isDirectory()) {
+					continue;
+				}
+				if (dir.getName().startsWith(EVICTED_PREFIX)) {
+					// left by an interrupted eviction
+					FileUtils.deleteDirectory(dir);
+					continue;
+				}
+				if (!keep.contains(dir.getName()) && lastUsed(dir) < oldest && evict(dir, oldest)) {
+					evicted++;
+					continue;
+				}
+				total += FileUtils.sizeOfDirectory(dir);
+				if (!keep.contains(dir.getName())) {
+					candidates.add(dir);
+				}
+			}
+			Collections.sort(candidates, new Comparator<File>() {
+				public int compare(File o1, File o2) {
+					long u1 = lastUsed(o1);
+					long u2 = lastUsed(o2);
+					return u1 < u2 ? -1 : (u1 == u2 ? 0 : 1);
+				}
+			});
+			for (File dir : candidates) {
+				if (total <= maxSize) {
+					break;
+				}
+				long size = FileUtils.sizeOfDirectory(dir);
+				if (evict(dir, oldest)) {
+					total -= size;
+					evicted++;
+				}
+			}
+			return evicted;
+		}
+
+		/**
+		 * Deletes a cache, unless it is leased.
+		 *
+		 * @param oldest
+		 *            lease markers older than that are ignored.
+		 */
+		private static boolean evict(File dir, long oldest) throws IOException {
+			File evicted = new File(dir.getParentFile(), EVICTED_PREFIX + dir.getName() + '.' + System.nanoTime());
+			synchronized (NODE_LOCK) {
+				File[] leases = new File(dir, LEASES_DIR).listFiles();
+				if (leases != null) {
+					for (File lease : leases) {
+						if (lease.lastModified() >= oldest) {
+							return false;
+						}
+					}
+				}
+				// taken away at once, deleted without holding the lock
+				if (!dir.renameTo(evicted)) {
+					return false;
+				}
+			}
+			FileUtils.deleteDirectory(evicted);
+			return true;
+		}
+
+		private static long lastUsed(File dir) {
+			return new File(dir, USED_STAMP).lastModified();
+		}
+	}
+
+	/**
+	 * Takes the snapshot of the local repository after each successful regular
+	 * build of the jobs caching it for their branch builds.
+	 */
+	@Extension
+	public static class Snapshotter extends RunListener<MavenModuleSetBuild> {
+
+		public Snapshotter() {
+			super(MavenModuleSetBuild.class);
+		}
+
+		@Override
+		public void onCompleted(final MavenModuleSetBuild build, TaskListener listener) {
+			release(build);
+			BranchBuildWrapper wrapper = build.getProject().getBuildWrappersList().get(BranchBuildWrapper.class);
+			if (wrapper == null || !wrapper.isCachedLocalRepository() || build.getResult() != Result.SUCCESS
+					|| build.getCause(BranchReason.class) != null) {
+				return;
+			}
+			FilePath located = build.getProject().getLocalRepository().locate(build);
+			final FilePath dir = getCacheDir(build.getBuiltOn(), getSnapshotName(build.getProject(), located));
+			if (dir == null) {
+				return;
+			}
+			final String source = located == null ? null : located.getRemote();
+			final String node = build.getBuiltOn().getNodeName();
+			final BranchBuildWrapper.DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(BranchBuildWrapper.DescriptorImpl.class);
+
+			POOL.submit(new Runnable() {
+				public void run() {
+					try {
+						long start = System.currentTimeMillis();
+						int copied = dir.act(new Snapshot(source));
+						if (copied >= 0) {
+							NodeAffinity.recordLocalRepository(build.getProject().getFullName(), build.getBuiltOn());
+						}
+						LOGGER.log(Level.FINE, "Snapshot of the local repository of {0} took {1}ms, {2} file(s) copied", new Object[] {
+								build.getFullDisplayName(), System.currentTimeMillis() - start, copied });
+						Set<String> keep = getLeased(node);
+						keep.add(dir.getName());
+						int evicted = dir.getParent().act(new Evict(keep, descriptor.getLocalRepositoryCacheMaxAge() * 24L * 3600 * 1000,
+								descriptor.getLocalRepositoryCacheMaxSize() * 1024L * 1024));
+						if (evicted > 0) {
+							LOGGER.log(Level.INFO, "Evicted {0} local repository cache(s) from {1}", new Object[] { evicted, dir.getParent() });
+						}
+					} catch (IOException e) {
+						LOGGER.log(Level.WARNING, "Failed to snapshot the local repository of " + build.getFullDisplayName(), e);
+					} catch (InterruptedException e) {
+						LOGGER.log(Level.WARNING, "Interrupted while taking the snapshot of the local repository of " + build.getFullDisplayName(), e);
+					}
+				}
+			});
+		}
+	}
+}
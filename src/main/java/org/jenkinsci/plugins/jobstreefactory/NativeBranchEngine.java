@@ -0,0 +1,241 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.maven.MavenModule;
+import hudson.maven.MavenModuleSet;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Creates a branch directly with Git, instead of running
+ * <code>release:branch</code>.
+ *
+ * <p>
+ * In the workspace checked out by the build, it creates the branch from the
+ * branch base (or the checked out revision), sets the branch versions in the
+ * POMs, commits them and pushes the branch to the remote of the workspace.
+ * The remote may be a local or bare repository, but there must be one: a
+ * branch left in the workspace would be lost with it, so the build fails.
+ *
+ * <p>
+ * Each of these steps is recorded in the {@link BranchArgumentsAction} of the
+ * build once done, so that resuming a failed build skips the steps it already
+ * completed when its branch is still in the workspace.
+ *
+ * @author Iheb Khemissi
+ */
+final class NativeBranchEngine {
+
+	/**
+	 * Goals of the Maven run following a native branch: a Maven job always
+	 * runs Maven, so it is kept to reading the root POM.
+	 */
+	static final String NO_OP_GOALS = "-B -N validate"; //$NON-NLS-1$
+
+	/** The branch exists in the workspace. */
+	static final String STEP_BRANCH = "native:branch"; //$NON-NLS-1$
+
+	/** The branch versions are committed on the branch. */
+	static final String STEP_COMMIT = "native:commit"; //$NON-NLS-1$
+
+	/** The branch is pushed. */
+	static final String STEP_PUSH = "native:push"; //$NON-NLS-1$
+
+	private static final String DEFAULT_COMMENT_PREFIX = "[jobstreefactory] "; //$NON-NLS-1$
+
+	private final Launcher launcher;
+	private final BuildListener listener;
+	private final FilePath root;
+	private final EnvVars env;
+
+	NativeBranchEngine(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
+		this.launcher = launcher;
+		this.listener = listener;
+		this.root = build.getModuleRoot();
+		this.env = build.getEnvironment(listener);
+	}
+
+	/**
+	 * Creates the branch.
+	 *
+	 * @return <code>false</code> if it failed, the reason being logged.
+	 */
+	boolean branch(MavenModuleSet project, BranchArgumentsAction args) throws IOException, InterruptedException {
+		String branchName = args.getBranchName();
+		if (StringUtils.isBlank(branchName)) {
+			listener.error("No branch name given");
+			return false;
+		}
+		if (git("rev-parse", "--is-inside-work-tree") != 0) { //$NON-NLS-1$ //$NON-NLS-2$
+			listener.error("The native branch mode needs a Git workspace, " + root + " is not one");
+			return false;
+		}
+
+		boolean resume = args.isResume() && args.isStepCompleted(STEP_BRANCH);
+		if (resume && git("rev-parse", "--verify", "--quiet", "refs/heads/" + branchName) != 0) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+			listener.getLogger().println("Branch " + branchName + " is not in this workspace, starting over");
+			args.setCompletedSteps(Collections.<String>emptyList());
+			resume = false;
+		}
+
+		if (resume) {
+			listener.getLogger().println("Resuming branch " + branchName + " of build #" + args.getResumedBuild() + " after " + args.getCompletedSteps());
+			if (git("checkout", branchName) != 0) { //$NON-NLS-1$
+				listener.error("Could not check out branch " + branchName);
+				return false;
+			}
+		} else {
+			listener.getLogger().println("Creating branch " + branchName + " without running Maven");
+			int status = StringUtils.isBlank(args.getBranchBase()) ? git("checkout", "-b", branchName) //$NON-NLS-1$ //$NON-NLS-2$
+					: git("checkout", "-b", branchName, args.getBranchBase()); //$NON-NLS-1$ //$NON-NLS-2$
+			if (status != 0) {
+				listener.error("Could not create branch " + branchName + ", it may already exist");
+				return false;
+			}
+			args.addCompletedStep(STEP_BRANCH);
+		}
+
+		if (!resume || !args.isStepCompleted(STEP_COMMIT)) {
+			Set<String> changed = new LinkedHashSet<String>();
+			for (PomVersionRewriter.Change change : root.act(new PomVersionRewriter(getBranchVersions(project, args), getPoms(project), false))) {
+				listener.getLogger().println(change.getPom() + ':' + change.getLine() + ": " + change.getElement() + ' ' + change.getOldVersion()
+						+ " -> " + change.getNewVersion());
+				changed.add(change.getPom());
+			}
+			listener.getLogger().println("Set the branch versions in " + changed.size() + " POM(s)");
+			if (!changed.isEmpty()) {
+				List<String> add = new ArrayList<String>();
+				add.add("add"); //$NON-NLS-1$
+				add.add("--"); //$NON-NLS-1$
+				add.addAll(changed);
+				if (git(add.toArray(new String[add.size()])) != 0 || commit(args) != 0) {
+					listener.error("Could not commit the branch versions");
+					return false;
+				}
+			}
+			args.addCompletedStep(STEP_COMMIT);
+		}
+
+		String remote = getRemote();
+		if (remote == null) {
+			listener.error("Could not push branch " + branchName + ": the Git repository of the workspace has no remote. "
+					+ "Add one to the repository of the job, then resume the build to push the branch");
+			return false;
+		}
+		if (git("push", remote, "refs/heads/" + branchName + ":refs/heads/" + branchName) != 0) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			listener.error("Could not push branch " + branchName + " to " + remote);
+			return false;
+		}
+		args.addCompletedStep(STEP_PUSH);
+		return true;
+	}
+
+	/**
+	 * Gets the branch version of each module, by <code>groupId:artifactId</code>.
+	 */
+	static Map<String, String> getBranchVersions(MavenModuleSet project, BranchArgumentsAction args) {
+		Map<String, String> versions = new LinkedHashMap<String, String>();
+		Map<String, String> independent = args.getModuleReleaseVersions();
+		for (MavenModule module : project.getModules()) {
+			String key = module.getModuleName().toString();
+			versions.put(key, independent.containsKey(key) ? independent.get(key) : args.getReleaseVersion());
+		}
+		return versions;
+	}
+
+	/**
+	 * Gets the paths of the POMs of the modules, relative to the module root.
+	 */
+	static List<String> getPoms(MavenModuleSet project) {
+		List<String> poms = new ArrayList<String>();
+		for (MavenModule module : project.getModules()) {
+			String path = module.getRelativePath();
+			if (StringUtils.isEmpty(path)) {
+				poms.add(project.getRootPOM());
+			} else {
+				poms.add(path + "/pom.xml"); //$NON-NLS-1$
+			}
+		}
+		return poms;
+	}
+
+	private int commit(BranchArgumentsAction args) throws IOException, InterruptedException {
+		String prefix = DEFAULT_COMMENT_PREFIX;
+		if (args.getScmCommentPrefix() != null) {
+			prefix = args.getScmCommentPrefix();
+			if (args.isAppendHusonUserName()) {
+				prefix += String.format("(%s)", args.getHudsonUserName()); //$NON-NLS-1$
+			}
+			prefix += ' ';
+		}
+		String message = prefix + "prepare branch " + args.getBranchName(); //$NON-NLS-1$
+		if (git("config", "user.email") == 0) { //$NON-NLS-1$ //$NON-NLS-2$
+			return git("commit", "-m", message); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+		// the node has no identity for Git, commit as the requester
+		String user = StringUtils.isBlank(args.getHudsonUserName()) ? "jenkins" : args.getHudsonUserName(); //$NON-NLS-1$
+		return git("-c", "user.name=" + user, "-c", "user.email=" + user + "@jenkins", "commit", "-m", message); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$ //$NON-NLS-7$
+	}
+
+	/**
+	 * @return <code>origin</code> if configured, else the first remote,
+	 *         <code>null</code> if there is none.
+	 */
+	private String getRemote() throws IOException, InterruptedException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (launcher.launch().cmds("git", "remote").envs(env).pwd(root).stdout(out).join() != 0) { //$NON-NLS-1$ //$NON-NLS-2$
+			return null;
+		}
+		String[] remotes = StringUtils.split(out.toString(), "\r\n"); //$NON-NLS-1$
+		for (String remote : remotes) {
+			if (remote.trim().equals("origin")) { //$NON-NLS-1$
+				return "origin"; //$NON-NLS-1$
+			}
+		}
+		return remotes.length == 0 ? null : remotes[0].trim();
+	}
+
+	private int git(String... args) throws IOException, InterruptedException {
+		ArgumentListBuilder cmd = new ArgumentListBuilder("git"); //$NON-NLS-1$
+		cmd.add(args);
+		return launcher.launch().cmds(cmd).envs(env).pwd(root).stdout(listener).join();
+	}
+}
@@ -0,0 +1,327 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.Extension;
+import hudson.maven.MavenModuleSet;
+import hudson.maven.MavenModuleSetBuild;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Tracks how warm each node is for each job, and holds the branch builds of
+ * the jobs asking for it back from the cold nodes for a while.
+ *
+ * <p>
+ * The score of a node for a job adds up the recency of its last build of the
+ * job on the node, the recency of the local repository snapshot taken there
+ * (see {@link LocalRepositoryCache}) and whether it has pooled workspaces (see
+ * {@link WorkspacePool}). Recencies halve every {@link #HALF_LIFE} hours. The
+ * tracking is kept in memory only, so the nodes are all cold after a restart.
+ *
+ * @author Iheb Khemissi
+ */
+public final class NodeAffinity {
+
+	private static final Logger LOGGER = Logger.getLogger(NodeAffinity.class.getName());
+
+	/** Hours after which the weight of a build or snapshot is halved. */
+	static final long HALF_LIFE = Long.getLong(NodeAffinity.class.getName() + ".halfLife", 24); //$NON-NLS-1$
+
+	static final double BUILD_WEIGHT = 50;
+	static final double LOCAL_REPOSITORY_WEIGHT = 30;
+	static final double POOLED_WORKSPACE_WEIGHT = 20;
+
+	/** Warmth by node name by job full name, the master being "". */
+	private static final Map<String, Map<String, Warmth>> WARMTHS = new ConcurrentHashMap<String, Map<String, Warmth>>();
+
+	private NodeAffinity() {
+	}
+
+	/**
+	 * Records a completed build of a job on a node.
+	 */
+	static void recordBuild(String job, Node node) {
+		if (node != null) {
+			getWarmth(job, node.getNodeName()).lastBuild = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Records a snapshot of the local repository of a job on a node.
+	 */
+	static void recordLocalRepository(String job, Node node) {
+		if (node != null) {
+			getWarmth(job, node.getNodeName()).localRepository = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Records the number of workspaces pooled for a job on a node.
+	 */
+	static void recordPooledWorkspaces(String job, Node node, int count) {
+		if (node != null) {
+			getWarmth(job, node.getNodeName()).pooledWorkspaces = count;
+		}
+	}
+
+	/**
+	 * Gets the score of a node for a job, <code>0</code> for a cold node.
+	 */
+	public static double getScore(String job, Node node) {
+		Map<String, Warmth> nodes = WARMTHS.get(job);
+		Warmth warmth = nodes == null ? null : nodes.get(node.getNodeName());
+		return warmth == null ? 0 : warmth.getScore(System.currentTimeMillis());
+	}
+
+	/**
+	 * Gets the scores of the nodes that may build the given job, the warmest
+	 * first.
+	 */
+	public static List<Score> getScores(MavenModuleSet project) {
+		Jenkins jenkins = Jenkins.getInstance();
+		List<Node> nodes = new ArrayList<Node>(jenkins.getNodes());
+		nodes.add(jenkins);
+		Label label = project.getAssignedLabel();
+		List<Score> scores = new ArrayList<Score>();
+		for (Node node : nodes) {
+			if (label == null || label.contains(node)) {
+				Map<String, Warmth> warmths = WARMTHS.get(project.getFullName());
+				Warmth warmth = warmths == null ? null : warmths.get(node.getNodeName());
+				scores.add(new Score(node, warmth == null ? new Warmth() : warmth.copy()));
+			}
+		}
+		Collections.sort(scores);
+		return scores;
+	}
+
+	private static Warmth getWarmth(String job, String node) {
+		Map<String, Warmth> nodes = WARMTHS.get(job);
+		if (nodes == null) {
+			synchronized (WARMTHS) {
+				nodes = WARMTHS.get(job);
+				if (nodes == null) {
+					nodes = new ConcurrentHashMap<String, Warmth>();
+					WARMTHS.put(job, nodes);
+				}
+			}
+		}
+		Warmth warmth = nodes.get(node);
+		if (warmth == null) {
+			synchronized (nodes) {
+				warmth = nodes.get(node);
+				if (warmth == null) {
+					warmth = new Warmth();
+					nodes.put(node, warmth);
+				}
+			}
+		}
+		return warmth;
+	}
+
+	private static double decay(long since, long now) {
+		if (since <= 0) {
+			return 0;
+		}
+		return Math.pow(0.5, (now - since) / (HALF_LIFE * 3600000.0));
+	}
+
+	private static boolean isOnline(Node node) {
+		Computer computer = node.toComputer();
+		return computer != null && computer.isOnline() && computer.isAcceptingTasks();
+	}
+
+	/**
+	 * What makes a node warm for a job.
+	 */
+	static final class Warmth {
+		volatile long lastBuild;
+		volatile long localRepository;
+		volatile int pooledWorkspaces;
+
+		double getScore(long now) {
+			return BUILD_WEIGHT * decay(lastBuild, now) + LOCAL_REPOSITORY_WEIGHT * decay(localRepository, now)
+					+ (pooledWorkspaces > 0 ? POOLED_WORKSPACE_WEIGHT : 0);
+		}
+
+		Warmth copy() {
+			Warmth copy = new Warmth();
+			copy.lastBuild = lastBuild;
+			copy.localRepository = localRepository;
+			copy.pooledWorkspaces = pooledWorkspaces;
+			return copy;
+		}
+	}
+
+	/**
+	 * The score of a node for a job, as reported by {@link NodeAffinityAction}.
+	 */
+	public static final class Score implements Comparable<Score> {
+		private final Node node;
+		private final Warmth warmth;
+		private final double score;
+
+		Score(Node node, Warmth warmth) {
+			this.node = node;
+			this.warmth = warmth;
+			this.score = warmth.getScore(System.currentTimeMillis());
+		}
+
+		public Node getNode() {
+			return node;
+		}
+
+		public double getScore() {
+			return score;
+		}
+
+		public boolean isOnline() {
+			return NodeAffinity.isOnline(node);
+		}
+
+		/**
+		 * @return <code>0</code> if the job was never built there since the
+		 *         startup.
+		 */
+		public long getLastBuild() {
+			return warmth.lastBuild;
+		}
+
+		public long getLocalRepository() {
+			return warmth.localRepository;
+		}
+
+		public int getPooledWorkspaces() {
+			return warmth.pooledWorkspaces;
+		}
+
+		public int compareTo(Score o) {
+			return Double.compare(o.score, score);
+		}
+	}
+
+	/**
+	 * Records the nodes the jobs using the branch wrapper were built on.
+	 */
+	@Extension
+	public static class Recorder extends RunListener<MavenModuleSetBuild> {
+
+		public Recorder() {
+			super(MavenModuleSetBuild.class);
+		}
+
+		@Override
+		public void onCompleted(MavenModuleSetBuild build, TaskListener listener) {
+			if (build.getProject().getBuildWrappersList().get(BranchBuildWrapper.class) != null) {
+				recordBuild(build.getProject().getFullName(), build.getBuiltOn());
+			}
+		}
+	}
+
+	/**
+	 * Keeps the branch builds of the jobs with an affinity wait off the nodes
+	 * colder than the warmest online one, until they waited that long.
+	 */
+	@Extension
+	public static class Dispatcher extends QueueTaskDispatcher {
+
+		@Override
+		public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+			if (!(item.task instanceof MavenModuleSet) || !BranchReason.isBranchBuild(item)) {
+				return null;
+			}
+			MavenModuleSet project = (MavenModuleSet) item.task;
+			BranchBuildWrapper wrapper = project.getBuildWrappersList().get(BranchBuildWrapper.class);
+			if (wrapper == null || wrapper.getNodeAffinityWait() <= 0
+					|| System.currentTimeMillis() - item.getInQueueSince() >= wrapper.getNodeAffinityWait() * 1000L) {
+				return null;
+			}
+
+			String job = project.getFullName();
+			double score = getScore(job, node);
+			Node warmest = null;
+			double best = score;
+			Label label = item.getAssignedLabel();
+			Jenkins jenkins = Jenkins.getInstance();
+			List<Node> nodes = new ArrayList<Node>(jenkins.getNodes());
+			nodes.add(jenkins);
+			for (Node candidate : nodes) {
+				if (candidate != node && (label == null || label.contains(candidate)) && isOnline(candidate)) {
+					double candidateScore = getScore(job, candidate);
+					if (candidateScore > best) {
+						best = candidateScore;
+						warmest = candidate;
+					}
+				}
+			}
+			if (warmest == null) {
+				return null;
+			}
+			LOGGER.log(Level.FINE, "Holding {0} back from {1} (score {2}) for {3} (score {4})",
+					new Object[] { job, node.getDisplayName(), score, warmest.getDisplayName(), best });
+			return new WarmerNode(warmest.getDisplayName(), best, node.getDisplayName(), score, wrapper.getNodeAffinityWait());
+		}
+	}
+
+	/**
+	 * Shown in the queue while a branch build waits for a warmer node.
+	 */
+	static final class WarmerNode extends CauseOfBlockage {
+		private final String warmest;
+		private final double best;
+		private final String node;
+		private final double score;
+		private final int wait;
+
+		WarmerNode(String warmest, double best, String node, double score, int wait) {
+			this.warmest = warmest;
+			this.best = best;
+			this.node = node;
+			this.score = score;
+			this.wait = wait;
+		}
+
+		@Override
+		public String getShortDescription() {
+			return String.format(Locale.ENGLISH, "Waiting up to %ds for %s (score %.1f) rather than %s (score %.1f)", wait, warmest, best, node, score); //$NON-NLS-1$
+		}
+	}
+}
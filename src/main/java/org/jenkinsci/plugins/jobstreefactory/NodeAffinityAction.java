@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.Extension;
+import hudson.maven.MavenModuleSet;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Item;
+import hudson.model.TransientProjectActionFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Exposes the {@link NodeAffinity} scores of the nodes for a job as JSON, at
+ * <code>jobstreefactory-affinity</code>, to tune the affinity of its branch
+ * builds.
+ *
+ * @author Iheb Khemissi
+ */
+public class NodeAffinityAction implements Action {
+
+	private final MavenModuleSet project;
+
+	NodeAffinityAction(MavenModuleSet project) {
+		this.project = project;
+	}
+
+	public String getIconFileName() {
+		// API only
+		return null;
+	}
+
+	public String getDisplayName() {
+		return "Branch build node affinity";
+	}
+
+	public String getUrlName() {
+		return "jobstreefactory-affinity"; //$NON-NLS-1$
+	}
+
+	public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+		project.checkPermission(Item.READ);
+		BranchBuildWrapper wrapper = project.getBuildWrappersList().get(BranchBuildWrapper.class);
+		JSONArray nodes = new JSONArray();
+		for (NodeAffinity.Score score : NodeAffinity.getScores(project)) {
+			JSONObject json = new JSONObject();
+			json.put("node", score.getNode().getDisplayName()); //$NON-NLS-1$
+			json.put("online", score.isOnline()); //$NON-NLS-1$
+			json.put("score", score.getScore()); //$NON-NLS-1$
+			json.put("lastBuild", score.getLastBuild()); //$NON-NLS-1$
+			json.put("localRepository", score.getLocalRepository()); //$NON-NLS-1$
+			json.put("pooledWorkspaces", score.getPooledWorkspaces()); //$NON-NLS-1$
+			nodes.add(json);
+		}
+		JSONObject weights = new JSONObject();
+		weights.put("build", NodeAffinity.BUILD_WEIGHT); //$NON-NLS-1$
+		weights.put("localRepository", NodeAffinity.LOCAL_REPOSITORY_WEIGHT); //$NON-NLS-1$
+		weights.put("pooledWorkspace", NodeAffinity.POOLED_WORKSPACE_WEIGHT); //$NON-NLS-1$
+		JSONObject json = new JSONObject();
+		json.put("job", project.getFullName()); //$NON-NLS-1$
+		json.put("waitSeconds", wrapper == null ? 0 : wrapper.getNodeAffinityWait()); //$NON-NLS-1$
+		json.put("halfLifeHours", NodeAffinity.HALF_LIFE); //$NON-NLS-1$
+		json.put("weights", weights); //$NON-NLS-1$
+		json.put("nodes", nodes); //$NON-NLS-1$
+		rsp.setContentType("application/json;charset=UTF-8"); //$NON-NLS-1$
+		rsp.getWriter().print(json.toString());
+	}
+
+	@Extension
+	public static class Factory extends TransientProjectActionFactory {
+		@SuppressWarnings("rawtypes")
+		@Override
+		public Collection<? extends Action> createFor(AbstractProject target) {
+			if (!BranchBuildWrapper.isBranchJob(target)) {
+				return Collections.emptyList();
+			}
+			return Collections.singletonList(new NodeAffinityAction((MavenModuleSet) target));
+		}
+	}
+}
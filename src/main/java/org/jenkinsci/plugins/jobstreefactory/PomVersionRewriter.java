@@ -0,0 +1,608 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+import hudson.util.AtomicFileWriter;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Sets the versions of the modules of a reactor in their POMs, like
+ * <code>release:branch</code> does with <code>updateBranchVersions</code> and
+ * <code>updateDependencies</code>, without loading any Maven model.
+ *
+ * <p>
+ * Only the text of the <code>version</code> elements changes, so the rest of
+ * the POMs, comments and formatting included, is left as is. It rewrites:
+ * <ul>
+ * <li>the version of the project,</li>
+ * <li>the version of its parent if the parent is one of the modules,</li>
+ * <li>the explicit versions of the dependencies on the modules, in
+ * <code>dependencies</code> and <code>dependencyManagement</code>, and in
+ * the <code>dependencies</code> of the plugins, of the project and of its
+ * profiles.</li>
+ * </ul>
+ * Each POM is streamed: only the part of it that cannot be written yet, like
+ * a <code>dependency</code> element whose coordinates are not all read, is
+ * held in memory. The POMs are processed in parallel. In preview mode nothing
+ * is written and only the planned changes are reported. A POM is read and
+ * written in the encoding of its XML declaration, and replaced at once.
+ *
+ * <p>
+ * It runs where the workspace is, through
+ * {@link hudson.FilePath#act(FileCallable)}.
+ *
+ * @author Iheb Khemissi
+ */
+final class PomVersionRewriter implements FileCallable<List<PomVersionRewriter.Change>> {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Number of POMs rewritten at once. */
+	private static final int PARALLELISM = Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+	/** Number of bytes the XML declaration of a POM is looked for in. */
+	private static final int DECLARATION_LENGTH = 256;
+
+	private static final Pattern ENCODING = Pattern.compile("^<\\?xml\\s[^>]*?encoding\\s*=\\s*[\"']([A-Za-z0-9._:-]+)[\"']"); //$NON-NLS-1$
+
+	private static final String DEFAULT_ENCODING = "UTF-8"; //$NON-NLS-1$
+
+	/**
+	 * Paths of the <code>dependency</code> elements, under the project or a
+	 * profile.
+	 */
+	private static final String[][] DEPENDENCY_PATHS = { { "dependencies", "dependency" }, //$NON-NLS-1$ //$NON-NLS-2$
+			{ "dependencyManagement", "dependencies", "dependency" }, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			{ "build", "plugins", "plugin", "dependencies", "dependency" }, //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+			{ "build", "pluginManagement", "plugins", "plugin", "dependencies", "dependency" } }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+
+	/** New versions by <code>groupId:artifactId</code>. */
+	private final HashMap<String, String> versions;
+
+	/** Paths of the POMs, relative to the workspace. */
+	private final ArrayList<String> poms;
+
+	private final boolean preview;
+
+	/**
+	 * @param preview
+	 *            whether the changes are only reported, not written.
+	 */
+	PomVersionRewriter(Map<String, String> versions, List<String> poms, boolean preview) {
+		this.versions = new HashMap<String, String>(versions);
+		this.poms = new ArrayList<String>(poms);
+		this.preview = preview;
+	}
+
+	/**
+	 * @return the changes, by POM and then by line.
+	 */
+	public List<Change> invoke(final File root, VirtualChannel channel) throws IOException, InterruptedException {
+		List<Change> changes = new ArrayList<Change>();
+		if (poms.size() == 1 || PARALLELISM == 1) {
+			for (String pom : poms) {
+				changes.addAll(rewrite(root, pom));
+			}
+			return changes;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(PARALLELISM, poms.size()));
+		try {
+			List<Future<List<Change>>> futures = new ArrayList<Future<List<Change>>>();
+			for (final String pom : poms) {
+				futures.add(pool.submit(new Callable<List<Change>>() {
+					public List<Change> call() throws IOException {
+						return rewrite(root, pom);
+					}
+				}));
+			}
+			for (Future<List<Change>> future : futures) {
+				changes.addAll(future.get());
+			}
+			return changes;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Failed to rewrite the POMs", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private List<Change> rewrite(File root, String pom) throws IOException {
+		File file = new File(root, pom);
+		if (!file.isFile()) {
+			return Collections.emptyList();
+		}
+		InputStream stream = new BufferedInputStream(new FileInputStream(file));
+		Reader in = null;
+		AtomicFileWriter out = null;
+		try {
+			String encoding = getEncoding(stream);
+			if (!Charset.isSupported(encoding)) {
+				throw new IOException("Unsupported encoding " + encoding + " in " + file);
+			}
+			in = new InputStreamReader(stream, encoding);
+			if (preview) {
+				return rewrite(pom, in, null);
+			}
+			// written next to the POM, which is only replaced if something changed
+			out = new AtomicFileWriter(file, encoding);
+			List<Change> changes = rewrite(pom, in, out);
+			if (!changes.isEmpty()) {
+				in.close();
+				out.commit();
+			}
+			return changes;
+		} finally {
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(stream);
+			if (out != null) {
+				// deletes the temporary file unless it replaced the POM
+				out.abort();
+			}
+		}
+	}
+
+	/**
+	 * Gets the encoding of a POM from its byte order mark or XML declaration,
+	 * leaving the stream where it was.
+	 */
+	static String getEncoding(InputStream in) throws IOException {
+		byte[] head = new byte[DECLARATION_LENGTH];
+		in.mark(head.length);
+		int length = 0;
+		try {
+			int n;
+			while (length < head.length && (n = in.read(head, length, head.length - length)) > 0) {
+				length += n;
+			}
+		} finally {
+			in.reset();
+		}
+		if (length >= 2 && (head[0] & 0xFF) == 0xFE && (head[1] & 0xFF) == 0xFF) {
+			return "UTF-16BE"; //$NON-NLS-1$
+		}
+		if (length >= 2 && (head[0] & 0xFF) == 0xFF && (head[1] & 0xFF) == 0xFE) {
+			return "UTF-16LE"; //$NON-NLS-1$
+		}
+		if (length >= 3 && (head[0] & 0xFF) == 0xEF && (head[1] & 0xFF) == 0xBB && (head[2] & 0xFF) == 0xBF) {
+			return DEFAULT_ENCODING;
+		}
+		// the declaration only uses ASCII characters, which any other encoding of a POM keeps as is
+		Matcher matcher = ENCODING.matcher(new String(head, 0, length, Charset.forName("ISO-8859-1"))); //$NON-NLS-1$
+		return matcher.find() ? matcher.group(1) : DEFAULT_ENCODING;
+	}
+
+	/**
+	 * Rewrites a single POM.
+	 *
+	 * @param out
+	 *            receives the rewritten POM, <code>null</code> in preview mode.
+	 * @return the changes, in document order.
+	 */
+	List<Change> rewrite(String pom, Reader in, Writer out) throws IOException {
+		Scan scan = new Scan(pom, in, out);
+		scan.run();
+		Collections.sort(scan.changes, new Comparator<Change>() {
+			public int compare(Change o1, Change o2) {
+				return o1.line - o2.line;
+			}
+		});
+		return scan.changes;
+	}
+
+	/**
+	 * A version set in a POM.
+	 */
+	public static final class Change implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final String pom;
+		private final int line;
+		private final String element;
+		private final String oldVersion;
+		private final String newVersion;
+
+		Change(String pom, int line, String element, String oldVersion, String newVersion) {
+			this.pom = pom;
+			this.line = line;
+			this.element = element;
+			this.oldVersion = oldVersion;
+			this.newVersion = newVersion;
+		}
+
+		/** Path of the POM, relative to the workspace. */
+		public String getPom() {
+			return pom;
+		}
+
+		public int getLine() {
+			return line;
+		}
+
+		/** What the version belongs to: the project, its parent or a dependency. */
+		public String getElement() {
+			return element;
+		}
+
+		public String getOldVersion() {
+			return oldVersion;
+		}
+
+		public String getNewVersion() {
+			return newVersion;
+		}
+	}
+
+	/** Text content of an element, at absolute offsets in the POM. */
+	private static final class Text {
+		final String value;
+		final long start;
+		final long end;
+		final int line;
+
+		Text(String value, long start, long end, int line) {
+			this.value = value.trim();
+			this.start = start;
+			this.end = end;
+			this.line = line;
+		}
+	}
+
+	private static final class Coordinates {
+		String groupId;
+		String artifactId;
+		Text version;
+	}
+
+	private static final class Replacement {
+		final long start;
+		final long end;
+		final String value;
+
+		Replacement(long start, long end, String value) {
+			this.start = start;
+			this.end = end;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Streams the tokens of a POM, keeping the coordinates of the project, its
+	 * parent and its dependencies.
+	 *
+	 * <p>
+	 * Everything read goes to {@link #pending}, which is written out as soon
+	 * as no version it holds is still undecided.
+	 */
+	private final class Scan {
+		private final String pom;
+		private final Reader in;
+		private final Writer out;
+		final List<Change> changes = new ArrayList<Change>();
+
+		/** Read and not written yet. */
+		private final StringBuilder pending = new StringBuilder();
+		/** Offset of {@link #pending} in the POM. */
+		private long base;
+		private int line = 1;
+		private final List<Replacement> replacements = new ArrayList<Replacement>();
+
+		private final List<String> path = new ArrayList<String>();
+		private final List<Long> contentStarts = new ArrayList<Long>();
+
+		private String groupId;
+		private String artifactId;
+		private Text version;
+		private final Coordinates parent = new Coordinates();
+		private boolean parentClosed;
+		private Coordinates dependency;
+		/** Read dependencies waiting for the group of the project. */
+		private final List<Coordinates> dependencies = new ArrayList<Coordinates>();
+
+		Scan(String pom, Reader in, Writer out) {
+			this.pom = pom;
+			this.in = in;
+			this.out = out;
+		}
+
+		void run() throws IOException {
+			int c;
+			while ((c = read()) >= 0) {
+				if (c == '<') {
+					token();
+					resolve();
+					if (isDecided()) {
+						flush();
+					}
+				}
+			}
+			// undecided versions at the end are left as is
+			flush();
+		}
+
+		private int read() throws IOException {
+			int c = in.read();
+			if (c >= 0) {
+				pending.append((char) c);
+				if (c == '\n') {
+					line++;
+				}
+			}
+			return c;
+		}
+
+		private long offset() {
+			return base + pending.length();
+		}
+
+		/** Reads until the pending buffer ends with the given terminator. */
+		private boolean readUntil(String terminator) throws IOException {
+			while (!endsWith(terminator)) {
+				if (read() < 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean endsWith(String s) {
+			int start = pending.length() - s.length();
+			return start >= 0 && pending.indexOf(s, start) == start;
+		}
+
+		/** Reads the rest of the token started by the last <code>&lt;</code>. */
+		private void token() throws IOException {
+			long tagStart = offset() - 1;
+			int c = read();
+			if (c == '!') {
+				c = read();
+				if (c == '-') {
+					readUntil("-->"); //$NON-NLS-1$
+				} else if (c == '[') {
+					readUntil("]]>"); //$NON-NLS-1$
+				} else {
+					readUntil(">"); //$NON-NLS-1$
+				}
+				return;
+			}
+			if (c == '?') {
+				readUntil("?>"); //$NON-NLS-1$
+				return;
+			}
+			boolean closing = c == '/';
+			StringBuilder name = new StringBuilder();
+			if (!closing && c >= 0) {
+				name.append((char) c);
+			}
+			boolean inName = true;
+			char quote = 0;
+			while ((c = read()) >= 0) {
+				if (quote != 0) {
+					if (c == quote) {
+						quote = 0;
+					}
+				} else if (c == '"' || c == '\'') {
+					quote = (char) c;
+				} else if (c == '>') {
+					break;
+				} else if (inName && (Character.isWhitespace(c) || c == '/')) {
+					inName = false;
+				} else if (inName) {
+					name.append((char) c);
+				}
+			}
+			if (c < 0) {
+				return;
+			}
+			boolean empty = pending.charAt(pending.length() - 2) == '/';
+			if (closing) {
+				if (!path.isEmpty()) {
+					end(contentStarts.get(contentStarts.size() - 1), tagStart);
+					path.remove(path.size() - 1);
+					contentStarts.remove(contentStarts.size() - 1);
+				}
+			} else if (!empty) {
+				path.add(name.toString());
+				contentStarts.add(offset());
+				start();
+			}
+		}
+
+		private String text(long start, long end) {
+			return pending.substring((int) (start - base), (int) (end - base));
+		}
+
+		private boolean isDependency(int depth) {
+			// project/.../dependency or project/profiles/profile/.../dependency
+			int from = depth > 3 && path.get(1).equals("profiles") && path.get(2).equals("profile") ? 3 : 1; //$NON-NLS-1$ //$NON-NLS-2$
+			for (String[] dependencyPath : DEPENDENCY_PATHS) {
+				if (depth - from == dependencyPath.length && matches(from, dependencyPath)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean matches(int from, String[] names) {
+			for (int i = 0; i < names.length; i++) {
+				if (!path.get(from + i).equals(names[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void start() {
+			if (isDependency(path.size())) {
+				dependency = new Coordinates();
+			}
+		}
+
+		private void end(long contentStart, long contentEnd) {
+			int depth = path.size();
+			String name = path.get(depth - 1);
+			if (depth == 2) {
+				if (name.equals("groupId")) { //$NON-NLS-1$
+					groupId = text(contentStart, contentEnd).trim();
+				} else if (name.equals("artifactId")) { //$NON-NLS-1$
+					artifactId = text(contentStart, contentEnd).trim();
+				} else if (name.equals("version")) { //$NON-NLS-1$
+					version = new Text(text(contentStart, contentEnd), contentStart, contentEnd, line);
+				} else if (name.equals("parent")) { //$NON-NLS-1$
+					parentClosed = true;
+					decide("parent", parent.groupId, parent.artifactId, parent.version); //$NON-NLS-1$
+				}
+			} else if (depth == 3 && path.get(1).equals("parent")) { //$NON-NLS-1$
+				record(parent, name, contentStart, contentEnd);
+			} else if (dependency != null && isDependency(depth - 1)) {
+				record(dependency, name, contentStart, contentEnd);
+			} else if (dependency != null && isDependency(depth)) {
+				if (dependency.version != null) {
+					dependencies.add(dependency);
+				}
+				dependency = null;
+			}
+		}
+
+		private void record(Coordinates coordinates, String name, long contentStart, long contentEnd) {
+			if (name.equals("groupId")) { //$NON-NLS-1$
+				coordinates.groupId = text(contentStart, contentEnd).trim();
+			} else if (name.equals("artifactId")) { //$NON-NLS-1$
+				coordinates.artifactId = text(contentStart, contentEnd).trim();
+			} else if (name.equals("version")) { //$NON-NLS-1$
+				coordinates.version = new Text(text(contentStart, contentEnd), contentStart, contentEnd, line);
+			}
+		}
+
+		/**
+		 * Gets the group of the project.
+		 *
+		 * @return <code>null</code> while it may still be read.
+		 */
+		private String getGroupId() {
+			if (groupId != null) {
+				return groupId;
+			}
+			return parentClosed ? parent.groupId : null;
+		}
+
+		/** Decides the versions whose coordinates are now known. */
+		private void resolve() {
+			String group = getGroupId();
+			if (version != null && artifactId != null && group != null) {
+				decide("project", group, artifactId, version); //$NON-NLS-1$
+				version = null;
+			}
+			for (Iterator<Coordinates> it = dependencies.iterator(); it.hasNext();) {
+				Coordinates d = it.next();
+				String dependencyGroupId = d.groupId;
+				if ("${project.groupId}".equals(dependencyGroupId) || "${pom.groupId}".equals(dependencyGroupId)) { //$NON-NLS-1$ //$NON-NLS-2$
+					if (group == null) {
+						continue;
+					}
+					dependencyGroupId = group;
+				}
+				decide("dependency " + dependencyGroupId + ':' + d.artifactId, dependencyGroupId, d.artifactId, d.version); //$NON-NLS-1$
+				it.remove();
+			}
+		}
+
+		/**
+		 * Whether nothing read so far may still need to be rewritten.
+		 */
+		private boolean isDecided() {
+			if (version != null || dependency != null || !dependencies.isEmpty()) {
+				return false;
+			}
+			if (path.size() >= 2 && path.get(1).equals("parent")) { //$NON-NLS-1$
+				return false;
+			}
+			// the content of a coordinate element, comments included, is read at once
+			String current = path.isEmpty() ? null : path.get(path.size() - 1);
+			return !"groupId".equals(current) && !"artifactId".equals(current) && !"version".equals(current); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		}
+
+		private void decide(String element, String group, String artifact, Text text) {
+			if (text == null || text.value.startsWith("${")) { //$NON-NLS-1$
+				// absent, or a property the build resolves
+				return;
+			}
+			String value = versions.get(group + ':' + artifact);
+			if (value != null && !value.equals(text.value)) {
+				replacements.add(new Replacement(text.start, text.end, value));
+				changes.add(new Change(pom, text.line, element, text.value, value));
+			}
+		}
+
+		private void flush() throws IOException {
+			int length = pending.length();
+			if (out != null) {
+				// from the end so that the offsets of the others stay valid
+				Collections.sort(replacements, new Comparator<Replacement>() {
+					public int compare(Replacement o1, Replacement o2) {
+						return o1.start > o2.start ? -1 : o1.start < o2.start ? 1 : 0;
+					}
+				});
+				for (Replacement replacement : replacements) {
+					pending.replace((int) (replacement.start - base), (int) (replacement.end - base), replacement.value);
+				}
+				out.write(pending.toString());
+			}
+			replacements.clear();
+			base += length;
+			pending.setLength(0);
+		}
+	}
+}
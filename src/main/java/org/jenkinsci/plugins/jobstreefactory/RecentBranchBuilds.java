@@ -0,0 +1,331 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the most recent branch builds across many jobs.
+ *
+ * <p>
+ * The {@link BranchBuildIndex} of each job is fetched on a small shared pool,
+ * which gives one list per job sorted newest first. Those lists are then
+ * merged through a heap that holds the head of each list, and the merge stops
+ * as soon as the requested number of builds has been taken. The merge is lazy,
+ * so {@link #iterate} can stream any number of builds.
+ *
+ * <p>
+ * Builds with the same timestamp are ordered by the full name of their job,
+ * which is the order the dashboard used to produce for its jobs listed by
+ * name.
+ *
+ * @author Iheb Khemissi
+ */
+public final class RecentBranchBuilds {
+
+	private static final Logger LOGGER = Logger.getLogger(RecentBranchBuilds.class.getName());
+
+	/** Number of threads used to fetch the job indexes. */
+	static final int PARALLELISM = Integer.getInteger(RecentBranchBuilds.class.getName() + ".parallelism",
+			Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	/** Below that many jobs, the indexes are fetched on the calling thread. */
+	static final int PARALLEL_THRESHOLD = Integer.getInteger(RecentBranchBuilds.class.getName() + ".parallelThreshold", 32);
+
+	private static final ExecutorService POOL = Executors.newFixedThreadPool(PARALLELISM, new DaemonThreadFactory());
+
+	private RecentBranchBuilds() {
+	}
+
+	/**
+	 * Gets the <code>max</code> most recent branch builds of the given jobs,
+	 * newest first.
+	 */
+	@SuppressWarnings("rawtypes")
+	public static List<Entry> newest(Collection<? extends Job> jobs, int max) {
+		List<Entry> result = new ArrayList<Entry>(Math.max(0, Math.min(max, 64)));
+		if (max <= 0 || jobs.isEmpty()) {
+			return result;
+		}
+
+		// same order as iterate(), so that a page taken from this list can be continued from its last position
+		Iterator<Entry> merge = iterate(jobs, null);
+		while (result.size() < max && merge.hasNext()) {
+			result.add(merge.next());
+		}
+		return result;
+	}
+
+	/**
+	 * Iterates lazily over all the branch builds of the given jobs, newest
+	 * first. Builds with the same timestamp are ordered by the full name of
+	 * their job, then by build number, so that the iteration can be resumed
+	 * from any {@link Position}.
+	 *
+	 * @param after
+	 *        where to resume, <code>null</code> to start from the newest build.
+	 */
+	@SuppressWarnings("rawtypes")
+	public static Iterator<Entry> iterate(Collection<? extends Job> jobs, Position after) {
+		List<Job> sorted = new ArrayList<Job>(jobs);
+		Collections.sort(sorted, new Comparator<Job>() {
+			public int compare(Job o1, Job o2) {
+				return o1.getFullName().compareTo(o2.getFullName());
+			}
+		});
+		List<Cursor> cursors = open(sorted);
+		if (after != null) {
+			for (Cursor cursor : cursors) {
+				while (cursor.hasNext() && after.isAtOrBefore(cursor.job.getFullName(), cursor.peek())) {
+					cursor.next();
+				}
+			}
+		}
+		return new Merge(cursors);
+	}
+
+	/**
+	 * Opens one cursor per job, fetching the indexes in parallel when there
+	 * are enough jobs to make it worthwhile.
+	 */
+	@SuppressWarnings("rawtypes")
+	private static List<Cursor> open(Collection<? extends Job> jobs) {
+		List<Cursor> cursors = new ArrayList<Cursor>(jobs.size());
+		if (jobs.size() < PARALLEL_THRESHOLD || PARALLELISM <= 1) {
+			int order = 0;
+			for (Job<?, ?> job : jobs) {
+				cursors.add(new Cursor(order++, job, BranchBuildIndex.of(job).getRecords()));
+			}
+			return cursors;
+		}
+
+		List<Future<List<BranchBuildRecord>>> futures = new ArrayList<Future<List<BranchBuildRecord>>>(jobs.size());
+		for (final Job<?, ?> job : jobs) {
+			futures.add(POOL.submit(new Callable<List<BranchBuildRecord>>() {
+				public List<BranchBuildRecord> call() {
+					return BranchBuildIndex.of(job).getRecords();
+				}
+			}));
+		}
+		int order = 0;
+		for (Job<?, ?> job : jobs) {
+			Future<List<BranchBuildRecord>> future = futures.get(order);
+			List<BranchBuildRecord> records;
+			try {
+				records = future.get();
+			} catch (InterruptedException e) {
+				// keep the request going, but let the caller know it was interrupted
+				Thread.currentThread().interrupt();
+				records = BranchBuildIndex.of(job).getRecords();
+			} catch (ExecutionException e) {
+				LOGGER.log(Level.WARNING, "Failed to read the branch builds of " + job.getFullName(), e.getCause());
+				records = new ArrayList<BranchBuildRecord>(0);
+			}
+			cursors.add(new Cursor(order++, job, records));
+		}
+		return cursors;
+	}
+
+	/**
+	 * A branch build of one of the jobs.
+	 */
+	public static final class Entry {
+		private final Job<?, ?> job;
+		private final BranchBuildRecord record;
+
+		Entry(Job<?, ?> job, BranchBuildRecord record) {
+			this.job = job;
+			this.record = record;
+		}
+
+		public Job<?, ?> getJob() {
+			return job;
+		}
+
+		public BranchBuildRecord getRecord() {
+			return record;
+		}
+
+		/**
+		 * Loads the build this entry refers to.
+		 *
+		 * @return <code>null</code> if the build has been deleted meanwhile.
+		 */
+		public Run<?, ?> getRun() {
+			return job.getBuildByNumber(record.getNumber());
+		}
+
+		public Position getPosition() {
+			return new Position(record.getTimestamp(), job.getFullName(), record.getNumber());
+		}
+	}
+
+	/**
+	 * Place of a branch build in the order of {@link #iterate}, which can be
+	 * written as an opaque string to resume an iteration later.
+	 */
+	public static final class Position {
+		private final long timestamp;
+		private final String jobName;
+		private final int number;
+
+		public Position(long timestamp, String jobName, int number) {
+			this.timestamp = timestamp;
+			this.jobName = jobName;
+			this.number = number;
+		}
+
+		/**
+		 * Parses the output of {@link #toString()}.
+		 *
+		 * @throws IllegalArgumentException
+		 *         if the string is not a valid position.
+		 */
+		public static Position fromString(String s) {
+			String[] parts = s.split(":", 3); //$NON-NLS-1$
+			if (parts.length != 3) {
+				throw new IllegalArgumentException("Invalid position: " + s);
+			}
+			try {
+				return new Position(Long.parseLong(parts[0]), parts[2], Integer.parseInt(parts[1]));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid position: " + s, e);
+			}
+		}
+
+		/**
+		 * Tells if the given build of the given job comes at or before this
+		 * position.
+		 */
+		boolean isAtOrBefore(String job, BranchBuildRecord record) {
+			if (record.getTimestamp() != timestamp) {
+				return record.getTimestamp() > timestamp;
+			}
+			int cmp = job.compareTo(jobName);
+			if (cmp != 0) {
+				return cmp < 0;
+			}
+			return record.getNumber() >= number;
+		}
+
+		@Override
+		public String toString() {
+			// the job name goes last as it may contain the separator
+			return timestamp + ":" + number + ":" + jobName;
+		}
+	}
+
+	/**
+	 * Merges the cursors through a heap holding the head of each of them.
+	 */
+	private static final class Merge implements Iterator<Entry> {
+		private final PriorityQueue<Cursor> heap;
+
+		Merge(List<Cursor> cursors) {
+			heap = new PriorityQueue<Cursor>(Math.max(1, cursors.size()), Cursor.NEWEST_HEAD_FIRST);
+			for (Cursor cursor : cursors) {
+				if (cursor.hasNext()) {
+					heap.add(cursor);
+				}
+			}
+		}
+
+		public boolean hasNext() {
+			return !heap.isEmpty();
+		}
+
+		public Entry next() {
+			Cursor cursor = heap.poll();
+			if (cursor == null) {
+				throw new NoSuchElementException();
+			}
+			Entry entry = new Entry(cursor.job, cursor.next());
+			if (cursor.hasNext()) {
+				heap.add(cursor);
+			}
+			return entry;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Position in the newest first list of branch builds of a job.
+	 */
+	private static final class Cursor {
+		static final Comparator<Cursor> NEWEST_HEAD_FIRST = new Comparator<Cursor>() {
+			public int compare(Cursor o1, Cursor o2) {
+				long t1 = o1.records.get(o1.position).getTimestamp();
+				long t2 = o2.records.get(o2.position).getTimestamp();
+				if (t1 != t2) {
+					return t1 > t2 ? -1 : 1;
+				}
+				return o1.order - o2.order;
+			}
+		};
+
+		private final int order;
+		private final Job<?, ?> job;
+		private final List<BranchBuildRecord> records;
+		private int position;
+
+		Cursor(int order, Job<?, ?> job, List<BranchBuildRecord> records) {
+			this.order = order;
+			this.job = job;
+			this.records = records;
+		}
+
+		boolean hasNext() {
+			return position < records.size();
+		}
+
+		BranchBuildRecord peek() {
+			return records.get(position);
+		}
+
+		BranchBuildRecord next() {
+			return records.get(position++);
+		}
+	}
+}
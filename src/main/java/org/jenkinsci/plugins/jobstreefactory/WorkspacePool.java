@@ -0,0 +1,398 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.maven.MavenModuleSet;
+import hudson.maven.MavenModuleSetBuild;
+import hudson.model.AbstractBuild;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Node;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.LogTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+/**
+ * Pre-cloned Git workspaces leased to the branch builds landing on a node
+ * where their job has no workspace yet.
+ *
+ * <p>
+ * Each node keeps, under {@value #DIR_NAME} in its root directory, up to the
+ * configured number of clones per job. They are cloned locally from the
+ * workspace of the completed builds of the job, which shares the Git objects
+ * when possible, point to the same remote, and are fetched periodically. A
+ * branch build without workspace gets one of them moved in place before its
+ * checkout, which then only has to fetch the latest changes, and the release
+ * checkout is then cloned from it rather than from the remote. Only the
+ * leased workspaces are ever reset: a successful branch build gives its
+ * leased workspace back to the pool, where it is reset to a clean state,
+ * while the failed ones are left as is so that they can be resumed. The
+ * workspaces the job got otherwise are never touched.
+ *
+ * @author Iheb Khemissi
+ */
+public final class WorkspacePool {
+
+	private static final Logger LOGGER = Logger.getLogger(WorkspacePool.class.getName());
+
+	static final String DIR_NAME = "jobstreefactory-pool"; //$NON-NLS-1$
+
+	/** Prefix of the clones not complete yet, which are never leased. */
+	private static final String PARTIAL_PREFIX = "partial-"; //$NON-NLS-1$
+
+	/** Partial clones older than that many milliseconds were left by a restart. */
+	private static final long PARTIAL_MAX_AGE = TimeUnit.DAYS.toMillis(1);
+
+	private static final String CLONE_PREFIX = "ws-"; //$NON-NLS-1$
+
+	/** Marks a workspace leased from the pool, in its Git directory. */
+	private static final String LEASED_MARKER = ".git/jobstreefactory-leased"; //$NON-NLS-1$
+
+	/** Pooled workspaces are cloned and refreshed one at a time. */
+	private static final ExecutorService POOL = Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+
+	/** Minutes between two refreshes of the pooled workspaces. */
+	static final long REFRESH_PERIOD = Long.getLong(WorkspacePool.class.getName() + ".refreshPeriod", 60); //$NON-NLS-1$
+
+	private WorkspacePool() {
+	}
+
+	/**
+	 * Moves a pooled workspace in place of the missing workspace of a branch
+	 * build.
+	 *
+	 * @return <code>false</code> if the build already has a workspace, or
+	 *         there is no pooled one.
+	 */
+	static boolean lease(AbstractBuild<?, ?> build, TaskListener listener) throws IOException, InterruptedException {
+		FilePath moduleRoot = build.getModuleRoot();
+		FilePath dir = getPoolDir(build.getBuiltOn(), build.getParent().getFullName());
+		if (moduleRoot == null || dir == null) {
+			return false;
+		}
+		// leases go through the master, one at a time
+		synchronized (WorkspacePool.class) {
+			if (moduleRoot.exists() && !moduleRoot.list().isEmpty()) {
+				return false;
+			}
+			List<FilePath> clones = getClones(dir);
+			if (clones.isEmpty()) {
+				listener.getLogger().println("No pooled workspace available, checking out from scratch");
+				return false;
+			}
+			FilePath clone = clones.get(0);
+			NodeAffinity.recordPooledWorkspaces(build.getParent().getFullName(), build.getBuiltOn(), clones.size() - 1);
+			if (moduleRoot.exists()) {
+				moduleRoot.delete();
+			}
+			moduleRoot.getParent().mkdirs();
+			clone.renameTo(moduleRoot);
+			moduleRoot.child(LEASED_MARKER).touch(System.currentTimeMillis());
+		}
+		listener.getLogger().println("Leased a pooled workspace, only the latest changes are checked out");
+		return true;
+	}
+
+	/**
+	 * Gives the workspace of a successful branch build back to the pool if it
+	 * was leased from it, and resets it there to the checked out revision,
+	 * without any untracked file. Other workspaces are left alone.
+	 *
+	 * @return <code>false</code> if the workspace was not leased, or the pool
+	 *         is full.
+	 */
+	static boolean giveBack(AbstractBuild<?, ?> build, int size, Launcher launcher, TaskListener listener) throws IOException,
+			InterruptedException {
+		FilePath moduleRoot = build.getModuleRoot();
+		FilePath dir = getPoolDir(build.getBuiltOn(), build.getParent().getFullName());
+		if (moduleRoot == null || dir == null || !moduleRoot.child(LEASED_MARKER).exists()) {
+			return false;
+		}
+		FilePath clone;
+		synchronized (WorkspacePool.class) {
+			if (getClones(dir).size() >= size) {
+				// kept as the workspace of the job, which it now is
+				moduleRoot.child(LEASED_MARKER).delete();
+				return false;
+			}
+			clone = dir.child(PARTIAL_PREFIX + newId());
+			dir.mkdirs();
+			moduleRoot.renameTo(clone);
+		}
+		clone.child(LEASED_MARKER).delete();
+		if (git(launcher, clone, listener, null, "reset", "--hard", "-q") != 0 //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				|| git(launcher, clone, listener, null, "clean", "-fdxq") != 0) { //$NON-NLS-1$ //$NON-NLS-2$
+			listener.getLogger().println("Could not reset the leased workspace to a clean state, dropping it");
+			clone.deleteRecursive();
+			return false;
+		}
+		clone.renameTo(dir.child(CLONE_PREFIX + clone.getName().substring(PARTIAL_PREFIX.length())));
+		return true;
+	}
+
+	/**
+	 * Gets the pooled workspaces of the given job on the given node.
+	 *
+	 * @return <code>null</code> if the node is offline.
+	 */
+	static FilePath getPoolDir(Node node, String jobFullName) {
+		FilePath root = node == null ? null : node.getRootPath();
+		if (root == null) {
+			return null;
+		}
+		return root.child(DIR_NAME).child(jobFullName.replaceAll("[^A-Za-z0-9._-]", "_")); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * Gets the complete clones of a pool, the oldest first.
+	 */
+	private static List<FilePath> getClones(FilePath dir) throws IOException, InterruptedException {
+		if (!dir.exists()) {
+			return Collections.emptyList();
+		}
+		List<FilePath> clones = new ArrayList<FilePath>();
+		for (FilePath child : dir.listDirectories()) {
+			if (child.getName().startsWith(CLONE_PREFIX)) {
+				clones.add(child);
+			}
+		}
+		Collections.sort(clones, new Comparator<FilePath>() {
+			public int compare(FilePath o1, FilePath o2) {
+				return o1.getName().compareTo(o2.getName());
+			}
+		});
+		return clones;
+	}
+
+	/**
+	 * Clones the workspace of a completed build until the pool of its job on
+	 * its node is full.
+	 */
+	static void fill(MavenModuleSetBuild build, int size, TaskListener listener) throws IOException, InterruptedException {
+		Node node = build.getBuiltOn();
+		FilePath moduleRoot = build.getModuleRoot();
+		FilePath dir = getPoolDir(node, build.getProject().getFullName());
+		if (dir == null || moduleRoot == null || !moduleRoot.child(".git").exists()) { //$NON-NLS-1$
+			return;
+		}
+		Launcher launcher = node.createLauncher(listener);
+		ByteArrayOutputStream url = new ByteArrayOutputStream();
+		if (git(launcher, moduleRoot, listener, url, "config", "--get", "remote.origin.url") != 0) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			// without remote a clone could not be refreshed
+			return;
+		}
+		dir.mkdirs();
+		for (int missing = size - getClones(dir).size(); missing > 0; missing--) {
+			String id = newId();
+			FilePath partial = dir.child(PARTIAL_PREFIX + id);
+			if (git(launcher, dir, listener, null, "clone", "-q", moduleRoot.getRemote(), partial.getName()) != 0 //$NON-NLS-1$ //$NON-NLS-2$
+					|| git(launcher, partial, listener, null, "remote", "set-url", "origin", url.toString().trim()) != 0) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				partial.deleteRecursive();
+				return;
+			}
+			partial.renameTo(dir.child(CLONE_PREFIX + id));
+		}
+		NodeAffinity.recordPooledWorkspaces(build.getProject().getFullName(), node, getClones(dir).size());
+	}
+
+	/**
+	 * Fetches the latest changes into the pooled workspaces of a job on a
+	 * node. Runs on {@link #POOL}, after the clones in progress.
+	 */
+	static void refresh(Node node, String jobFullName, TaskListener listener) throws IOException, InterruptedException {
+		FilePath dir = getPoolDir(node, jobFullName);
+		if (dir == null) {
+			return;
+		}
+		if (!dir.exists()) {
+			return;
+		}
+		Launcher launcher = node.createLauncher(listener);
+		for (FilePath clone : getClones(dir)) {
+			FilePath partial = dir.child(PARTIAL_PREFIX + newId());
+			synchronized (WorkspacePool.class) {
+				// taken out of the pool while fetched, unless leased meanwhile
+				if (!clone.exists()) {
+					continue;
+				}
+				clone.renameTo(partial);
+			}
+			if (git(launcher, partial, listener, null, "fetch", "-q", "--prune", "origin") != 0) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+				listener.getLogger().println("Could not refresh " + clone + ", dropping it");
+				partial.deleteRecursive();
+				continue;
+			}
+			partial.renameTo(clone);
+		}
+		NodeAffinity.recordPooledWorkspaces(jobFullName, node, getClones(dir).size());
+		// partial clones left by a restart, the recent ones may be given back right now
+		for (FilePath child : dir.listDirectories()) {
+			if (child.getName().startsWith(PARTIAL_PREFIX)
+					&& System.currentTimeMillis() - getCreated(child.getName().substring(PARTIAL_PREFIX.length())) > PARTIAL_MAX_AGE) {
+				child.deleteRecursive();
+			}
+		}
+	}
+
+	/**
+	 * Gets a new id for a clone, which also tells when it was created.
+	 */
+	private static String newId() {
+		return Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+	}
+
+	private static long getCreated(String id) {
+		try {
+			return Long.parseLong(id, Character.MAX_RADIX);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static int git(Launcher launcher, FilePath pwd, TaskListener listener, ByteArrayOutputStream out, String... args)
+			throws IOException, InterruptedException {
+		ArgumentListBuilder cmd = new ArgumentListBuilder("git"); //$NON-NLS-1$
+		cmd.add(args);
+		Launcher.ProcStarter starter = launcher.launch().cmds(cmd).pwd(pwd);
+		return (out == null ? starter.stdout(listener) : starter.stdout(out)).join();
+	}
+
+	private static int getPoolSize(MavenModuleSet project) {
+		BranchBuildWrapper wrapper = project.getBuildWrappersList().get(BranchBuildWrapper.class);
+		return wrapper == null ? 0 : wrapper.getWorkspacePoolSize();
+	}
+
+	/**
+	 * Gives the leased workspace of each successful branch build back to the
+	 * pool, and fills the pool from the workspace of each successful build of
+	 * the jobs using one.
+	 */
+	@Extension
+	public static class Recycler extends RunListener<MavenModuleSetBuild> {
+
+		public Recycler() {
+			super(MavenModuleSetBuild.class);
+		}
+
+		@Override
+		public void onCompleted(final MavenModuleSetBuild build, TaskListener listener) {
+			final int size = getPoolSize(build.getProject());
+			if (size <= 0 || build.getResult() != Result.SUCCESS) {
+				return;
+			}
+			if (build.getCause(BranchReason.class) != null && build.getBuiltOn() != null) {
+				// the build still holds its workspace
+				try {
+					if (giveBack(build, size, build.getBuiltOn().createLauncher(listener), listener)) {
+						listener.getLogger().println("Gave the leased workspace back to the pool");
+					}
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Failed to give the workspace of " + build.getFullDisplayName() + " back to the pool", e);
+				} catch (InterruptedException e) {
+					LOGGER.log(Level.WARNING, "Interrupted while giving the workspace of " + build.getFullDisplayName() + " back to the pool", e);
+				}
+			}
+			POOL.submit(new Runnable() {
+				public void run() {
+					try {
+						fill(build, size, new LogTaskListener(LOGGER, Level.FINE));
+					} catch (IOException e) {
+						LOGGER.log(Level.WARNING, "Failed to fill the workspace pool of " + build.getProject().getFullName(), e);
+					} catch (InterruptedException e) {
+						LOGGER.log(Level.WARNING, "Interrupted while filling the workspace pool of " + build.getProject().getFullName(), e);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Periodically fetches the latest changes into the pooled workspaces of
+	 * the online nodes.
+	 */
+	@Extension
+	public static class Refresher extends AsyncPeriodicWork {
+
+		public Refresher() {
+			super("Branch workspace pool refresh"); //$NON-NLS-1$
+		}
+
+		@Override
+		public long getRecurrencePeriod() {
+			return REFRESH_PERIOD * MIN;
+		}
+
+		@Override
+		protected void execute(final TaskListener listener) throws IOException, InterruptedException {
+			Jenkins jenkins = Jenkins.getInstance();
+			final List<Node> nodes = new ArrayList<Node>(jenkins.getNodes());
+			nodes.add(jenkins);
+			for (final MavenModuleSet project : jenkins.getAllItems(MavenModuleSet.class)) {
+				if (getPoolSize(project) <= 0) {
+					continue;
+				}
+				// never along with a clone of the same pool
+				Future<?> refreshed = POOL.submit(new Callable<Void>() {
+					public Void call() throws InterruptedException {
+						for (Node node : nodes) {
+							try {
+								refresh(node, project.getFullName(), listener);
+							} catch (IOException e) {
+								listener.error("Failed to refresh the workspace pool of " + project.getFullName() + " on " + node.getDisplayName());
+							}
+						}
+						return null;
+					}
+				});
+				try {
+					refreshed.get();
+				} catch (ExecutionException e) {
+					listener.error("Failed to refresh the workspace pool of " + project.getFullName() + ": " + e.getCause());
+				}
+			}
+		}
+	}
+}
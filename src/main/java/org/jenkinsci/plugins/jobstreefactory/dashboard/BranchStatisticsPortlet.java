@@ -0,0 +1,60 @@
+package org.jenkinsci.plugins.jobstreefactory.dashboard;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.model.Hudson;
+import hudson.plugins.view.dashboard.DashboardPortlet;
+import org.jenkinsci.plugins.jobstreefactory.BranchStatistics;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.List;
+
+/**
+ * Shows the {@link BranchStatistics} of the jobs of the dashboard, next to the
+ * {@link RecentBranchesPortlet}. They are also available as JSON at
+ * <code>jobstreefactory-statistics</code> under the dashboard.
+ */
+public class BranchStatisticsPortlet extends DashboardPortlet {
+
+    static final int DEFAULT_TOP_REQUESTERS = 5;
+
+    private int topRequesters;
+
+    @DataBoundConstructor
+    public BranchStatisticsPortlet(String name, int topRequesters) {
+        super(name);
+        this.topRequesters = topRequesters;
+    }
+
+    public int getTopRequesters() {
+        return topRequesters > 0 ? topRequesters : DEFAULT_TOP_REQUESTERS;
+    }
+
+    /**
+     * Merges the statistics of the jobs of the dashboard.
+     */
+    public BranchStatistics getStatistics() {
+        return BranchStatistics.of(getDashboard().getJobs());
+    }
+
+    public List<BranchStatistics.Requester> getRequesters(BranchStatistics statistics) {
+        return statistics.getTopRequesters(getTopRequesters());
+    }
+
+    public static class DescriptorImpl extends Descriptor<DashboardPortlet> {
+
+        @Extension
+        public static DescriptorImpl newInstance() {
+            if (Hudson.getInstance().getPlugin("dashboard-view") != null) {
+                return new DescriptorImpl();
+            } else {
+                return null;
+            }
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Branch Statistics";
+        }
+    }
+}
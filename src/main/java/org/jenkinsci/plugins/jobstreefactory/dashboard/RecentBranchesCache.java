@@ -0,0 +1,253 @@
+package org.jenkinsci.plugins.jobstreefactory.dashboard;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import org.jenkinsci.plugins.jobstreefactory.BranchBadgeAction;
+import org.jenkinsci.plugins.jobstreefactory.BranchBuildIndex;
+import org.jenkinsci.plugins.jobstreefactory.BranchReason;
+import org.jenkinsci.plugins.jobstreefactory.RecentBranchBuilds;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the recent branch builds computed for a {@link RecentBranchesPortlet}.
+ *
+ * <p>
+ * The cached list is dropped as soon as a branch build of one of the dashboard
+ * jobs starts, completes or is deleted. A time to live guards against missed
+ * events, like jobs being added to the dashboard.
+ */
+final class RecentBranchesCache {
+
+    /** How long a computed list may be served, in milliseconds. */
+    static final long TTL = Long.getLong(RecentBranchesCache.class.getName() + ".ttl", TimeUnit.MINUTES.toMillis(5));
+
+    /** All the live caches, so that build events can reach them. */
+    private static final Set<RecentBranchesCache> CACHES = Collections.newSetFromMap(new WeakHashMap<RecentBranchesCache, Boolean>());
+
+    /** Number of iterations kept for the next pages, the least recently used ones being dropped. */
+    static final int MAX_CONTINUATIONS = 16;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Bumped by every invalidation, so that a list computed meanwhile is not trusted. */
+    private final AtomicLong generation = new AtomicLong();
+
+    /** Only one request computes the list, the others wait for it. */
+    private final Object computeLock = new Object();
+
+    private volatile Snapshot snapshot;
+
+    /** Full names of the jobs the cached list is computed from. */
+    private volatile Set<String> jobNames = Collections.emptySet();
+
+    /** Largest list size asked for so far. */
+    private volatile int largestMax;
+
+    /** Iterations left where a page stopped, by the cursor of the next page, guarded by itself. */
+    private final Map<String, Continuation> continuations = new LinkedHashMap<String, Continuation>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Continuation> eldest) {
+            return size() > MAX_CONTINUATIONS;
+        }
+    };
+
+    RecentBranchesCache() {
+        synchronized (CACHES) {
+            CACHES.add(this);
+        }
+    }
+
+    /**
+     * Gets the <code>max</code> most recent branch builds of the jobs
+     * returned by the given source, which is only called on a cache miss.
+     */
+    @SuppressWarnings("rawtypes")
+    List<RecentBranchBuilds.Entry> get(Callable<? extends Collection<? extends Job>> source, int max) throws Exception {
+        List<RecentBranchBuilds.Entry> entries = lookup(max);
+        if (entries != null) {
+            hits.incrementAndGet();
+            return entries;
+        }
+        synchronized (computeLock) {
+            entries = lookup(max);
+            if (entries != null) {
+                hits.incrementAndGet();
+                return entries;
+            }
+            misses.incrementAndGet();
+            Collection<? extends Job> jobs = source.call();
+            Set<String> names = new HashSet<String>();
+            for (Job<?, ?> job : jobs) {
+                names.add(job.getFullName());
+            }
+            // known before the generation is read, so that events arriving meanwhile are not missed
+            jobNames = names;
+            long gen = generation.get();
+            // the portlet asks for lists of different sizes, keep the largest one
+            int size = Math.max(max, largestMax);
+            largestMax = size;
+            Snapshot computed = new Snapshot(gen, size, Collections.unmodifiableList(RecentBranchBuilds.newest(jobs, size)));
+            snapshot = computed;
+            return computed.entries.size() > max ? computed.entries.subList(0, max) : computed.entries;
+        }
+    }
+
+    private List<RecentBranchBuilds.Entry> lookup(int max) {
+        Snapshot s = snapshot;
+        if (s == null || s.generation != generation.get() || System.currentTimeMillis() - s.timestamp > TTL) {
+            return null;
+        }
+        if (max <= s.max) {
+            return s.entries.size() > max ? s.entries.subList(0, max) : s.entries;
+        }
+        // a shorter list than asked for means there is nothing more to find
+        return s.entries.size() < s.max ? s.entries : null;
+    }
+
+    /**
+     * Gets the current generation, to give to
+     * {@link #putContinuation(String, Iterator, long)} for an iteration
+     * started now.
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Keeps an iteration for the page starting after the given cursor.
+     */
+    void putContinuation(String cursor, Iterator<RecentBranchBuilds.Entry> iterator, long generation) {
+        synchronized (continuations) {
+            continuations.put(cursor, new Continuation(generation, iterator));
+        }
+    }
+
+    /**
+     * Takes the iteration kept for the page starting after the given cursor,
+     * so that only one request goes on with it.
+     *
+     * @return <code>null</code> if there is none, or the branch builds changed since.
+     */
+    Iterator<RecentBranchBuilds.Entry> takeContinuation(String cursor) {
+        Continuation continuation;
+        synchronized (continuations) {
+            continuation = continuations.remove(cursor);
+        }
+        if (continuation == null || continuation.generation != generation.get()
+                || System.currentTimeMillis() - continuation.timestamp > TTL) {
+            return null;
+        }
+        return continuation.iterator;
+    }
+
+    /**
+     * Drops the cached list if it covers the given job.
+     */
+    void invalidate(Job<?, ?> job) {
+        if (jobNames.contains(job.getFullName())) {
+            generation.incrementAndGet();
+            snapshot = null;
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    private static void invalidateAll(Job<?, ?> job) {
+        List<RecentBranchesCache> caches;
+        synchronized (CACHES) {
+            caches = new ArrayList<RecentBranchesCache>(CACHES);
+        }
+        for (RecentBranchesCache cache : caches) {
+            cache.invalidate(job);
+        }
+    }
+
+    private static final class Continuation {
+        final long generation;
+        final long timestamp = System.currentTimeMillis();
+        final Iterator<RecentBranchBuilds.Entry> iterator;
+
+        Continuation(long generation, Iterator<RecentBranchBuilds.Entry> iterator) {
+            this.generation = generation;
+            this.iterator = iterator;
+        }
+    }
+
+    private static final class Snapshot {
+        final long generation;
+        final long timestamp = System.currentTimeMillis();
+        final int max;
+        final List<RecentBranchBuilds.Entry> entries;
+
+        Snapshot(long generation, int max, List<RecentBranchBuilds.Entry> entries) {
+            this.generation = generation;
+            this.max = max;
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * Forwards the branch build events to the caches.
+     */
+    @Extension
+    @SuppressWarnings("rawtypes")
+    public static final class Invalidator extends RunListener<Run> {
+
+        @Override
+        public void onStarted(Run run, TaskListener listener) {
+            if (run.getCause(BranchReason.class) != null) {
+                invalidateAll(run.getParent());
+            }
+        }
+
+        @Override
+        public void onCompleted(Run run, TaskListener listener) {
+            if (run.getAction(BranchBadgeAction.class) != null) {
+                invalidateAll(run.getParent());
+            }
+        }
+
+        @Override
+        public void onDeleted(Run run) {
+            if (run.getAction(BranchBadgeAction.class) != null) {
+                invalidateAll(run.getParent());
+            }
+        }
+    }
+
+    /**
+     * Drops the cached lists covering a job whose index was filled from its
+     * build records.
+     */
+    @Extension
+    public static final class IndexInvalidator extends BranchBuildIndex.Listener {
+
+        @Override
+        public void onChanged(Job<?, ?> job) {
+            invalidateAll(job);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package org.jenkinsci.plugins.jobstreefactory.dashboard;
+
+import hudson.Extension;
+import hudson.FeedAdapter;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.User;
+import hudson.model.listeners.SaveableListener;
+import hudson.tasks.Mailer;
+import org.jenkinsci.plugins.jobstreefactory.BranchBuildRecord;
+import org.jenkinsci.plugins.jobstreefactory.RecentBranchBuilds;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Precomputed Atom feeds of a {@link RecentBranchesPortlet}.
+ *
+ * <p>
+ * The XML of each entry is rendered once per build and reused by the following
+ * feeds, so a new branch build only costs the rendering of its own entry. The
+ * feeds carry an <code>ETag</code> and a <code>Last-Modified</code> header so
+ * that feed readers polling an unchanged feed get a <code>304</code>.
+ */
+final class RecentBranchesFeed {
+
+    /**
+     * Same as {@link hudson.util.RunList#newBuilds()}: at least that many
+     * entries, but otherwise none older than {@link #MAX_AGE_DAYS} days.
+     */
+    private static final int MIN_ENTRIES = 10;
+
+    private static final int MAX_AGE_DAYS = 7;
+
+    /** Number of user full names kept, the least recently used ones being dropped. */
+    static final int MAX_AUTHOR_NAMES = 256;
+
+    /** Full names of the users who requested branches, by user id, guarded by itself. */
+    private static final Map<String, String> AUTHOR_NAMES = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_AUTHOR_NAMES;
+        }
+    };
+
+    /** Bumped whenever a user changes, so that the entries naming them are rendered again. */
+    private static final AtomicLong AUTHORS_GENERATION = new AtomicLong();
+
+    /** Rendered entries by build, guarded by <code>this</code>. */
+    private Map<String, String> fragments = new HashMap<String, String>();
+
+    /** Value of {@link #AUTHORS_GENERATION} the entries were rendered with, guarded by <code>this</code>. */
+    private long authorsGeneration = AUTHORS_GENERATION.get();
+
+    /** Last rendered feed by name, guarded by <code>this</code>. */
+    private final Map<String, Body> bodies = new HashMap<String, Body>();
+
+    /**
+     * Gets the feed of the given branch builds.
+     *
+     * @param name
+     *            identifies the feed within the portlet.
+     * @param rootUrl
+     *            the absolute URL of Jenkins, ending with a slash.
+     * @param failedOnly
+     *            whether successful builds are left out.
+     */
+    synchronized Body get(String name, String title, String rootUrl, String url, List<RecentBranchBuilds.Entry> entries,
+            boolean failedOnly, FeedAdapter<Run> adapter) {
+        List<RecentBranchBuilds.Entry> selected = select(entries, failedOnly);
+
+        long generation = AUTHORS_GENERATION.get();
+        if (generation != authorsGeneration) {
+            // the entries may name a user who changed
+            authorsGeneration = generation;
+            fragments.clear();
+        }
+
+        StringBuilder tag = new StringBuilder(title).append('\n').append(rootUrl).append(url).append('\n').append(generation);
+        for (RecentBranchBuilds.Entry entry : selected) {
+            tag.append('\n').append(key(entry));
+        }
+        String etag = '"' + Integer.toHexString(tag.toString().hashCode()) + '-' + selected.size() + '"';
+        Body previous = bodies.get(name);
+        if (previous != null && previous.etag.equals(etag)) {
+            return previous;
+        }
+
+        long newest = selected.isEmpty() ? 0 : selected.get(0).getRecord().getTimestamp();
+        // deletions do not bring newer builds, the feed still has to look modified
+        long lastModified = previous == null ? newest : Math.max(newest, previous.lastModified + 1000);
+        if (lastModified == 0) {
+            lastModified = System.currentTimeMillis();
+        }
+
+        StringBuilder xml = new StringBuilder(1024 + 512 * selected.size());
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        xml.append("<feed xmlns=\"http://www.w3.org/2005/Atom\">");
+        xml.append("<title>").append(Util.xmlEscape(title)).append("</title>");
+        xml.append("<link rel=\"alternate\" type=\"text/html\" href=\"").append(Util.xmlEscape(rootUrl + url)).append("\"/>");
+        xml.append("<updated>").append(Util.XS_DATETIME_FORMATTER.format(new Date(lastModified))).append("</updated>");
+        xml.append("<author><name>Jenkins Server</name></author>");
+        xml.append("<id>urn:uuid:903deee0-7bfa-11db-9fe1-0800200c9a66</id>");
+
+        Map<String, String> rendered = new HashMap<String, String>();
+        for (RecentBranchBuilds.Entry entry : selected) {
+            String key = key(entry);
+            String fragment = fragments.get(key);
+            if (fragment == null) {
+                Run run = entry.getRun();
+                if (run == null) {
+                    continue;
+                }
+                fragment = render(run, rootUrl, adapter);
+            }
+            rendered.put(key, fragment);
+            xml.append(fragment);
+        }
+        xml.append("</feed>");
+
+        // only keep the entries still shown by one of the feeds
+        for (Body body : bodies.values()) {
+            if (body != previous) {
+                for (String key : body.keys) {
+                    String fragment = fragments.get(key);
+                    if (fragment != null) {
+                        rendered.put(key, fragment);
+                    }
+                }
+            }
+        }
+        fragments = rendered;
+
+        List<String> keys = new ArrayList<String>(selected.size());
+        for (RecentBranchBuilds.Entry entry : selected) {
+            keys.add(key(entry));
+        }
+        Body body = new Body(etag, lastModified, toBytes(xml.toString()), keys);
+        bodies.put(name, body);
+        return body;
+    }
+
+    /**
+     * Gets the full name of the given user, which is looked up once.
+     *
+     * @return the administrator address if there is no such user.
+     */
+    static String getAuthorName(String userName) {
+        if (userName == null) {
+            return Mailer.descriptor().getAdminAddress();
+        }
+        String name;
+        long generation;
+        synchronized (AUTHOR_NAMES) {
+            name = AUTHOR_NAMES.get(userName);
+            generation = AUTHORS_GENERATION.get();
+        }
+        if (name == null) {
+            name = User.get(userName).getFullName();
+            synchronized (AUTHOR_NAMES) {
+                // a name looked up while the user changed may be stale
+                if (generation == AUTHORS_GENERATION.get()) {
+                    AUTHOR_NAMES.put(userName, name);
+                }
+            }
+        }
+        return name;
+    }
+
+    private static List<RecentBranchBuilds.Entry> select(List<RecentBranchBuilds.Entry> entries, boolean failedOnly) {
+        Calendar cal = new GregorianCalendar();
+        cal.add(Calendar.DAY_OF_YEAR, -MAX_AGE_DAYS);
+        long oldest = cal.getTimeInMillis();
+
+        List<RecentBranchBuilds.Entry> selected = new ArrayList<RecentBranchBuilds.Entry>();
+        for (RecentBranchBuilds.Entry entry : entries) {
+            BranchBuildRecord record = entry.getRecord();
+            if (failedOnly && record.isSuccess()) {
+                continue;
+            }
+            if (selected.size() >= MIN_ENTRIES && record.getTimestamp() < oldest) {
+                break;
+            }
+            selected.add(entry);
+        }
+        return selected;
+    }
+
+    private static String key(RecentBranchBuilds.Entry entry) {
+        return entry.getJob().getFullName() + '#' + entry.getRecord().getNumber();
+    }
+
+    private static String render(Run run, String rootUrl, FeedAdapter<Run> adapter) {
+        String timestamp = Util.XS_DATETIME_FORMATTER.format(adapter.getEntryTimestamp(run).getTime());
+        StringBuilder xml = new StringBuilder(512);
+        xml.append("<entry>");
+        xml.append("<title>").append(Util.xmlEscape(adapter.getEntryTitle(run))).append("</title>");
+        xml.append("<link rel=\"alternate\" type=\"text/html\" href=\"")
+                .append(Util.xmlEscape(rootUrl + adapter.getEntryUrl(run))).append("\"/>");
+        xml.append("<id>").append(Util.xmlEscape(adapter.getEntryID(run))).append("</id>");
+        xml.append("<published>").append(timestamp).append("</published>");
+        xml.append("<updated>").append(timestamp).append("</updated>");
+        String description = adapter.getEntryDescription(run);
+        if (description != null) {
+            xml.append("<content>").append(Util.xmlEscape(description)).append("</content>");
+        }
+        xml.append("<author><name>").append(Util.xmlEscape(adapter.getEntryAuthor(run))).append("</name></author>");
+        xml.append("</entry>");
+        return xml.toString();
+    }
+
+    private static byte[] toBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * A rendered feed.
+     */
+    static final class Body {
+        final String etag;
+        final long lastModified;
+        final byte[] content;
+        final List<String> keys;
+
+        Body(String etag, long lastModified, byte[] content, List<String> keys) {
+            this.etag = etag;
+            // HTTP dates have a one second precision
+            this.lastModified = lastModified / 1000 * 1000;
+            this.content = content;
+            this.keys = keys;
+        }
+
+        /**
+         * Sends the feed, or a <code>304</code> if the client already has it.
+         */
+        void serve(StaplerRequest req, StaplerResponse rsp) throws IOException {
+            rsp.setHeader("ETag", etag);
+            rsp.setDateHeader("Last-Modified", lastModified);
+            if (isNotModified(req)) {
+                rsp.setStatus(StaplerResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            rsp.setContentType("application/atom+xml; charset=UTF-8");
+            rsp.setContentLength(content.length);
+            rsp.getOutputStream().write(content);
+        }
+
+        private boolean isNotModified(StaplerRequest req) {
+            String ifNoneMatch = req.getHeader("If-None-Match");
+            if (ifNoneMatch != null) {
+                // the entity tag is authoritative when the client sent one
+                for (String candidate : ifNoneMatch.split(",")) {
+                    candidate = candidate.trim();
+                    if (candidate.equals("*") || candidate.equals(etag)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            try {
+                long ifModifiedSince = req.getDateHeader("If-Modified-Since");
+                return ifModifiedSince >= 0 && lastModified <= ifModifiedSince;
+            } catch (IllegalArgumentException e) {
+                // malformed date
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Forgets the full name of a user who changed.
+     */
+    @Extension
+    public static final class AuthorInvalidator extends SaveableListener {
+
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof User) {
+                synchronized (AUTHOR_NAMES) {
+                    AUTHORS_GENERATION.incrementAndGet();
+                    AUTHOR_NAMES.remove(((User) o).getId());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.jenkinsci.plugins.jobstreefactory.dashboard;
+
+import org.jenkinsci.plugins.jobstreefactory.RecentBranchBuilds;
+
+import java.util.List;
+
+/**
+ * A page of the branch builds listed by a {@link RecentBranchesPortlet},
+ * rendered from the branch index without loading the builds.
+ */
+public final class RecentBranchesPage {
+
+    private final List<RecentBranchBuilds.Entry> entries;
+    private final String nextCursor;
+
+    RecentBranchesPage(List<RecentBranchBuilds.Entry> entries, String nextCursor) {
+        this.entries = entries;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<RecentBranchBuilds.Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Gets where the next page starts.
+     *
+     * @return <code>null</code> if this is the last page.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -4,9 +4,11 @@ import hudson.Extension;
 import hudson.FeedAdapter;
 import hudson.model.*;
 import hudson.plugins.view.dashboard.DashboardPortlet;
-import hudson.tasks.Mailer;
 import hudson.util.RunList;
+import jenkins.model.Jenkins;
 import org.jenkinsci.plugins.jobstreefactory.BranchBadgeAction;
+import org.jenkinsci.plugins.jobstreefactory.BranchMetrics;
+import org.jenkinsci.plugins.jobstreefactory.RecentBranchBuilds;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
@@ -14,32 +16,202 @@ import org.kohsuke.stapler.StaplerResponse;
 import javax.servlet.ServletException;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 public class RecentBranchesPortlet extends DashboardPortlet {
+
+    private transient RecentBranchesCache cache;
+
+    private transient RecentBranchesFeed feed;
+
+    /** Number of rows shown at first and loaded by each "more". */
+    static final int DEFAULT_PAGE_SIZE = 20;
+
+    private int pageSize;
+
     @DataBoundConstructor
-    public RecentBranchesPortlet(String name) {
+    public RecentBranchesPortlet(String name, int pageSize) {
         super(name);
+        this.pageSize = pageSize;
     }
 
-    public Collection<Run> getRecentReleases(int max) {
-        LinkedList<Run> recentReleases = new LinkedList<Run>();
+    public int getPageSize() {
+        return pageSize > 0 ? pageSize : DEFAULT_PAGE_SIZE;
+    }
 
-        for (Job job : getDashboard().getJobs()) {
-            for (Run run = job.getLastCompletedBuild(); run != null && (recentReleases.size() < max || run.getTimestamp().compareTo(recentReleases.getLast().getTimestamp()) > 0); run = run.getPreviousBuild()) {
+    /**
+     * Gets the first page of branch builds, taken from the cached list.
+     */
+    public RecentBranchesPage getFirstPage() {
+        long start = BranchMetrics.PORTLET_RENDER.start();
+        try {
+            int size = getPageSize();
+            // one more tells whether there is a next page
+            List<RecentBranchBuilds.Entry> entries = getRecentEntries(size + 1);
+            if (readable(entries).size() < entries.size()) {
+                // some are hidden from the current user, the cached list may not fill the page
+                return nextPage(null);
+            }
+            if (entries.size() <= size) {
+                return new RecentBranchesPage(entries, null);
+            }
+            List<RecentBranchBuilds.Entry> page = entries.subList(0, size);
+            return new RecentBranchesPage(page, page.get(size - 1).getPosition().toString());
+        } finally {
+            BranchMetrics.PORTLET_RENDER.stop(start);
+        }
+    }
+
+    /**
+     * Gets the page of branch builds following the given cursor, going on with
+     * the iteration of the previous page when it is still valid.
+     */
+    RecentBranchesPage getPage(String cursor) {
+        long start = BranchMetrics.PORTLET_RENDER.start();
+        try {
+            return nextPage(cursor);
+        } finally {
+            BranchMetrics.PORTLET_RENDER.stop(start);
+        }
+    }
 
-                BranchBadgeAction mbb = run.getAction(BranchBadgeAction.class);
+    /**
+     * Gets the page of the branch builds the current user may see following
+     * the given cursor, <code>null</code> for the first page.
+     */
+    private RecentBranchesPage nextPage(String cursor) {
+        RecentBranchesCache cache = getCache();
+        long generation = cache.getGeneration();
+        Iterator<RecentBranchBuilds.Entry> it = cursor == null ? null : cache.takeContinuation(getContinuationKey(cursor));
+        if (it == null) {
+            it = RecentBranchBuilds.iterate(getDashboard().getJobs(), cursor == null ? null : RecentBranchBuilds.Position.fromString(cursor));
+        }
+        int size = getPageSize();
+        List<RecentBranchBuilds.Entry> entries = new ArrayList<RecentBranchBuilds.Entry>(size);
+        while (entries.size() < size && it.hasNext()) {
+            RecentBranchBuilds.Entry entry = it.next();
+            if (isReadable(entry)) {
+                entries.add(entry);
+            }
+        }
+        if (entries.isEmpty() || !it.hasNext()) {
+            return new RecentBranchesPage(entries, null);
+        }
+        String next = entries.get(entries.size() - 1).getPosition().toString();
+        cache.putContinuation(getContinuationKey(next), it, generation);
+        return new RecentBranchesPage(entries, next);
+    }
+
+    /**
+     * Gets the key of the iteration kept for a cursor: the jobs of the
+     * dashboard depend on who is looking at it, so each user goes on with
+     * their own iterations.
+     */
+    private static String getContinuationKey(String cursor) {
+        return Jenkins.getAuthentication().getName() + '\n' + cursor;
+    }
+
+    /**
+     * Whether the current user may see the given entry, the cached lists
+     * being shared by all the users.
+     */
+    private static boolean isReadable(RecentBranchBuilds.Entry entry) {
+        return entry.getJob().hasPermission(Item.READ);
+    }
+
+    private static List<RecentBranchBuilds.Entry> readable(List<RecentBranchBuilds.Entry> entries) {
+        List<RecentBranchBuilds.Entry> readable = new ArrayList<RecentBranchBuilds.Entry>(entries.size());
+        for (RecentBranchBuilds.Entry entry : entries) {
+            if (isReadable(entry)) {
+                readable.add(entry);
+            }
+        }
+        return readable;
+    }
+
+    /**
+     * Renders the rows of the page following the <code>cursor</code>
+     * parameter, giving the cursor of the next page in the
+     * <code>X-Next-Cursor</code> header.
+     */
+    public void doMore(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+        String cursor = req.getParameter("cursor");
+        RecentBranchesPage page;
+        try {
+            page = getPage(cursor == null ? "" : cursor);
+        } catch (IllegalArgumentException e) {
+            rsp.sendError(StaplerResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (page.getNextCursor() != null) {
+            rsp.setHeader("X-Next-Cursor", page.getNextCursor());
+        }
+        req.getView(page, "rows.jelly").forward(req, rsp);
+    }
 
-                if (mbb != null) {
-                    if (!insertRun(run, recentReleases, max)) {
-                        break;
-                    }
+    public Collection<Run> getRecentReleases(int max) {
+        long start = BranchMetrics.PORTLET_RENDER.start();
+        try {
+            List<RecentBranchBuilds.Entry> recentReleases = readable(getRecentEntries(max));
+
+            // only the selected builds get loaded
+            List<Run> runs = new ArrayList<Run>(recentReleases.size());
+            for (RecentBranchBuilds.Entry release : recentReleases) {
+                Run run = release.getRun();
+                if (run != null) {
+                    runs.add(run);
                 }
             }
+            return runs;
+        } finally {
+            BranchMetrics.PORTLET_RENDER.stop(start);
         }
+    }
+
 
-        return recentReleases;
+    private List<RecentBranchBuilds.Entry> getRecentEntries(int max) {
+        try {
+            return getCache().get(new Callable<List<Job>>() {
+                public List<Job> call() {
+                    return getDashboard().getJobs();
+                }
+            }, max);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
     }
 
+    private synchronized RecentBranchesCache getCache() {
+        if (cache == null) {
+            cache = new RecentBranchesCache();
+        }
+        return cache;
+    }
+
+    /**
+     * Number of times the recent releases were served from the cache.
+     */
+    public long getCacheHits() {
+        return getCache().getHits();
+    }
+
+    /**
+     * Number of times the recent releases had to be computed.
+     */
+    public long getCacheMisses() {
+        return getCache().getMisses();
+    }
+
+    /**
+     * Reports the cache counters as JSON, to the administrators only.
+     */
+    public void doCacheStats(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print("{\"hits\":" + getCacheHits() + ",\"misses\":" + getCacheMisses() + "}");
+    }
 
     /**
      * Get the release version from this run
@@ -53,45 +225,37 @@ public class RecentBranchesPortlet extends DashboardPortlet {
         return rbb.getVersionNumber();
     }
 
-    private boolean insertRun(Run run, LinkedList<Run> recentReleases, int max) {
-        ListIterator<Run> iter = recentReleases.listIterator();
-        Run recentRun = null;
-
-        do {
-            if (iter.hasNext()) {
-                recentRun = iter.next();
-            } else {
-                recentRun = null;
-            }
-
-            // if we're at the end of the recent releases list and the list has room for another
-            // or this run is more recent than current position, then insert
-            if ((recentRun == null && recentReleases.size() < max) || (recentRun != null && run.getTimestamp().compareTo(recentRun.getTimestamp()) > 0)) {
-                // back up one and add to list
-                if (!recentReleases.isEmpty() && recentRun != null) {
-                    iter.previous();
-                }
-
-                iter.add(run);
-
-                // remove last on list if size == max - might be removing what we just added
-                if (recentReleases.size() > max) {
-                    recentReleases.removeLast();
-                }
-
-                return true;
-            }
-        } while (recentRun != null);
-
-        return false;
+    private synchronized RecentBranchesFeed getFeed() {
+        if (feed == null) {
+            feed = new RecentBranchesFeed();
+        }
+        return feed;
     }
 
     public void doRssAll(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
-        rss(req, rsp, " all builds", RunList.fromRuns(getRecentReleases(20)));
+        if ("rss".equals(req.getParameter("flavor"))) {
+            rss(req, rsp, " all builds", RunList.fromRuns(getRecentReleases(20)));
+        } else {
+            atom(req, rsp, "all", " all builds", false);
+        }
     }
 
     public void doRssFailed(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
-        rss(req, rsp, " failed builds", RunList.fromRuns(getRecentReleases(20)).failureOnly());
+        if ("rss".equals(req.getParameter("flavor"))) {
+            rss(req, rsp, " failed builds", RunList.fromRuns(getRecentReleases(20)).failureOnly());
+        } else {
+            atom(req, rsp, "failed", " failed builds", true);
+        }
+    }
+
+    /**
+     * Serves the precomputed Atom feed, the default flavor.
+     */
+    private void atom(StaplerRequest req, StaplerResponse rsp, String name, String suffix, boolean failedOnly) throws IOException {
+        String url = getDashboard().getUrl() + getUrl();
+        RecentBranchesFeed.Body body = getFeed().get(name, getDisplayName() + suffix, Hudson.getInstance().getRootUrl(), url,
+                readable(getRecentEntries(20)), failedOnly, new RelativePathFeedAdapter(url));
+        body.serve(req, rsp);
     }
 
     private void rss(StaplerRequest req, StaplerResponse rsp, String suffix, RunList runs) throws IOException, ServletException {
@@ -148,15 +312,10 @@ public class RecentBranchesPortlet extends DashboardPortlet {
         public String getEntryAuthor(Run entry) {
             // release builds are manual so get the UserCause
             // and report rss entry as user who kicked off build
-            List<Cause> causes = entry.getCauses();
-            for (Cause cause : causes) {
-                if (cause instanceof Cause.UserCause) {
-                    return User.get(((Cause.UserCause) cause).getUserName()).getFullName();
-                }
-            }
+            Cause.UserCause cause = (Cause.UserCause) entry.getCause(Cause.UserCause.class);
 
             // in the unexpected case where there is no user cause, return admin
-            return Mailer.descriptor().getAdminAddress();
+            return RecentBranchesFeed.getAuthorName(cause == null ? null : cause.getUserName());
         }
     }
 
@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.model.Job;
+import hudson.model.Result;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BranchBuildIndexTest {
+
+	private File root;
+
+	@Before
+	public void createRoot() throws IOException {
+		root = File.createTempFile("branch-build-index", "");
+		root.delete();
+		root.mkdirs();
+	}
+
+	@After
+	public void deleteRoot() throws IOException {
+		FileUtils.deleteDirectory(root);
+	}
+
+	@Test
+	public void resumesAnInterruptedFill() {
+		BranchBuildIndex index = BranchBuildIndex.open(job());
+		assertTrue(index.isPartial());
+		assertTrue(index.startFilling());
+		index.fill(Arrays.asList(record(1, "1.0")));
+		index.stopFilling(false);
+
+		// loaded again after a restart
+		index = BranchBuildIndex.open(job());
+		assertTrue(index.isPartial());
+		assertEquals("1.0", index.get(1).getVersionNumber());
+		assertTrue(index.startFilling());
+		index.fill(Arrays.asList(record(1, "1.0"), record(2, "1.1")));
+		index.stopFilling(true);
+
+		index = BranchBuildIndex.open(job());
+		assertFalse(index.isPartial());
+		assertFalse(index.startFilling());
+		assertEquals(2, index.getRecords().size());
+	}
+
+	@Test
+	public void letsASingleThreadFill() {
+		BranchBuildIndex index = BranchBuildIndex.open(job());
+		assertTrue(index.startFilling());
+		assertFalse(index.startFilling());
+		index.stopFilling(false);
+		assertTrue(index.startFilling());
+		index.stopFilling(true);
+	}
+
+	@Test
+	public void keepsTheBuildEventsRecordedWhileFilling() {
+		Job<?, ?> job = job();
+		BranchBuildIndex index = BranchBuildIndex.open(job);
+		assertTrue(index.startFilling());
+		index.add(record(2, "1.1"));
+		index.add(record(3, "1.2"));
+		index.remove(1);
+		index.remove(3);
+		// the build records were read before the events
+		index.fill(Arrays.asList(record(1, "1.0"), record(2, "stale"), record(3, "1.2")));
+		index.stopFilling(true);
+
+		index = BranchBuildIndex.open(job());
+		assertNull(index.get(1));
+		assertEquals("1.1", index.get(2).getVersionNumber());
+		assertNull(index.get(3));
+	}
+
+	@Test
+	public void onlyReadsTheIndexOfOtherJobs() throws IOException {
+		File build = new File(root, "builds/1");
+		build.mkdirs();
+		FileUtils.writeStringToFile(new File(build, "build.xml"), "<build><number>1</number><result>SUCCESS</result>"
+				+ "<actions><org.jenkinsci.plugins.jobstreefactory.BranchBadgeAction><versionNumber>1.0</versionNumber>"
+				+ "</org.jenkinsci.plugins.jobstreefactory.BranchBadgeAction></actions></build>", "UTF-8");
+
+		// the build history of a job that is not configured for branch builds is not walked
+		BranchBuildIndex index = BranchBuildIndex.of(job());
+		assertTrue(index.getRecords().isEmpty());
+		index.remove(1);
+		assertFalse(new File(root, BranchBuildIndex.FILE_NAME).exists());
+
+		// but the index it got while it was configured for them is still read
+		FileUtils.writeStringToFile(new File(root, BranchBuildIndex.FILE_NAME), "+\t2\t2000\tSUCCESS\t1.1\t\t\n", "UTF-8");
+		index = BranchBuildIndex.of(job());
+		assertEquals(1, index.getRecords().size());
+		assertEquals("1.1", index.get(2).getVersionNumber());
+	}
+
+	/** A new job object each time, as after a restart. */
+	@SuppressWarnings("rawtypes")
+	private Job<?, ?> job() {
+		String name = root.getName();
+		Job job = mock(Job.class);
+		when(job.getRootDir()).thenReturn(root);
+		when(job.getFullName()).thenReturn(name);
+		when(job.getBuildDir()).thenReturn(new File(root, "builds"));
+		return job;
+	}
+
+	private static BranchBuildRecord record(int number, String version) {
+		return new BranchBuildRecord(number, number * 1000L, 1000, Result.SUCCESS, version, null, null);
+	}
+}
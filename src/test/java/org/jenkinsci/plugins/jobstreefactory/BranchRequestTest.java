@@ -0,0 +1,60 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BranchRequestTest {
+
+	@Test
+	public void acceptsUsualBranchNames() {
+		assertTrue(BranchRequest.isValidBranchName("1.2.x"));
+		assertTrue(BranchRequest.isValidBranchName("release/2013-10"));
+		assertTrue(BranchRequest.isValidBranchName("feature/JENKINS-123_fix+more"));
+	}
+
+	@Test
+	public void rejectsMarkupAndShellCharacters() {
+		assertFalse(BranchRequest.isValidBranchName("<script>alert(1)</script>"));
+		assertFalse(BranchRequest.isValidBranchName("a\"b"));
+		assertFalse(BranchRequest.isValidBranchName("a b"));
+		assertFalse(BranchRequest.isValidBranchName("a;rm"));
+		assertFalse(BranchRequest.isValidBranchName("$(id)"));
+	}
+
+	@Test
+	public void rejectsInvalidGitRefNames() {
+		assertFalse(BranchRequest.isValidBranchName("-b"));
+		assertFalse(BranchRequest.isValidBranchName("/b"));
+		assertFalse(BranchRequest.isValidBranchName("b/"));
+		assertFalse(BranchRequest.isValidBranchName("b."));
+		assertFalse(BranchRequest.isValidBranchName("b.lock"));
+		assertFalse(BranchRequest.isValidBranchName("a..b"));
+		assertFalse(BranchRequest.isValidBranchName("a//b"));
+		assertFalse(BranchRequest.isValidBranchName("a/.b"));
+	}
+}
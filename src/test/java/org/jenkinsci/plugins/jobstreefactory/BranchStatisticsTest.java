@@ -0,0 +1,162 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.maven.MavenModuleSet;
+import hudson.model.Job;
+import hudson.model.Result;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BranchStatisticsTest {
+
+	private static final long HOUR = 3600 * 1000;
+
+	private File root;
+
+	@Before
+	public void createRoot() throws IOException {
+		root = File.createTempFile("branch-statistics", "");
+		root.delete();
+		root.mkdirs();
+	}
+
+	@After
+	public void deleteRoot() throws IOException {
+		FileUtils.deleteDirectory(root);
+	}
+
+	@Test
+	public void summarizesTheIndexedBuilds() {
+		long now = System.currentTimeMillis();
+		Job<?, ?> job = job("a");
+		BranchBuildIndex index = BranchBuildIndex.of(job);
+		for (int i = 1; i <= 100; i++) {
+			// one build every 4 hours, lasting from 1 to 100 minutes
+			index.add(new BranchBuildRecord(i, now - (100 - i) * 4 * HOUR, i * 60000L, i % 10 == 0 ? Result.FAILURE : Result.SUCCESS,
+					"1." + i, "b" + i, "user" + (i % 3)));
+		}
+
+		BranchStatistics statistics = BranchStatistics.of(Collections.singletonList(job));
+		assertEquals(100, statistics.getBuilds());
+		assertEquals(10, statistics.getFailures());
+		assertEquals(0.1, statistics.getFailureRate(), 1e-9);
+		assertAbout(50 * 60000L, statistics.getMedianDuration());
+		assertAbout(95 * 60000L, statistics.getP95Duration());
+		assertEquals("user1", statistics.getTopRequesters(1).get(0).getUserName());
+		assertEquals(34, statistics.getTopRequesters(1).get(0).getBuilds());
+		int total = 0;
+		for (int count : statistics.getWeeklyBuilds()) {
+			total += count;
+		}
+		assertEquals(100, total);
+	}
+
+	@Test
+	public void leavesOutTheBuildsOlderThanTheWindow() {
+		long now = System.currentTimeMillis();
+		Job<?, ?> job = job("b");
+		BranchBuildIndex index = BranchBuildIndex.of(job);
+		index.add(new BranchBuildRecord(1, now - (BranchStatistics.WEEKS + 1) * 7 * 24 * HOUR, 1000, Result.SUCCESS, "1.0", null, null));
+		index.add(new BranchBuildRecord(2, now, 1000, Result.SUCCESS, "1.1", null, null));
+
+		assertEquals(1, BranchStatistics.of(Collections.singletonList(job)).getBuilds());
+	}
+
+	@Test
+	public void countsEachCompletedBuildOnce() {
+		long now = System.currentTimeMillis();
+		Job<?, ?> job = job("c");
+		BranchBuildIndex index = BranchBuildIndex.of(job);
+		BranchBuildRecord first = new BranchBuildRecord(1, now - HOUR, 1000, Result.SUCCESS, "1.0", null, null);
+		// completed before the statistics were ever used: only seeded from the index
+		synchronized (index) {
+			index.add(first);
+			BranchStatistics.completed(job, first);
+		}
+		assertEquals(1, BranchStatistics.of(Collections.singletonList(job)).getBuilds());
+
+		BranchBuildRecord second = new BranchBuildRecord(2, now, 1000, Result.FAILURE, "1.1", null, null);
+		synchronized (index) {
+			index.add(second);
+			BranchStatistics.completed(job, second);
+		}
+		BranchStatistics statistics = BranchStatistics.of(Collections.singletonList(job));
+		assertEquals(2, statistics.getBuilds());
+		assertEquals(1, statistics.getFailures());
+
+		// seeded again from the index after a backfill
+		BranchStatistics.invalidate(job);
+		assertEquals(2, BranchStatistics.of(Collections.singletonList(job)).getBuilds());
+	}
+
+	@Test
+	public void mergesSeveralJobs() {
+		long now = System.currentTimeMillis();
+		Job<?, ?> a = job("d");
+		Job<?, ?> b = job("e");
+		BranchBuildIndex.of(a).add(new BranchBuildRecord(1, now, 60000, Result.SUCCESS, "1.0", null, "alice"));
+		BranchBuildIndex.of(b).add(new BranchBuildRecord(1, now, 60000, Result.FAILURE, "2.0", null, "alice"));
+		BranchBuildIndex.of(b).add(new BranchBuildRecord(2, now, 60000, Result.SUCCESS, "2.1", null, "bob"));
+
+		List<Job<?, ?>> jobs = Arrays.<Job<?, ?>> asList(a, b);
+		BranchStatistics statistics = BranchStatistics.of(jobs);
+		assertEquals(3, statistics.getBuilds());
+		assertEquals(1, statistics.getFailures());
+		assertEquals("alice", statistics.getTopRequesters(5).get(0).getUserName());
+		assertEquals(2, statistics.getTopRequesters(5).get(0).getBuilds());
+		assertEquals(2, statistics.getTopRequesters(5).size());
+	}
+
+	/** The histogram bins are 20% wide, their middle is within 10%. */
+	private static void assertAbout(long expected, long actual) {
+		assertTrue("expected about " + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 10);
+	}
+
+	private Job<?, ?> job(String name) {
+		File dir = new File(root, name);
+		dir.mkdirs();
+		MavenModuleSet job = mock(MavenModuleSet.class, RETURNS_DEEP_STUBS);
+		when(job.getRootDir()).thenReturn(dir);
+		when(job.getFullName()).thenReturn(name);
+		when(job.getBuildDir()).thenReturn(new File(dir, "builds"));
+		when(job.getBuildWrappersList().get(BranchBuildWrapper.class)).thenReturn(mock(BranchBuildWrapper.class));
+		return job;
+	}
+}
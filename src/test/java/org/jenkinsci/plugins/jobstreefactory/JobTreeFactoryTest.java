@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class JobTreeFactoryTest {
+
+	private final JobTreeFactory factory = new JobTreeFactory("app app-it", null, null, null);
+
+	@Test
+	public void pointsTheSubversionLocationToTheBranch() {
+		String xml = "<maven2-moduleset><description>built from trunk</description>"
+				+ "<scm class=\"hudson.scm.SubversionSCM\"><locations><hudson.scm.SubversionSCM_-ModuleLocation>"
+				+ "<remote>https://svn.example.org/app/trunk</remote>"
+				+ "</hudson.scm.SubversionSCM_-ModuleLocation></locations></scm></maven2-moduleset>";
+		assertEquals("<maven2-moduleset><description>built from trunk</description>"
+				+ "<scm class=\"hudson.scm.SubversionSCM\"><locations><hudson.scm.SubversionSCM_-ModuleLocation>"
+				+ "<remote>https://svn.example.org/app/branches/1.x</remote>"
+				+ "</hudson.scm.SubversionSCM_-ModuleLocation></locations></scm></maven2-moduleset>",
+				factory.rewrite(xml, "branches/1.x", names()));
+	}
+
+	@Test
+	public void pointsTheTriggersToTheCopies() {
+		String xml = "<project><publishers><hudson.tasks.BuildTrigger>"
+				+ "<childProjects>app-it, other</childProjects></hudson.tasks.BuildTrigger></publishers></project>";
+		assertEquals("<project><publishers><hudson.tasks.BuildTrigger>"
+				+ "<childProjects>app-it-1.x,other</childProjects></hudson.tasks.BuildTrigger></publishers></project>",
+				factory.rewrite(xml, "branches/1.x", names()));
+	}
+
+	@Test
+	public void dropsTheJobTreeOfTheCopies() {
+		String xml = "<buildWrappers><jobTree><templateJobs>app app-it</templateJobs></jobTree></buildWrappers>";
+		assertEquals("<buildWrappers></buildWrappers>", factory.rewrite(xml, "branches/1.x", names()));
+	}
+
+	@Test
+	public void leavesTheGitBranchesAlone() {
+		String xml = "<scm class=\"hudson.plugins.git.GitSCM\"><branches><hudson.plugins.git.BranchSpec>"
+				+ "<name>master</name></hudson.plugins.git.BranchSpec></branches></scm>";
+		assertEquals(xml, factory.rewrite(xml, "branches/1.x", names()));
+	}
+
+	private static Map<String, String> names() {
+		Map<String, String> names = new HashMap<String, String>();
+		names.put("app", "app-1.x");
+		names.put("app-it", "app-it-1.x");
+		return names;
+	}
+}
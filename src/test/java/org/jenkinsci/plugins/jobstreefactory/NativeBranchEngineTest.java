@@ -0,0 +1,194 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.maven.MavenModule;
+import hudson.maven.MavenModuleSet;
+import hudson.maven.ModuleName;
+import hudson.model.AbstractBuild;
+import hudson.model.StreamBuildListener;
+import hudson.model.TaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the native branch against Git repositories in a temporary directory.
+ */
+public class NativeBranchEngineTest {
+
+	private static final String POM = "<project>\n"
+			+ "  <modelVersion>4.0.0</modelVersion>\n"
+			+ "  <groupId>org.example</groupId>\n"
+			+ "  <artifactId>app</artifactId>\n"
+			+ "  <version>1.0-SNAPSHOT</version>\n"
+			+ "</project>\n";
+
+	private File root;
+	private File workspace;
+	private ByteArrayOutputStream log;
+
+	@Before
+	public void createRoot() throws IOException {
+		root = File.createTempFile("native-branch", "");
+		root.delete();
+		root.mkdirs();
+		workspace = new File(root, "workspace");
+		workspace.mkdirs();
+		log = new ByteArrayOutputStream();
+	}
+
+	@After
+	public void deleteRoot() throws IOException {
+		FileUtils.deleteDirectory(root);
+	}
+
+	@Test
+	public void pushesTheBranchWithItsVersions() throws Exception {
+		File remote = new File(root, "remote.git");
+		git(root, "init", "--bare", "-q", remote.getPath());
+		initWorkspace();
+		git(workspace, "remote", "add", "origin", remote.getPath());
+
+		BranchArgumentsAction args = args("feature/a", "1.0-a-SNAPSHOT");
+		assertTrue(log(), engine().branch(project(), args));
+
+		assertTrue(FileUtils.readFileToString(new File(workspace, "pom.xml")).contains("<version>1.0-a-SNAPSHOT</version>"));
+		assertTrue(git(remote, "show", "feature/a:pom.xml").contains("<version>1.0-a-SNAPSHOT</version>"));
+		assertTrue(git(workspace, "show", "master:pom.xml").contains("<version>1.0-SNAPSHOT</version>"));
+		assertEquals(Arrays.asList(NativeBranchEngine.STEP_BRANCH, NativeBranchEngine.STEP_COMMIT, NativeBranchEngine.STEP_PUSH),
+				args.getCompletedSteps());
+	}
+
+	@Test
+	public void failsWithoutRemote() throws Exception {
+		initWorkspace();
+
+		BranchArgumentsAction args = args("feature/b", "1.0-b-SNAPSHOT");
+		assertFalse(engine().branch(project(), args));
+
+		assertTrue(log(), log().contains("has no remote"));
+		assertFalse(args.isStepCompleted(NativeBranchEngine.STEP_PUSH));
+	}
+
+	@Test
+	public void resumesWithThePush() throws Exception {
+		initWorkspace();
+		BranchArgumentsAction args = args("feature/c", "1.0-c-SNAPSHOT");
+		assertFalse(engine().branch(project(), args));
+		String commit = git(workspace, "rev-parse", "feature/c");
+
+		// the remote was added before resuming
+		File remote = new File(root, "remote.git");
+		git(root, "init", "--bare", "-q", remote.getPath());
+		git(workspace, "remote", "add", "origin", remote.getPath());
+		args.setResumedBuild(1);
+		assertTrue(log(), engine().branch(project(), args));
+
+		assertEquals(commit, git(workspace, "rev-parse", "feature/c"));
+		assertEquals(commit, git(remote, "rev-parse", "feature/c"));
+	}
+
+	@Test
+	public void failsOutsideOfAGitWorkspace() throws Exception {
+		FileUtils.writeStringToFile(new File(workspace, "pom.xml"), POM);
+
+		assertFalse(engine().branch(project(), args("feature/d", "1.0-d-SNAPSHOT")));
+		assertTrue(log(), log().contains("needs a Git workspace"));
+	}
+
+	private void initWorkspace() throws IOException, InterruptedException {
+		git(workspace, "init", "-q");
+		git(workspace, "config", "user.name", "test");
+		git(workspace, "config", "user.email", "test@example.org");
+		git(workspace, "checkout", "-q", "-b", "master");
+		FileUtils.writeStringToFile(new File(workspace, "pom.xml"), POM);
+		git(workspace, "add", "pom.xml");
+		git(workspace, "commit", "-q", "-m", "initial");
+	}
+
+	private NativeBranchEngine engine() throws IOException, InterruptedException {
+		StreamBuildListener listener = new StreamBuildListener(log);
+		AbstractBuild<?, ?> build = mock(AbstractBuild.class);
+		when(build.getModuleRoot()).thenReturn(new FilePath(workspace));
+		when(build.getEnvironment(any(TaskListener.class))).thenReturn(new EnvVars());
+		return new NativeBranchEngine(build, new Launcher.LocalLauncher(listener), listener);
+	}
+
+	private static MavenModuleSet project() {
+		MavenModule module = mock(MavenModule.class);
+		when(module.getModuleName()).thenReturn(new ModuleName("org.example", "app"));
+		when(module.getRelativePath()).thenReturn("");
+		MavenModuleSet project = mock(MavenModuleSet.class);
+		when(project.getModules()).thenReturn(Collections.singletonList(module));
+		when(project.getRootPOM()).thenReturn("pom.xml");
+		return project;
+	}
+
+	private static BranchArgumentsAction args(String branchName, String releaseVersion) {
+		BranchArgumentsAction args = new BranchArgumentsAction();
+		args.setBranchName(branchName);
+		args.setReleaseVersion(releaseVersion);
+		return args;
+	}
+
+	private String log() {
+		return log.toString();
+	}
+
+	private static String git(File dir, String... args) throws IOException, InterruptedException {
+		String[] cmd = new String[args.length + 1];
+		cmd[0] = "git";
+		System.arraycopy(args, 0, cmd, 1, args.length);
+		Process process = new ProcessBuilder(cmd).directory(dir).redirectErrorStream(true).start();
+		InputStream in = process.getInputStream();
+		try {
+			String out = IOUtils.toString(in);
+			assertEquals(out, 0, process.waitFor());
+			return out.trim();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PomVersionRewriterTest {
+
+	/** The versions to set are written <code>@</code>. */
+	private static final String POM = lines(
+			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>",
+			"<!-- <version>1.0-SNAPSHOT</version> stays in a comment -->",
+			"<project>",
+			"  <parent>",
+			"    <groupId>org.example</groupId>",
+			"    <artifactId>parent</artifactId>",
+			"    <version>@</version>",
+			"  </parent>",
+			"  <artifactId>app</artifactId>",
+			"  <version>@</version>",
+			"  <description><![CDATA[<version>1.0-SNAPSHOT</version>]]></description>",
+			"  <dependencies>",
+			"    <dependency>",
+			"      <groupId>${project.groupId}</groupId>",
+			"      <artifactId>lib</artifactId>",
+			"      <version>@</version>",
+			"    </dependency>",
+			"    <dependency>",
+			"      <groupId>org.other</groupId>",
+			"      <artifactId>lib</artifactId>",
+			"      <version>1.0-SNAPSHOT</version>",
+			"    </dependency>",
+			"  </dependencies>",
+			"  <build>",
+			"    <plugins>",
+			"      <plugin>",
+			"        <groupId>org.other</groupId>",
+			"        <artifactId>plugin</artifactId>",
+			"        <version>1.0-SNAPSHOT</version>",
+			"        <dependencies>",
+			"          <dependency>",
+			"            <groupId>org.example</groupId>",
+			"            <artifactId>lib</artifactId>",
+			"            <version>@</version>",
+			"          </dependency>",
+			"        </dependencies>",
+			"      </plugin>",
+			"    </plugins>",
+			"    <pluginManagement>",
+			"      <plugins>",
+			"        <plugin>",
+			"          <artifactId>plugin</artifactId>",
+			"          <dependencies>",
+			"            <dependency>",
+			"              <groupId>org.example</groupId>",
+			"              <artifactId>lib</artifactId>",
+			"              <version>@</version>",
+			"            </dependency>",
+			"          </dependencies>",
+			"        </plugin>",
+			"      </plugins>",
+			"    </pluginManagement>",
+			"  </build>",
+			"  <profiles>",
+			"    <profile>",
+			"      <id>extra</id>",
+			"      <dependencies>",
+			"        <dependency>",
+			"          <groupId>org.example</groupId>",
+			"          <artifactId>lib</artifactId>",
+			"          <!-- <version>1.0-SNAPSHOT</version> -->",
+			"          <version>@</version>",
+			"        </dependency>",
+			"      </dependencies>",
+			"      <dependencyManagement>",
+			"        <dependencies>",
+			"          <dependency>",
+			"            <groupId>org.example</groupId>",
+			"            <artifactId>lib</artifactId>",
+			"            <version>@</version>",
+			"            <exclusions>",
+			"              <exclusion>",
+			"                <groupId>org.example</groupId>",
+			"                <artifactId>parent</artifactId>",
+			"              </exclusion>",
+			"            </exclusions>",
+			"          </dependency>",
+			"        </dependencies>",
+			"      </dependencyManagement>",
+			"      <build>",
+			"        <plugins>",
+			"          <plugin>",
+			"            <artifactId>plugin</artifactId>",
+			"            <dependencies>",
+			"              <dependency>",
+			"                <groupId>org.example</groupId>",
+			"                <artifactId>lib</artifactId>",
+			"                <version>${lib.version}</version>",
+			"              </dependency>",
+			"              <dependency>",
+			"                <groupId>org.example</groupId>",
+			"                <artifactId>lib</artifactId>",
+			"                <version>@</version>",
+			"              </dependency>",
+			"            </dependencies>",
+			"          </plugin>",
+			"        </plugins>",
+			"      </build>",
+			"    </profile>",
+			"  </profiles>",
+			"</project>");
+
+	private File root;
+
+	@Before
+	public void createRoot() throws IOException {
+		root = File.createTempFile("pom-version-rewriter", "");
+		root.delete();
+		root.mkdirs();
+	}
+
+	@After
+	public void deleteRoot() throws IOException {
+		FileUtils.deleteDirectory(root);
+	}
+
+	@Test
+	public void onlyChangesTheModuleVersions() throws IOException {
+		StringWriter out = new StringWriter();
+		List<PomVersionRewriter.Change> changes = rewriter(false).rewrite("pom.xml", new StringReader(POM.replace("@", "1.0-SNAPSHOT")), out);
+
+		assertEquals(POM.replace("@", "2.0-SNAPSHOT"), out.toString());
+		assertEquals(POM.split("@", -1).length - 1, changes.size());
+		assertEquals("parent", changes.get(0).getElement());
+		assertEquals(7, changes.get(0).getLine());
+		assertEquals("project", changes.get(1).getElement());
+		assertEquals("dependency org.example:lib", changes.get(2).getElement());
+		assertEquals("1.0-SNAPSHOT", changes.get(2).getOldVersion());
+		assertEquals("2.0-SNAPSHOT", changes.get(2).getNewVersion());
+	}
+
+	@Test
+	public void keepsTheEncodingOfThePom() throws Exception {
+		String pom = POM.replace("encoding=\"UTF-8\"", "encoding='ISO-8859-1'").replace("<id>extra</id>", "<id>\u00e9t\u00e9</id>");
+		File file = new File(root, "pom.xml");
+		FileUtils.writeStringToFile(file, pom.replace("@", "1.0-SNAPSHOT"), "ISO-8859-1");
+
+		rewriter(false).invoke(root, null);
+
+		assertArrayEquals(pom.replace("@", "2.0-SNAPSHOT").getBytes("ISO-8859-1"), FileUtils.readFileToByteArray(file));
+		assertEquals(Arrays.asList("pom.xml"), Arrays.asList(root.list()));
+	}
+
+	@Test
+	public void leavesTheUnchangedPomsAlone() throws Exception {
+		File file = new File(root, "pom.xml");
+		String pom = POM.replace("@", "2.0-SNAPSHOT");
+		FileUtils.writeStringToFile(file, pom, "UTF-8");
+
+		assertEquals(0, rewriter(false).invoke(root, null).size());
+
+		assertEquals(pom, FileUtils.readFileToString(file, "UTF-8"));
+		assertEquals(Arrays.asList("pom.xml"), Arrays.asList(root.list()));
+	}
+
+	@Test
+	public void onlyReportsTheChangesInPreview() throws Exception {
+		File file = new File(root, "pom.xml");
+		String pom = POM.replace("@", "1.0-SNAPSHOT");
+		FileUtils.writeStringToFile(file, pom, "UTF-8");
+
+		assertEquals(POM.split("@", -1).length - 1, rewriter(true).invoke(root, null).size());
+
+		assertEquals(pom, FileUtils.readFileToString(file, "UTF-8"));
+		assertEquals(Arrays.asList("pom.xml"), Arrays.asList(root.list()));
+	}
+
+	@Test
+	public void readsTheEncodingOfThePom() throws IOException {
+		assertEquals("UTF-8", encoding("<project/>".getBytes("UTF-8")));
+		assertEquals("UTF-8", encoding("<?xml version=\"1.0\"?><project/>".getBytes("UTF-8")));
+		assertEquals("windows-1252", encoding("<?xml version=\"1.0\" encoding = 'windows-1252' ?>".getBytes("UTF-8")));
+		assertEquals("UTF-8", encoding(new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF, '<', 'p', '/', '>' }));
+		assertEquals("UTF-16LE", encoding("\uFEFF<?xml version=\"1.0\" encoding=\"UTF-16\"?>".getBytes("UTF-16LE")));
+		assertEquals("UTF-16BE", encoding("\uFEFF<?xml version=\"1.0\" encoding=\"UTF-16\"?>".getBytes("UTF-16BE")));
+
+		// the stream is left at its start
+		BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream("<project/>".getBytes("UTF-8")));
+		PomVersionRewriter.getEncoding(in);
+		assertEquals('<', in.read());
+	}
+
+	private static String encoding(byte[] pom) throws IOException {
+		return PomVersionRewriter.getEncoding(new BufferedInputStream(new ByteArrayInputStream(pom)));
+	}
+
+	private static PomVersionRewriter rewriter(boolean preview) {
+		Map<String, String> versions = new HashMap<String, String>();
+		versions.put("org.example:parent", "2.0-SNAPSHOT");
+		versions.put("org.example:app", "2.0-SNAPSHOT");
+		versions.put("org.example:lib", "2.0-SNAPSHOT");
+		return new PomVersionRewriter(versions, Arrays.asList("pom.xml"), preview);
+	}
+
+	private static String lines(String... lines) {
+		StringBuilder sb = new StringBuilder();
+		for (String line : lines) {
+			sb.append(line).append('\n');
+		}
+		return sb.toString();
+	}
+}
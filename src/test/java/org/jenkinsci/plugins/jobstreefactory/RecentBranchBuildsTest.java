@@ -0,0 +1,230 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2013, Iheb Khemissi
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.jobstreefactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.model.Job;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that {@link RecentBranchBuilds} lists the same builds, in the same
+ * order, as the run walking insertion sort the dashboard portlet used before.
+ */
+public class RecentBranchBuildsTest {
+
+	private File root;
+
+	@Before
+	public void createRoot() throws IOException {
+		root = File.createTempFile("recent-branch-builds", "");
+		root.delete();
+		root.mkdirs();
+	}
+
+	@After
+	public void deleteRoot() throws IOException {
+		FileUtils.deleteDirectory(root);
+	}
+
+	@Test
+	public void matchesTheLegacyOrderForDistinctTimestamps() throws IOException {
+		Random random = new Random(42);
+		List<Job<?, ?>> jobs = new ArrayList<Job<?, ?>>();
+		for (int i = 0; i < 10; i++) {
+			List<BranchBuildRecord> records = new ArrayList<BranchBuildRecord>();
+			long timestamp = random.nextInt(10000);
+			for (int number = 1; number <= 30; number++) {
+				timestamp += 1 + random.nextInt(1000);
+				// the builds of the jobs interleave, but never share a timestamp
+				records.add(record(number, timestamp * 100 + i));
+			}
+			jobs.add(job(String.format("job-%02d", i), records));
+		}
+		for (int max : new int[] { 1, 5, 50, 299, 300, 1000 }) {
+			assertSameBuilds(legacyNewest(jobs, max), RecentBranchBuilds.newest(jobs, max));
+		}
+	}
+
+	@Test
+	public void matchesTheLegacyOrderForEqualTimestamps() throws IOException {
+		List<Job<?, ?>> jobs = new ArrayList<Job<?, ?>>();
+		for (int i = 0; i < 5; i++) {
+			List<BranchBuildRecord> records = new ArrayList<BranchBuildRecord>();
+			for (int number = 1; number <= 6; number++) {
+				// builds of all the jobs, and of the same job, share timestamps
+				records.add(record(number, 1000 * ((number + 1) / 2)));
+			}
+			// the dashboards list their jobs by name, the legacy order for equal timestamps
+			jobs.add(job("job-" + i, records));
+		}
+		for (int max : new int[] { 1, 3, 10, 30 }) {
+			assertSameBuilds(legacyNewest(jobs, max), RecentBranchBuilds.newest(jobs, max));
+		}
+	}
+
+	@Test
+	public void ordersEqualTimestampsByJobNameWhateverTheDashboardOrder() throws IOException {
+		List<Job<?, ?>> jobs = new ArrayList<Job<?, ?>>();
+		// unlike the legacy portlet, the order of the jobs on the dashboard does not matter
+		for (String name : new String[] { "job-c", "job-a", "job-b" }) {
+			List<BranchBuildRecord> records = new ArrayList<BranchBuildRecord>();
+			records.add(record(1, 1000));
+			records.add(record(2, 1000));
+			records.add(record(3, 2000));
+			jobs.add(job(name, records));
+		}
+		List<String> expected = Arrays.asList(
+				"job-a#3@2000", "job-b#3@2000", "job-c#3@2000",
+				"job-a#2@1000", "job-a#1@1000",
+				"job-b#2@1000", "job-b#1@1000",
+				"job-c#2@1000", "job-c#1@1000");
+		assertEquals(expected, describe(RecentBranchBuilds.newest(jobs, Integer.MAX_VALUE)));
+		assertEquals(expected.subList(0, 4), describe(RecentBranchBuilds.newest(jobs, 4)));
+	}
+
+	@Test
+	public void matchesTheLegacyOrderWhenMergingInParallel() throws IOException {
+		Random random = new Random(7);
+		List<Job<?, ?>> jobs = new ArrayList<Job<?, ?>>();
+		for (int i = 0; i < RecentBranchBuilds.PARALLEL_THRESHOLD + 8; i++) {
+			List<BranchBuildRecord> records = new ArrayList<BranchBuildRecord>();
+			long timestamp = random.nextInt(100000);
+			for (int number = 1; number <= 1 + random.nextInt(10); number++) {
+				timestamp += 1 + random.nextInt(10000);
+				records.add(record(number, timestamp * 100 + i));
+			}
+			jobs.add(job(String.format("job-%03d", i), records));
+		}
+		assertSameBuilds(legacyNewest(jobs, 100), RecentBranchBuilds.newest(jobs, 100));
+	}
+
+	@Test
+	public void resumesFromAnyPosition() throws IOException {
+		List<Job<?, ?>> jobs = new ArrayList<Job<?, ?>>();
+		for (int i = 0; i < 4; i++) {
+			List<BranchBuildRecord> records = new ArrayList<BranchBuildRecord>();
+			for (int number = 1; number <= 5; number++) {
+				records.add(record(number, 1000 * number + (i % 2)));
+			}
+			jobs.add(job("job-" + i, records));
+		}
+		List<RecentBranchBuilds.Entry> all = RecentBranchBuilds.newest(jobs, Integer.MAX_VALUE);
+		assertEquals(20, all.size());
+		for (int i = 0; i < all.size(); i++) {
+			RecentBranchBuilds.Position position = RecentBranchBuilds.Position.fromString(all.get(i).getPosition().toString());
+			List<RecentBranchBuilds.Entry> rest = new ArrayList<RecentBranchBuilds.Entry>();
+			for (Iterator<RecentBranchBuilds.Entry> it = RecentBranchBuilds.iterate(jobs, position); it.hasNext();) {
+				rest.add(it.next());
+			}
+			assertSameBuilds(all.subList(i + 1, all.size()), rest);
+		}
+	}
+
+	private static BranchBuildRecord record(int number, long timestamp) {
+		return new BranchBuildRecord(number, timestamp, 0, hudson.model.Result.SUCCESS, "1." + number, null, null);
+	}
+
+	/**
+	 * Creates a job whose branch index holds the given builds.
+	 */
+	@SuppressWarnings("rawtypes")
+	private Job<?, ?> job(String name, List<BranchBuildRecord> records) throws IOException {
+		File dir = new File(root, name);
+		dir.mkdirs();
+		Writer writer = new OutputStreamWriter(new FileOutputStream(new File(dir, BranchBuildIndex.FILE_NAME)), "UTF-8");
+		try {
+			for (BranchBuildRecord record : records) {
+				writer.write("+\t" + record.getNumber() + '\t' + record.getTimestamp() + "\tSUCCESS\t" + record.getVersionNumber() + "\t\t\n");
+			}
+		} finally {
+			writer.close();
+		}
+		Job job = mock(Job.class);
+		when(job.getRootDir()).thenReturn(dir);
+		when(job.getFullName()).thenReturn(name);
+		when(job.getName()).thenReturn(name);
+		return job;
+	}
+
+	/**
+	 * The algorithm of the portlet before the index: walks the builds of each
+	 * job from the newest one, and inserts them in a list sorted newest
+	 * first, after the builds with the same timestamp.
+	 */
+	private static List<RecentBranchBuilds.Entry> legacyNewest(List<Job<?, ?>> jobs, int max) {
+		LinkedList<RecentBranchBuilds.Entry> recent = new LinkedList<RecentBranchBuilds.Entry>();
+		for (Job<?, ?> job : jobs) {
+			// the index lists the builds newest first, like getPreviousBuild() walks them
+			for (BranchBuildRecord record : BranchBuildIndex.of(job).getRecords()) {
+				if (recent.size() >= max && record.getTimestamp() <= recent.getLast().getRecord().getTimestamp()) {
+					break;
+				}
+				ListIterator<RecentBranchBuilds.Entry> it = recent.listIterator();
+				while (it.hasNext()) {
+					if (record.getTimestamp() > it.next().getRecord().getTimestamp()) {
+						it.previous();
+						break;
+					}
+				}
+				it.add(new RecentBranchBuilds.Entry(job, record));
+				if (recent.size() > max) {
+					recent.removeLast();
+				}
+			}
+		}
+		return recent;
+	}
+
+	private static void assertSameBuilds(List<RecentBranchBuilds.Entry> expected, List<RecentBranchBuilds.Entry> actual) {
+		assertEquals(describe(expected), describe(actual));
+	}
+
+	private static List<String> describe(List<RecentBranchBuilds.Entry> entries) {
+		List<String> list = new ArrayList<String>(entries.size());
+		for (RecentBranchBuilds.Entry entry : entries) {
+			list.add(entry.getJob().getFullName() + '#' + entry.getRecord().getNumber() + '@' + entry.getRecord().getTimestamp());
+		}
+		return list;
+	}
+}